@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+/**
+ * A Distributor with the same proportions, each number N of the range is picked N+1 times as often as the
+ * lowest one, in O(range) memory instead of O(range^2).
+ * <p>
+ * The proportions are kept in an alias table (Vose), so picking is constant time and building is linear in the
+ * range. The index is a 32-bit cursor of a golden ratio (Weyl) sequence, which spreads the picks of a level as
+ * evenly as the order table of Distributor does.
+ */
+public class AliasDistributor extends Distributor {
+
+    // 2^32 / golden ratio
+    private static final long WEYL_STEP = 0x9E3779B9L;
+
+    private final int start;
+    private final int range;
+    private final boolean inverse;
+    // for column i, a fraction of 2^32 under which i is picked, and the number picked otherwise
+    private final int[] threshold;
+    private final int[] alias;
+
+    public AliasDistributor(int range) {
+        this(0, range - 1, false);
+    }
+
+    public AliasDistributor(int start, int end, boolean inverse) {
+        this.start = start;
+        this.range = end - start + 1;
+        this.inverse = inverse;
+        threshold = new int[range];
+        alias = new int[range];
+
+        // column i has weight i + 1, scaled by the range so that a full column weighs the total
+        long total = (long) range * (range + 1) / 2;
+        long[] scaled = new long[range];
+        int[] small = new int[range];
+        int[] large = new int[range];
+        int n_small = 0, n_large = 0;
+        for (int i = 0; i < range; i++) {
+            scaled[i] = (long) (i + 1) * range;
+            alias[i] = i;
+            if (scaled[i] < total) {
+                small[n_small++] = i;
+            } else {
+                large[n_large++] = i;
+            }
+        }
+        while (n_small > 0 && n_large > 0) {
+            int s = small[--n_small];
+            int l = large[n_large - 1];
+            threshold[s] = (int) (long) ((double) scaled[s] / total * 4294967296.0);
+            alias[s] = l;
+            scaled[l] -= total - scaled[s];
+            if (scaled[l] < total) {
+                n_large--;
+                small[n_small++] = l;
+            }
+        }
+        // the columns left are full, they alias themselves
+    }
+
+    private int number(int column) {
+        return inverse ? start + range - 1 - column : start + column;
+    }
+
+    /**
+     * Get the number at the given index
+     * @param index The current index, any int
+     * @return the random value
+     */
+    @Override
+    public int pick(int index) {
+        long u = ((index & 0xFFFFFFFFL) * WEYL_STEP) & 0xFFFFFFFFL;
+        long x = u * range;
+        int column = (int) (x >>> 32);
+        long fraction = x & 0xFFFFFFFFL;
+        return number(fraction < (threshold[column] & 0xFFFFFFFFL) || alias[column] == column ? column : alias[column]);
+    }
+
+    /**
+     * Advance the index, it wraps around after 2^32 steps
+     * @param index The current index
+     * @return the next index
+     */
+    @Override
+    public int next(int index) {
+        return index + 1;
+    }
+}
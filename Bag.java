@@ -23,10 +23,17 @@
  */
 package org.opennars.storage;
 
+import org.opennars.entity.BudgetValue;
 import org.opennars.entity.Item;
 
-import java.io.Serializable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 import org.opennars.inference.BudgetFunctions;
 import org.opennars.main.Parameters;
@@ -35,52 +42,72 @@ import org.opennars.main.Parameters;
  * Original Bag implementation which distributes items into
  * discrete levels (queues) according to priority
  */
-public class Bag<Type extends Item<K>, K> implements Serializable, Iterable<Type> {
-
-    // num of levels for the improved bag and the bag buffer
-    // by default the bag buffer has 10 times more levels
-    private final int n_working_modes;
-    private final int n_levels_IB;
-    private final int n_levels_BB;
-
-    // capacity
-    private final int capacity_BB;
-    private final int capacity_each_level_IB;
-
-    // under this threshold, these levels will be considered dormant
-    private final int dormant_level_threshold;
-
-    // the distributors
-    // there are 3 type of distributors
-    // the "improved_bag_output_distributor" is used to get an item normally as in NARS, though it is different in
-    //  putting in new items, now it is not decided just by the budget, but using a bag buffer
-    private final Distributor output_distributor_IB;
-    private final Distributor[][] input_distributors_IB;
-    private final Distributor[][] output_distributors_BB;
+public class Bag<Type extends Item<K>, K> extends TwoTierBag<Type, K> {
 
     // the item tables
     // for the improved bag, it is a just classical NARS bag with a different way of adding items
     // therefore, it also needs a hash table
-    private ArrayList<ArrayList<Type>> item_table_IB;
-    private HashMap<K, Type> name_table_IB;
-    private HashMap<K, Integer> name_table_idx_IB;
+    // each level is an intrusive linked list, and one hash table, shared with the bag buffer, maps a key to the node
+    // of its item, which knows its region and level
+    // the levels, their occupancy and the hash table are allocated when first used
+    private LevelTable<Type> item_table_IB;
+    private transient ItemIndex<Type> name_table;
+    private int size_IB;
     private int mass_IB;
     private int counter_IB;
 
-    private ArrayList<ArrayList<Type>> item_table_BB;
-    private HashMap<K, Type> name_table_BB;
+    private LevelTable<Type> item_table_BB;
+    private int size_BB;
+
+    // for the bag buffer, the occupied levels are also counted for each working mode, and the modes with items
+    // are kept as a bit mask
+    private int[] occupied_levels_each_mode_BB;
+    private long occupied_modes_BB;
 
     // indexing & levels
-    // for each distributor, it needs an index of the distributor, as well as the level got from the index
+    // for each distributor, it needs an index of the distributor
     private int output_level_IB;
     private int output_idx_of_level_IB;
-    // other distributors are grouped
-    private final int[][] input_levels_IB;
-    private final int[][] input_idx_of_levels_IB;
-    private final int[][] output_levels_BB;
-    private final int[][] output_idx_of_levels_BB;
+    // the other distributors are grouped, at [working mode * 2 + direction], allocated by the first migration
+    private int[] input_idx_of_levels_IB;
+    private int[] output_idx_of_levels_BB;
+
+    // migrations per putIn, and the migrations due so far, see setMigrationRate
+    protected float migration_rate = 1.0f;
+    private float migration_credit;
 
-    private int cooldown;
+    // null unless the migration rate and buffer capacity are tuned, see setTransferController
+    protected TransferController controller;
+
+    // age bound of the bag buffer, see setBufferMaxAge
+    // a generation is closed every generation_length_BB items put into the bag buffer, each node keeps the
+    // generation it was added to its level in, so in each level the oldest items come first
+    private int max_age_BB;
+    private int generation_length_BB;
+    private int generation_puts_BB;
+    private int generation_BB;
+    // so each level is a run of segments, one for each generation which did not expire yet: a ring of
+    // max_age_BB + 1 slots for each level, at [level * (max_age_BB + 1) + slot], holds the last node and the size
+    // of each segment, and the slot of the current generation turns with the generations
+    private transient LinkedLevel.Node<Type>[] segment_last_BB;
+    private transient int[] segment_size_BB;
+    private transient int generation_slot_BB;
+
+    // random source of the working mode and direction of the migrations, owned by this bag
+    // with the same seed and the same operations, a bag makes the same choices
+    protected SplitMix64 random;
+
+    // lazy forgetting, see setLazyForgetting
+    // the clock counts the cycles, each node keeps the cycle at which its item was last decayed
+    private boolean lazy_forgetting;
+    private float forget_cycles;
+    private float forget_relative_threshold;
+    private long clock;
+    // the next level for relevel, the levels of the improved bag come first
+    private int relevel_cursor;
+
+    // whether the levels changed since the last snapshot are enough for the next incremental one
+    private transient boolean snapshot_written;
 
     public Bag(final int levels, final int capacity, Parameters narParameters) {
         this(levels, capacity, (int) (narParameters.BAG_THRESHOLD * levels));
@@ -90,55 +117,43 @@ public class Bag<Type extends Item<K>, K> implements Serializable, Iterable<Type
      * thresholdLevel = 0 disables "fire level completely" threshold effect
      */
     public Bag(final int levels, final int capacity, final int thresholdLevel) {
+        this(levels, capacity, thresholdLevel, new SplitMix64());
+    }
 
-        // by default, it is 10
-        n_working_modes = 5;
-
-        n_levels_IB = levels;
-        n_levels_BB = levels * 2;
-
-        capacity_BB = capacity * 10;
-        capacity_each_level_IB = capacity;
-
-        dormant_level_threshold = thresholdLevel;
+    /**
+     * @param random The random source of the bag, seeded for a reproducible run
+     */
+    public Bag(final int levels, final int capacity, final int thresholdLevel, final SplitMix64 random) {
+        this(BagSpec.of(levels, capacity, thresholdLevel), random);
+    }
 
-        output_distributor_IB = new Distributor(levels);
-        int improved_bag_num_levels_each_mode = n_levels_IB / n_working_modes;
-        int bag_buffer_num_levels_each_mode = n_levels_BB / n_working_modes;
-        input_distributors_IB = new Distributor[n_working_modes][2];
-        output_distributors_BB = new Distributor[n_working_modes][2];
-        for (int i = 0; i < n_working_modes; i++) {
-            input_distributors_IB[i][0] = new Distributor(i * improved_bag_num_levels_each_mode, (i + 1) * improved_bag_num_levels_each_mode - 1, false);
-            input_distributors_IB[i][1] = new Distributor(i * improved_bag_num_levels_each_mode, (i + 1) * improved_bag_num_levels_each_mode - 1, true);
-            output_distributors_BB[i][0] = new Distributor(i * bag_buffer_num_levels_each_mode, (i + 1) * bag_buffer_num_levels_each_mode - 1, false);
-            output_distributors_BB[i][1] = new Distributor(i * bag_buffer_num_levels_each_mode, (i + 1) * bag_buffer_num_levels_each_mode - 1, true);
-        }
-        input_levels_IB = new int[n_working_modes][2];
-        input_idx_of_levels_IB = new int[n_working_modes][2];
-        output_levels_BB = new int[n_working_modes][2];
-        output_idx_of_levels_BB = new int[n_working_modes][2];
+    public Bag(final BagSpec spec) {
+        this(spec, new SplitMix64());
+    }
 
-        cooldown = 0;
+    public Bag(final BagSpec spec, final SplitMix64 random) {
+        super(spec);
+        this.random = random;
 
         clear();
     }
 
     public void clear() {
 
-        // clear the improved bag
-        item_table_IB = new ArrayList<ArrayList<Type>>(n_levels_IB);
-        for (int i = 0; i < n_levels_IB; i++) {
-            item_table_IB.add(new ArrayList<Type>());
-        }
-        name_table_IB = new LinkedHashMap<K, Type>();
-        name_table_idx_IB = new LinkedHashMap<K, Integer>();
+        // clear the improved bag and the bag buffer, their levels are allocated again when used
+        item_table_IB = new LevelTable<Type>(LinkedLevel.IB, n_levels_IB);
+        size_IB = 0;
+        item_table_BB = new LevelTable<Type>(LinkedLevel.BB, n_levels_BB);
+        size_BB = 0;
 
-        // clear the bag buffer
-        item_table_BB = new ArrayList<ArrayList<Type>>(n_levels_BB);
-        for (int i = 0; i < n_levels_BB; i++) {
-            item_table_BB.add(new ArrayList<Type>());
+        name_table = new ItemIndex<Type>();
+
+        occupied_levels_each_mode_BB = null;
+        occupied_modes_BB = 0;
+        if (segment_last_BB != null) {
+            Arrays.fill(segment_last_BB, null);
+            Arrays.fill(segment_size_BB, 0);
         }
-        name_table_BB = new LinkedHashMap<K, Type>();
 
         // reset the level/index
         // for the output improved bag
@@ -147,30 +162,17 @@ public class Bag<Type extends Item<K>, K> implements Serializable, Iterable<Type
         mass_IB = 0;
         counter_IB = 0;
 
-        for (int i = 0; i < n_working_modes; i++) {
-            assert input_idx_of_levels_IB != null;
-            input_idx_of_levels_IB[i][0] = 0;
-            input_idx_of_levels_IB[i][1] = 0;
-            assert input_levels_IB != null;
-            assert input_distributors_IB != null;
-            input_levels_IB[i][0] = input_distributors_IB[i][0].pick(0);
-            input_levels_IB[i][1] = input_distributors_IB[i][1].pick(0);
+        input_idx_of_levels_IB = null;
+        output_idx_of_levels_BB = null;
 
-            assert output_idx_of_levels_BB != null;
-            output_idx_of_levels_BB[i][0] = 0;
-            output_idx_of_levels_BB[i][1] = 0;
-            assert output_levels_BB != null;
-            assert output_distributors_BB != null;
-            output_levels_BB[i][0] = output_distributors_BB[i][0].pick(0);
-            output_levels_BB[i][1] = output_distributors_BB[i][1].pick(0);
-        }
+        snapshot_written = false;
     }
 
     public float getAveragePriority() {
-        if (name_table_IB.isEmpty()) {
+        if (size_IB == 0) {
             return 0.01f;
         }
-        float f = (float) mass_IB / (name_table_IB.size() * n_levels_IB);
+        float f = (float) mass_IB / (size_IB * n_levels_IB);
         if (f > 1) {
             return 1.0f;
         }
@@ -178,229 +180,810 @@ public class Bag<Type extends Item<K>, K> implements Serializable, Iterable<Type
     }
 
     public boolean contains(Type it) {
-        return name_table_IB.containsValue(it);
+        LinkedLevel.Node<Type> node = name_table.get(it.name(), LinkedLevel.IB);
+        return node != null && it.equals(node.item);
     }
 
+    /**
+     * @return The item of the key in the improved bag; with a cold tier, an item of the key which was evicted
+     *         is brought back into the improved bag
+     */
     public Type get(K key) {
-        return name_table_IB.get(key);
+        LinkedLevel.Node<Type> node = name_table.get(key, LinkedLevel.IB);
+        if (node == null) {
+            ColdTier<Type, K> c = cold_tier;
+            return c == null ? null : rehydrate(c, key);
+        }
+        if (lazy_forgetting) {
+            decay(node);
+        }
+        return node.item;
     }
 
     protected Type put_in_BB(Type newItem) {
-        K newKey = newItem.name();
-        Type existedItem = name_table_BB.put(newKey, newItem);
-        if (existedItem != null) {
-            out_of_base_BB(existedItem);
-            newItem.merge(existedItem);
-        }
-        Type overflowItem = into_base_BB(newItem);
-        if (overflowItem != null) {
-            K overflowKey = overflowItem.name();
-            name_table_BB.remove(overflowKey);
-            return overflowItem;
+        // the expired items make room before the new one is put in
+        if (generation_length_BB > 0 && ++generation_puts_BB >= generation_length_BB) {
+            closeBufferGeneration();
+        }
+        LinkedLevel.Node<Type> newNode = new LinkedLevel.Node<Type>(newItem);
+        newNode.epoch = (int) clock;
+        LinkedLevel.Node<Type> existedNode = name_table.put(newNode, LinkedLevel.BB);
+        BagMetrics m = metrics;
+        if (existedNode != null) {
+            if (lazy_forgetting) {
+                decay(existedNode);
+            }
+            out_of_base_BB(existedNode);
+            newItem.merge(existedNode.item);
+            if (m != null) {
+                m.merges_BB.increment();
+            }
+        } else {
+            // the item supersedes the one kept in the cold tier
+            ColdTier<Type, K> cold = cold_tier;
+            if (cold != null) {
+                cold.remove(newItem.name());
+            }
+        }
+        LinkedLevel.Node<Type> overflowNode = into_base_BB(newNode);
+        if (overflowNode != null) {
+            name_table.remove(overflowNode);
+            evicted(overflowNode.item, overflowNode == newNode ? EvictionListener.Cause.REJECTED_BB : EvictionListener.Cause.EVICTED_BB);
+            // counted for the end of the period, tuning here would restart the period at every overflow of a burst
+            TransferController c = controller;
+            if (c != null) {
+                c.overflows_BB++;
+            }
+            if (m != null) {
+                (overflowNode == newNode ? m.rejected_BB : m.evicted_BB).increment();
+            }
+            return overflowNode.item;
         } else {
             return null;
         }
     }
 
-    protected void out_of_base_BB(Type existedItem) {
-        float fl = existedItem.getPriority() * n_levels_BB;  // float
-        int level = (int) Math.ceil(fl) - 1;
-        level = Math.max(level, 0);
-        item_table_BB.get(level).remove(existedItem);
+    protected void out_of_base_BB(LinkedLevel.Node<Type> existedNode) {
+        // the node knows the level it was stored in, even if the priority changed since
+        out_of_level_BB(existedNode);
     }
 
     protected boolean empty_level_BB(int level) {
-        return item_table_BB.get(level).isEmpty();
+        return !item_table_BB.occupied(level);
     }
 
-    protected Type take_out_first_BB(int level) {
-//        System.out.println(1);
-//        System.out.println(item_table_BB.get(level).size());
-        Type selected = item_table_BB.get(level).get(0);
-        item_table_BB.get(level).remove(0);
+    protected LinkedLevel.Node<Type> take_out_first_BB(int level) {
+        LinkedLevel.Node<Type> selected = item_table_BB.first(level);
+        out_of_level_BB(selected);
         return selected;
     }
 
-    protected Type into_base_BB(Type newItem) {
-        Type overflow = null;
-        float fl = newItem.getPriority() * n_levels_BB;
-        int inLevel = (int) Math.ceil(fl) - 1;
-        inLevel = Math.max(inLevel, 0);
+    protected void into_level_BB(LinkedLevel.Node<Type> node, int level) {
+        // a re-inserted or moved item is as young as a new one, it goes to the end of its level
+        node.generation = generation_BB;
+        if (segment_last_BB != null) {
+            int segment = level * (max_age_BB + 1) + generation_slot_BB;
+            segment_last_BB[segment] = node;
+            segment_size_BB[segment]++;
+        }
+        size_BB++;
+        if (item_table_BB.add(node, level)) {
+            int mode = level / n_levels_each_mode_BB;
+            if (occupied_levels_each_mode_BB == null) {
+                occupied_levels_each_mode_BB = new int[n_working_modes];
+            }
+            // the levels left over by the integer division belong to no working mode
+            if (mode < n_working_modes && occupied_levels_each_mode_BB[mode]++ == 0) {
+                occupied_modes_BB |= 1L << mode;
+            }
+        }
+    }
 
-        if (name_table_BB.size() > capacity_BB) {
-            int outLevel = 0;
-            while (empty_level_BB(outLevel)) {
-                outLevel++;
+    protected void out_of_level_BB(LinkedLevel.Node<Type> node) {
+        int level = node.level();
+        if (segment_last_BB != null) {
+            // the difference is right across the wrap-around of the generations
+            int age = generation_BB - node.generation;
+            int segment = level * (max_age_BB + 1) + Math.floorMod(generation_slot_BB - age, max_age_BB + 1);
+            if (--segment_size_BB[segment] == 0) {
+                segment_last_BB[segment] = null;
+            } else if (segment_last_BB[segment] == node) {
+                segment_last_BB[segment] = node.prev;
             }
+        }
+        size_BB--;
+        if (item_table_BB.remove(node)) {
+            emptied_level_BB(level);
+        }
+    }
+
+    private void emptied_level_BB(int level) {
+        int mode = level / n_levels_each_mode_BB;
+        if (mode < n_working_modes && --occupied_levels_each_mode_BB[mode] == 0) {
+            occupied_modes_BB &= ~(1L << mode);
+        }
+    }
+
+    protected void into_level_IB(LinkedLevel.Node<Type> node, int level) {
+        item_table_IB.add(node, level);
+        size_IB++;
+        mass_IB += (level + 1);
+    }
+
+    protected void out_of_level_IB(LinkedLevel.Node<Type> node) {
+        int level = node.level();
+        item_table_IB.remove(node);
+        size_IB--;
+        mass_IB -= (level + 1);
+    }
+
+    /**
+     * Find an occupied level in the range of a distributor
+     * <p>
+     * The distributor is followed for a few steps, so that the proportions among the levels are kept when the range
+     * is dense, after that the next occupied level is taken from the bitmap, so that a sparse range costs bounded time
+     *
+     * @param distributor The distributor, whose levels are in [start, end]
+     * @param cursors The cursors of the distributors, the selected one is advanced
+     * @param idx The index of the selected cursor
+     * @param occupied The levels
+     * @return The occupied level, or -1 if the range is empty
+     */
+    protected int next_occupied_level(Distributor distributor, int[] cursors, int idx, LevelTable<Type> occupied, int start, int end) {
+        int level = -1;
+        for (int i = 0; i < LEVEL_PROBES; i++) {
+            cursors[idx] = distributor.next(cursors[idx]);
+            level = distributor.pick(cursors[idx]);
+            if (occupied.occupied(level)) {
+                return level;
+            }
+        }
+        BagMetrics m = metrics;
+        if (m != null) {
+            m.scan_fallbacks.increment();
+        }
+        return occupied.nextSetCyclic(level, start, end);
+    }
+
+    protected LinkedLevel.Node<Type> into_base_BB(LinkedLevel.Node<Type> newNode) {
+        Type newItem = newNode.item;
+        LinkedLevel.Node<Type> overflow = null;
+        int inLevel = level_of_BB(newItem.getPriority());
+
+        // the new node is not counted yet
+        if (size_BB + 1 > capacity_BB) {
+            int outLevel = item_table_BB.lowest();
             if (outLevel > inLevel) {
-                return newItem;
+                return newNode;
             } else {
                 overflow = take_out_first_BB(outLevel);
             }
         }
-        item_table_BB.get(inLevel).add(newItem);
+        into_level_BB(newNode, inLevel);
         return overflow;
     }
 
-    protected void put_in_IB_from_BB() {
+    /**
+     * Move one item from the bag buffer to the improved bag
+     * @return Whether an item was moved
+     */
+    protected boolean put_in_IB_from_BB() {
         // if there is nothing to put, return
-        if (name_table_BB.isEmpty()) {
-            return;
+        // (the items may also sit only in the left-over levels which no working mode sends from)
+        if (size_BB == 0 || occupied_modes_BB == 0) {
+            return false;
         }
 
-        boolean m = true;
+        // deciding the working mode, uniformly among the modes which have items in their BB levels
+        int rank = random.nextInt(Long.bitCount(occupied_modes_BB));
+        long modes = occupied_modes_BB;
+        for (int i = 0; i < rank; i++) {
+            modes &= modes - 1;
+        }
+        int selected_working_mode = Long.numberOfTrailingZeros(modes);
+        int direction = random.nextBoolean() ? 0 : 1;
 
-        while (m) {
+        if (input_idx_of_levels_IB == null) {
+            input_idx_of_levels_IB = new int[n_working_modes * 2];
+            output_idx_of_levels_BB = new int[n_working_modes * 2];
+        }
+        int cursor = selected_working_mode * 2 + direction;
 
-            // deciding the working mode and find the distributors (for receiving of IB and sending of BB)
-            int selected_working_mode = (int) (Math.random() * n_working_modes);
-            Distributor selected_output_distributor_BB;
-            int selected_output_idx_of_levels_BB;
-            int selected_output_level_BB;
-            Distributor selected_input_distributor_IB;
-            int selected_input_idx_of_levels_IB;
-            int selected_input_level_IB;
+        // decide the receiving part
+        Distributor selected_input_distributor_IB = input_distributors_IB[selected_working_mode][direction];
+        input_idx_of_levels_IB[cursor] = selected_input_distributor_IB.next(input_idx_of_levels_IB[cursor]);
+        int selected_input_level_IB = selected_input_distributor_IB.pick(input_idx_of_levels_IB[cursor]);
 
-            if (Math.random() < 0.5) {
-                selected_output_distributor_BB = output_distributors_BB[selected_working_mode][0];
-                selected_output_idx_of_levels_BB = output_idx_of_levels_BB[selected_working_mode][0];
-                selected_input_distributor_IB = input_distributors_IB[selected_working_mode][0];
-                selected_input_idx_of_levels_IB = input_idx_of_levels_IB[selected_working_mode][0];
-            } else {
-                selected_output_distributor_BB = output_distributors_BB[selected_working_mode][1];
-                selected_output_idx_of_levels_BB = output_idx_of_levels_BB[selected_working_mode][1];
-                selected_input_distributor_IB = input_distributors_IB[selected_working_mode][1];
-                selected_input_idx_of_levels_IB = input_idx_of_levels_IB[selected_working_mode][1];
-            }
-
-            // decide the receiving part
-            selected_input_idx_of_levels_IB = selected_input_distributor_IB.next(selected_input_idx_of_levels_IB);
-            selected_input_level_IB = selected_input_distributor_IB.pick(selected_input_idx_of_levels_IB);
-
-            // go find a non-empty output BB level
-            selected_output_idx_of_levels_BB = selected_output_distributor_BB.next(selected_output_idx_of_levels_BB);
-            selected_output_level_BB = selected_output_distributor_BB.pick(selected_output_idx_of_levels_BB);
-            int counter = 0;
-            if (empty_level_BB(selected_output_level_BB)) {
-                while (empty_level_BB(selected_output_level_BB) && counter < selected_output_distributor_BB.order.length) {
-                    counter++;
-                    selected_output_idx_of_levels_BB = selected_output_distributor_BB.next(selected_output_idx_of_levels_BB);
-                    selected_output_level_BB = selected_output_distributor_BB.pick(selected_output_idx_of_levels_BB);
-                }
-            }
-            if (!empty_level_BB(selected_output_level_BB)) {
+        // go find a non-empty output BB level
+        int start = selected_working_mode * n_levels_each_mode_BB;
+        int selected_output_level_BB = next_occupied_level(output_distributors_BB[selected_working_mode][direction],
+                output_idx_of_levels_BB, cursor, item_table_BB, start, start + n_levels_each_mode_BB - 1);
 
-                m = false;
+        // the node is moved as it is, from the BB level to the IB level
+        // it stays at its place in the name table, only the location it carries changes
+        LinkedLevel.Node<Type> selected_node = take_out_first_BB(selected_output_level_BB);
+        if (lazy_forgetting) {
+            decay(selected_node);
+        }
 
-                Type selected_item = take_out_first_BB(selected_output_level_BB);
-                name_table_BB.remove(selected_item.name());
+        // put the selected item in IB
+        // if the target IB level is full, pop the first one
+        BagMetrics m = metrics;
+        TransferController c = controller;
+        if (make_room_IB(selected_input_level_IB) && c != null) {
+            c.evictions_IB++;
+        }
+        LinkedLevel.Node<Type> existed = name_table.remove(selected_node.item.name(), LinkedLevel.IB);
+        if (existed != null) {
+            out_of_base_IB(existed);
+            evicted(existed.item, EvictionListener.Cause.REPLACED_IB);
+            if (m != null) {
+                m.replaced_IB.increment();
+            }
+        }
 
-                // put the selected item in IB
-                // if the target IB level is full, pop the first one
-                if (item_table_IB.get(selected_input_level_IB).size() > capacity_each_level_IB) {
-                    Type overflow = take_out_first_IB(selected_input_level_IB);
-                    name_table_IB.remove(overflow.name());
-                    name_table_idx_IB.remove(overflow.name());
-                }
-                boolean mark = out_of_base_IB(selected_item);
-                if (mark) {
-                    name_table_IB.remove(selected_item.name());
-                    name_table_idx_IB.remove(selected_item.name());
-                }
+        into_level_IB(selected_node, selected_input_level_IB);
+        if (m != null) {
+            m.transfers.increment();
+        }
+        if (c != null) {
+            c.transfers++;
+        }
+        return true;
+    }
 
-                item_table_IB.get(selected_input_level_IB).add(selected_item);
-                name_table_IB.put(selected_item.name(), selected_item);
-                name_table_idx_IB.put(selected_item.name(), selected_input_level_IB);
-                mass_IB += (selected_input_level_IB + 1);
-            }
+    /**
+     * Evict the first item of a level of the improved bag if the level is full
+     * @return Whether an item was evicted
+     */
+    private boolean make_room_IB(int level) {
+        if (item_table_IB.size(level) <= capacity_each_level_IB) {
+            return false;
         }
+        LinkedLevel.Node<Type> overflow = take_out_first_IB(level);
+        name_table.remove(overflow);
+        evicted(overflow.item, EvictionListener.Cause.EVICTED_IB);
+        BagMetrics m = metrics;
+        if (m != null) {
+            m.evicted_IB.increment();
+        }
+        return true;
+    }
 
+    /**
+     * Move up to n items from the bag buffer to the improved bag
+     */
+    protected void put_in_IB_from_BB(int n) {
+        for (int i = 0; i < n; i++) {
+            if (!put_in_IB_from_BB()) {
+                return;
+            }
+        }
     }
 
-    protected Type take_out_first_IB(int level) {
-        Type selected = item_table_IB.get(level).get(0);
-        item_table_IB.get(level).remove(0);
-        mass_IB -= (level + 1);
+    protected LinkedLevel.Node<Type> take_out_first_IB(int level) {
+        LinkedLevel.Node<Type> selected = item_table_IB.first(level);
+        out_of_level_IB(selected);
         return selected;
     }
 
-    public Type putIn(Type newItem) {
+    @Override
+    protected Type put_in(Type newItem) {
+        BagMetrics m = metrics;
+        long start = m == null ? 0 : System.nanoTime();
         Type overflow = put_in_BB(newItem);
-        cooldown++;
-        if (cooldown >= 1) {
-            put_in_IB_from_BB();
-            cooldown = 0;
+        // the credit left when the bag buffer runs dry is dropped, it is not spent on the next burst
+        migration_credit += migration_rate;
+        while (migration_credit >= 1) {
+            migration_credit -= 1;
+            if (!put_in_IB_from_BB()) {
+                migration_credit = 0;
+                break;
+            }
+        }
+        TransferController c = controller;
+        if (c != null && ++c.puts >= c.period) {
+            tune(c);
+        }
+        if (m != null) {
+            m.puts.increment();
+            m.put_in_nanos.record(System.nanoTime() - start);
         }
         return overflow;
     }
 
+    @Override
+    protected void put_in_all(Collection<? extends Type> newItems, Consumer<? super Type> overflowSink) {
+        BagMetrics m = metrics;
+        if (m != null) {
+            m.puts.add(newItems.size());
+        }
+        for (Type newItem : newItems) {
+            Type overflow = put_in_BB(newItem);
+            if (overflow != null && overflowSink != null) {
+                overflowSink.accept(overflow);
+            }
+        }
+        put_in_IB_from_BB(transfers(newItems.size()));
+        TransferController c = controller;
+        if (c != null && (c.puts += newItems.size()) >= c.period) {
+            tune(c);
+        }
+    }
+
+    @Override
+    protected int transfers(int batch_size) {
+        return (int) Math.ceil(batch_size * transfer_ratio * migration_rate);
+    }
+
+    /**
+     * @param rate Number of migrations from the bag buffer to the improved bag for each putIn, 1 by default;
+     *             under 1 the items stay longer in the bag buffer, over 1 it is drained faster. It also scales
+     *             the transfers of putInAll.
+     */
+    public void setMigrationRate(float rate) {
+        if (!(rate >= 0)) {
+            throw new IllegalArgumentException("migration rate must not be negative: " + rate);
+        }
+        migration_rate = rate;
+    }
+
+    public float getMigrationRate() {
+        return migration_rate;
+    }
+
+    /**
+     * Change the number of items of the bag buffer, when it shrinks the items of the lowest levels are dropped
+     * @param capacity The new capacity, the one of the spec by default
+     */
+    public void setBufferCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("buffer capacity must be positive: " + capacity);
+        }
+        capacity_BB = capacity;
+        BagMetrics m = metrics;
+        while (size_BB > capacity_BB) {
+            LinkedLevel.Node<Type> dropped = take_out_first_BB(item_table_BB.lowest());
+            name_table.remove(dropped);
+            evicted(dropped.item, EvictionListener.Cause.SHRUNK_BB);
+            if (m != null) {
+                m.evicted_BB.increment();
+            }
+        }
+    }
+
+    public int getBufferCapacity() {
+        return capacity_BB;
+    }
+
+    /**
+     * Bound the age of the items of the bag buffer, counted in generations
+     * <p>
+     * An item is dropped once maxAge generations were closed after the one it was put in, so it stays between
+     * maxAge and maxAge + 1 generations; an item put in again, merged, or moved to another level by relevel or
+     * updatePriority starts over. The items of a level are in the order of their age, so the expired ones are
+     * dropped together from the front of the levels when a generation is closed. The items already in the bag
+     * buffer start over as well.
+     * @param maxAge The number of generations, 0 to keep the items until they are moved or evicted
+     * @param generationLength The number of items put into the bag buffer after which a generation is closed,
+     *                         0 to close them only by closeBufferGeneration, for example once per cycle
+     */
+    public void setBufferMaxAge(int maxAge, int generationLength) {
+        if (maxAge < 0 || generationLength < 0) {
+            throw new IllegalArgumentException("max age and generation length must not be negative: " + maxAge + ", " + generationLength);
+        }
+        max_age_BB = maxAge;
+        generation_length_BB = maxAge == 0 ? 0 : generationLength;
+        generation_puts_BB = 0;
+        restart_generations_BB();
+    }
+
+    // put all the items of the bag buffer in one segment of the current generation
+    private void restart_generations_BB() {
+        generation_slot_BB = 0;
+        if (max_age_BB == 0) {
+            segment_last_BB = null;
+            segment_size_BB = null;
+            return;
+        }
+        segment_last_BB = LinkedLevel.new_nodes(n_levels_BB * (max_age_BB + 1));
+        segment_size_BB = new int[n_levels_BB * (max_age_BB + 1)];
+        for (int level = item_table_BB.lowest(); level >= 0;
+             level = level + 1 < n_levels_BB ? item_table_BB.nextSet(level + 1, n_levels_BB - 1) : -1) {
+            int segment = level * (max_age_BB + 1);
+            for (LinkedLevel.Node<Type> n = item_table_BB.first(level); n != null; n = n.next) {
+                n.generation = generation_BB;
+                segment_last_BB[segment] = n;
+                segment_size_BB[segment]++;
+            }
+        }
+    }
+
+    public int getBufferMaxAge() {
+        return max_age_BB;
+    }
+
+    /**
+     * Close the current generation of the bag buffer and drop the items which are too old
+     * <p>
+     * The expired generation is the first segment of each occupied level, which is cut off at once. So a close
+     * costs one step for each occupied level, then one for each expired item, which leaves the name table and is
+     * reported to the listener and the cold tier.
+     * @return The number of items dropped
+     */
+    public int closeBufferGeneration() {
+        generation_puts_BB = 0;
+        generation_BB++;
+        if (max_age_BB == 0) {
+            return 0;
+        }
+        // the slot of the new generation is the one of the generation which expires
+        generation_slot_BB = (generation_slot_BB + 1) % (max_age_BB + 1);
+        BagMetrics m = metrics;
+        int expired = 0;
+        int level = size_BB == 0 ? -1 : item_table_BB.lowest();
+        while (level >= 0) {
+            int segment = level * (max_age_BB + 1) + generation_slot_BB;
+            LinkedLevel.Node<Type> last = segment_last_BB[segment];
+            if (last != null) {
+                int n = segment_size_BB[segment];
+                segment_last_BB[segment] = null;
+                segment_size_BB[segment] = 0;
+                LinkedLevel.Node<Type> oldest = item_table_BB.removeUpTo(last, n);
+                size_BB -= n;
+                if (!item_table_BB.occupied(level)) {
+                    emptied_level_BB(level);
+                }
+                while (oldest != null) {
+                    LinkedLevel.Node<Type> next = oldest.next;
+                    oldest.prev = null;
+                    oldest.next = null;
+                    name_table.remove(oldest);
+                    evicted(oldest.item, EvictionListener.Cause.EXPIRED_BB);
+                    oldest = next;
+                }
+                expired += n;
+            }
+            level = level + 1 < n_levels_BB ? item_table_BB.nextSet(level + 1, n_levels_BB - 1) : -1;
+        }
+        if (m != null) {
+            m.expired_BB.add(expired);
+        }
+        return expired;
+    }
+
+    /**
+     * Let a controller tune the migration rate and the capacity of the bag buffer from what it observes
+     * @param c A controller of no other bag, or null to keep the current values from now on
+     */
+    public void setTransferController(TransferController c) {
+        if (c != null) {
+            c.reset();
+        }
+        controller = c;
+    }
+
+    private void tune(TransferController c) {
+        float backlog = (float) size_BB / capacity_BB;
+        migration_rate = c.next_rate(migration_rate, backlog);
+        int capacity = c.next_capacity(capacity_BB, spec.buffer_capacity, backlog);
+        if (capacity != capacity_BB) {
+            setBufferCapacity(capacity);
+        }
+        c.reset();
+    }
+
+    /**
+     * Put an item back, after applying the forgetting to it; with the lazy forgetting, the item decays while it is
+     * in the bag instead
+     */
     public Type putBack(final Type oldItem, final float forgetCycles, final Memory m) {
-        final float relativeThreshold = m.narParameters.FORGET_QUALITY_RELATIVE;
-        BudgetFunctions.applyForgetting(oldItem.budget, forgetCycles, relativeThreshold);
-        return putIn(oldItem);
+        TraceRecorder r = recorder;
+        if (r != null) {
+            r.putBack(oldItem, forgetCycles);
+        }
+        if (!lazy_forgetting) {
+            final float relativeThreshold = m.narParameters.FORGET_QUALITY_RELATIVE;
+            BudgetFunctions.applyForgetting(oldItem.budget, forgetCycles, relativeThreshold);
+        }
+        return put_in(oldItem);
     }
 
     public Type takeOut() {
+        BagMetrics m = metrics;
+        Type selected;
+        if (m == null) {
+            selected = take_out(null);
+        } else {
+            long start = System.nanoTime();
+            selected = take_out(m);
+            m.take_out_nanos.record(System.nanoTime() - start);
+            (selected == null ? m.empty_take_outs : m.take_outs).increment();
+        }
+        TraceRecorder r = recorder;
+        if (r != null) {
+            r.takeOut(selected);
+        }
+        return selected;
+    }
 
-        if (name_table_IB.isEmpty()) {
+    private Type take_out(BagMetrics m) {
+
+        if (size_IB == 0) {
             return null;
         }
+        LinkedLevel.Node<Type> selected = take_out_first_IB(select_output_level_IB(m));
+        name_table.remove(selected);
+        if (lazy_forgetting) {
+            decay(selected);
+        }
+        return selected.item;
+    }
+
+    /**
+     * Select the level of the improved bag to fire from, as in NARS, and count the item which will be taken
+     * @return The level, which is not empty as long as the improved bag is not
+     */
+    private int select_output_level_IB(BagMetrics m) {
         if (empty_level_IB(output_level_IB) || (counter_IB == 0)) {
+            // follow the distributor for a few steps, then go to the next occupied level directly
+            int probes = 0;
             do {
                 output_level_IB = output_distributor_IB.pick(output_idx_of_level_IB);
                 output_idx_of_level_IB = output_distributor_IB.next(output_idx_of_level_IB);
-            } while (empty_level_IB(output_level_IB));
+            } while (empty_level_IB(output_level_IB) && ++probes < LEVEL_PROBES);
+            if (empty_level_IB(output_level_IB)) {
+                output_level_IB = item_table_IB.nextSetCyclic(output_level_IB, 0, n_levels_IB - 1);
+                if (m != null) {
+                    m.scan_fallbacks.increment();
+                }
+            }
+            if (m != null) {
+                m.take_out_scan_levels.record(Math.min(probes + 1, LEVEL_PROBES));
+            }
             if (output_level_IB < dormant_level_threshold) {
                 counter_IB = 1;
             } else {
-                counter_IB = item_table_IB.get(output_level_IB).size();
+                counter_IB = item_table_IB.size(output_level_IB);
             }
         }
-        Type selected = take_out_first_IB(output_level_IB);
-        name_table_IB.remove(selected.name());
-        name_table_idx_IB.remove(selected.name());
         counter_IB--;
-        return selected;
+        return output_level_IB;
+    }
+
+    @Override
+    protected Type sample_and_update(UnaryOperator<Type> update) {
+        if (size_IB == 0) {
+            return null;
+        }
+        LinkedLevel.Node<Type> selected = take_out_first_IB(select_output_level_IB(metrics));
+        if (lazy_forgetting) {
+            decay(selected);
+        }
+        Type updated;
+        try {
+            updated = update.apply(selected.item);
+            if (updated != null && !updated.name().equals(selected.item.name())) {
+                throw new IllegalArgumentException("the update changed the key " + selected.item.name() + " to " + updated.name());
+            }
+        } catch (RuntimeException ex) {
+            // the item goes back to its level
+            into_level_IB(selected, selected.level());
+            throw ex;
+        }
+        if (updated == null) {
+            name_table.remove(selected);
+            return null;
+        }
+        LinkedLevel.Node<Type> node = selected;
+        if (updated != selected.item) {
+            node = new LinkedLevel.Node<Type>(updated);
+            node.epoch = (int) clock;
+            name_table.put(node, LinkedLevel.IB);
+        }
+        into_level_IB(node, level_of_IB(updated.getPriority()));
+        return updated;
+    }
+
+    /**
+     * In the improved bag the level follows the priority as in the original Bag, a full level is not trimmed,
+     * the next item moved into it from the bag buffer evicts one.
+     */
+    @Override
+    protected boolean update_priority(K key, float newPriority) {
+        LinkedLevel.Node<Type> node_IB = name_table.get(key, LinkedLevel.IB);
+        LinkedLevel.Node<Type> node_BB = name_table.get(key, LinkedLevel.BB);
+        if (node_IB != null) {
+            node_IB.item.setPriority(newPriority);
+            node_IB.epoch = (int) clock;
+            int level = level_of_IB(newPriority);
+            if (level != node_IB.level()) {
+                out_of_level_IB(node_IB);
+                into_level_IB(node_IB, level);
+            }
+        }
+        if (node_BB != null) {
+            node_BB.item.setPriority(newPriority);
+            node_BB.epoch = (int) clock;
+            int level = level_of_BB(newPriority);
+            if (level != node_BB.level()) {
+                out_of_level_BB(node_BB);
+                into_level_BB(node_BB, level);
+            }
+        }
+        return node_IB != null || node_BB != null;
+    }
+
+    /**
+     * Let the items decay with the clock of the bag instead of in putBack
+     * <p>
+     * An item decays when it is taken out, fired, looked up, merged or moved to the improved bag, by the cycles
+     * elapsed since it last decayed; the time spent out of the bag does not count. relevel moves the decayed
+     * items down to the levels of their priority.
+     * @param forgetCycles As in putBack, the durability is lost over about this many cycles
+     * @param relativeThreshold As in putBack, the share of the quality under which the priority does not decay
+     */
+    public void setLazyForgetting(float forgetCycles, float relativeThreshold) {
+        if (!(forgetCycles > 0)) {
+            throw new IllegalArgumentException("forget cycles must be positive: " + forgetCycles);
+        }
+        forget_cycles = forgetCycles;
+        forget_relative_threshold = relativeThreshold;
+        lazy_forgetting = true;
+    }
+
+    /**
+     * Back to the forgetting in putBack, the items keep the priority they decayed to
+     */
+    public void setEagerForgetting() {
+        lazy_forgetting = false;
+    }
+
+    /**
+     * Advance the clock of the lazy forgetting
+     */
+    public void tick(int cycles) {
+        clock += cycles;
+    }
+
+    public long clock() {
+        return clock;
+    }
+
+    /**
+     * Apply the decay of the cycles elapsed since the item last decayed
+     * <p>
+     * applyForgetting, once per cycle, lowers the priority above the quality floor by about
+     * -ln(durability) / forgetCycles each time, so that amount is taken for each elapsed cycle.
+     */
+    private void decay(LinkedLevel.Node<Type> node) {
+        int now = (int) clock;
+        // the difference is right across the wrap-around of the int epoch
+        int elapsed = now - node.epoch;
+        node.epoch = now;
+        if (elapsed <= 0) {
+            return;
+        }
+        BudgetValue budget = node.item.budget;
+        float floor = budget.getQuality() * forget_relative_threshold;
+        float gap = budget.getPriority() - floor;
+        if (gap > 0) {
+            gap += elapsed * (float) Math.log(budget.getDurability()) / forget_cycles;
+            budget.setPriority(floor + Math.max(gap, 0));
+        }
+    }
+
+    /**
+     * Decay the items of the next levels and move the ones which drifted out of their level
+     * <p>
+     * In the bag buffer an item goes to the level of its priority; in the improved bag, where the level is given by
+     * the working modes, an item only goes down to the level of its priority when it is above it.
+     * The levels are visited in turns, so that a few levels per cycle cover the whole bag over time.
+     * @param max_levels The number of levels to visit
+     * @return The number of items moved
+     */
+    public int relevel(int max_levels) {
+        int total = n_levels_IB + n_levels_BB;
+        int moved = 0;
+        for (int i = 0; i < Math.min(max_levels, total); i++) {
+            int l = relevel_cursor;
+            relevel_cursor = (relevel_cursor + 1) % total;
+            boolean in_IB = l < n_levels_IB;
+            int level = in_IB ? l : l - n_levels_IB;
+            LinkedLevel.Node<Type> n = in_IB ? item_table_IB.first(level) : item_table_BB.first(level);
+            while (n != null) {
+                LinkedLevel.Node<Type> next = n.next;
+                if (lazy_forgetting) {
+                    decay(n);
+                }
+                float priority = n.item.getPriority();
+                if (in_IB) {
+                    int target = level_of_IB(priority);
+                    if (target < level) {
+                        out_of_level_IB(n);
+                        into_level_IB(n, target);
+                        moved++;
+                    }
+                } else {
+                    int target = level_of_BB(priority);
+                    if (target != level) {
+                        out_of_level_BB(n);
+                        into_level_BB(n, target);
+                        moved++;
+                    }
+                }
+                n = next;
+            }
+        }
+        return moved;
     }
 
     protected boolean empty_level_IB(int level) {
-        return item_table_IB.get(level).isEmpty();
+        return !item_table_IB.occupied(level);
     }
 
+    /**
+     * @return The item of the key in the improved bag, taken out; with a cold tier, an item of the key which was
+     *         evicted is taken out of the cold tier
+     */
     public Type pickOut(K key) {
-        Type picked = name_table_IB.get(key);
-        if (picked != null) {
-            boolean mark = out_of_base_IB(picked);
-            if (mark) {
-                name_table_IB.remove(key);
-                name_table_idx_IB.remove(key);
+        LinkedLevel.Node<Type> picked = name_table.remove(key, LinkedLevel.IB);
+        TraceRecorder r = recorder;
+        if (picked == null) {
+            ColdTier<Type, K> c = cold_tier;
+            Type cold = c == null ? null : c.take(key);
+            if (r != null) {
+                r.pickOut(key, cold);
             }
+            return cold;
+        }
+        out_of_base_IB(picked);
+        if (lazy_forgetting) {
+            decay(picked);
+        }
+        BagMetrics m = metrics;
+        if (m != null) {
+            m.pick_outs.increment();
         }
-        return picked;
+        if (r != null) {
+            r.pickOut(key, picked.item);
+        }
+        return picked.item;
     }
 
-    public Type pickOut(Type val) {
-        return pickOut(val.name());
+    protected void out_of_base_IB(LinkedLevel.Node<Type> existedNode) {
+        out_of_level_IB(existedNode);
     }
 
-    protected boolean out_of_base_IB(Type existedItem) {
-        if (name_table_idx_IB.containsKey(existedItem.name())) {
-            int level = name_table_idx_IB.get(existedItem.name());
-            item_table_IB.get(level).remove(existedItem);
-            mass_IB -= level + 1;
-            return true;
+    @Override
+    protected boolean in_bag(K key) {
+        return name_table.get(key, LinkedLevel.IB) != null || name_table.get(key, LinkedLevel.BB) != null;
+    }
+
+    @Override
+    protected Type rehydrate(ColdTier<Type, K> c, K key) {
+        Type item = c.take(key);
+        if (item == null) {
+            return null;
         }
-        return false;
+        // it comes back as a transfer would, evicting the first item of a full level
+        int level = level_of_IB(item.getPriority());
+        make_room_IB(level);
+        LinkedLevel.Node<Type> node = new LinkedLevel.Node<Type>(item);
+        node.epoch = (int) clock;
+        name_table.put(node, LinkedLevel.IB);
+        into_level_IB(node, level);
+        return item;
     }
 
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder(" ");
-        for (int i = n_levels_IB; i >= 0; i--) {
+        for (int i = n_levels_IB; i > 0; i--) {
             if (!empty_level_IB(i - 1)) {
                 buf.append("\n --- Level ").append(i).append(":\n ");
-                for (int j = 0; j < item_table_IB.get(i - 1).size(); j++) {
-                    buf.append(item_table_IB.get(i - 1).get(j).toString()).append("\n ");
+                for (Type item : item_table_IB.get(i - 1)) {
+                    buf.append(item.toString()).append("\n ");
                 }
             }
         }
@@ -410,14 +993,15 @@ public class Bag<Type extends Item<K>, K> implements Serializable, Iterable<Type
     /**
      * TODO bad paste from preceding
      */
+    @Override
     public String toStringLong() {
         StringBuilder buf = new StringBuilder(" BAG " + getClass().getSimpleName());
         buf.append(" ").append(showSizes());
-        for (int i = n_levels_IB; i >= 0; i--) {
+        for (int i = n_levels_IB; i > 0; i--) {
             if (!empty_level_IB(i - 1)) {
                 buf.append("\n --- LEVEL ").append(i).append(":\n ");
-                for (int j = 0; j < item_table_IB.get(i - 1).size(); j++) {
-                    buf.append(item_table_IB.get(i - 1).get(j).toStringLong()).append("\n ");
+                for (Type item : item_table_IB.get(i - 1)) {
+                    buf.append(item.toStringLong()).append("\n ");
                 }
             }
         }
@@ -428,7 +1012,8 @@ public class Bag<Type extends Item<K>, K> implements Serializable, Iterable<Type
     String showSizes() {
         StringBuilder buf = new StringBuilder(" ");
         int levels = 0;
-        for (ArrayList<Type> items : item_table_IB) {
+        for (int i = 0; i < n_levels_IB; i++) {
+            LinkedLevel<Type> items = item_table_IB.get(i);
             if ((items != null) && !items.isEmpty()) {
                 levels++;
                 buf.append(items.size()).append(" ");
@@ -439,11 +1024,327 @@ public class Bag<Type extends Item<K>, K> implements Serializable, Iterable<Type
 
     public int size() {
 
-        return name_table_IB.size();
+        return size_IB;
+    }
+
+    @Override
+    protected int level_size_IB(int level) {
+        return item_table_IB.size(level);
+    }
+
+    @Override
+    protected int level_size_BB(int level) {
+        return item_table_BB.size(level);
     }
 
+    /**
+     * Iterate the items of the improved bag, from the highest level down
+     */
     @Override
     public Iterator<Type> iterator() {
-        return name_table_IB.values().iterator();
+        return new Iterator<Type>() {
+            private int level = n_levels_IB;
+            private LinkedLevel.Node<Type> cursor = null;
+
+            @Override
+            public boolean hasNext() {
+                while (cursor == null && level > 0) {
+                    level = level - 1;
+                    cursor = item_table_IB.first(level);
+                }
+                return cursor != null;
+            }
+
+            @Override
+            public Type next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Type item = cursor.item;
+                cursor = cursor.next;
+                return item;
+            }
+        };
+    }
+
+    @Override
+    public void forEachInLevelRange(int lo, int hi, Consumer<? super Type> action) {
+        if (lo < 0 || hi >= n_levels_IB) {
+            throw new IllegalArgumentException("levels [" + lo + ", " + hi + "] out of [0, " + (n_levels_IB - 1) + "]");
+        }
+        for (int level = hi; level >= lo; level--) {
+            for (LinkedLevel.Node<Type> n = item_table_IB.first(level); n != null; n = n.next) {
+                action.accept(n.item);
+            }
+        }
+    }
+
+    /**
+     * Split by ranges of levels, so that a parallel stream reads the levels of the improved bag on several cores;
+     * the bag must not change while it is read
+     */
+    @Override
+    public Spliterator<Type> spliterator() {
+        return new LevelSpliterator(0, n_levels_IB - 1);
+    }
+
+    /**
+     * Spliterator over a range of levels of the improved bag, from the highest level down
+     */
+    private final class LevelSpliterator implements Spliterator<Type> {
+        private final int lo;
+        // the next level to enter
+        private int hi;
+        private LinkedLevel.Node<Type> cursor;
+        private long remaining;
+
+        LevelSpliterator(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+            for (int level = lo; level <= hi; level++) {
+                remaining += item_table_IB.size(level);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Type> action) {
+            while (cursor == null) {
+                if (hi < lo) {
+                    return false;
+                }
+                cursor = item_table_IB.first(hi--);
+            }
+            Type item = cursor.item;
+            cursor = cursor.next;
+            remaining--;
+            action.accept(item);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Type> action) {
+            while (true) {
+                for (; cursor != null; cursor = cursor.next) {
+                    action.accept(cursor.item);
+                }
+                if (hi < lo) {
+                    break;
+                }
+                cursor = item_table_IB.first(hi--);
+            }
+            remaining = 0;
+        }
+
+        /**
+         * Split off the upper levels which hold about half of the items, only between two levels
+         */
+        @Override
+        public Spliterator<Type> trySplit() {
+            if (cursor != null || hi <= lo || remaining < 2) {
+                return null;
+            }
+            // the upper part is [mid, hi], the lower one keeps at least the level lo
+            int mid = hi;
+            long upper = item_table_IB.size(mid);
+            while (mid - 1 > lo && (upper + item_table_IB.size(mid - 1)) * 2 <= remaining) {
+                mid--;
+                upper += item_table_IB.size(mid);
+            }
+            LevelSpliterator prefix = new LevelSpliterator(mid, hi);
+            hi = mid - 1;
+            remaining -= prefix.remaining;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+        }
+    }
+
+    /**
+     * Write a snapshot record of the bag: the spec, the state of the distributors and the items of the levels in
+     * their order, each item through the codec
+     * <p>
+     * An incremental record holds only the levels which changed since the last snapshot was written or read, a
+     * full one is written instead if there was none since the bag was created, cleared or deserialized, or if the
+     * last one failed. Items changed in place, without being put in again, are not seen as changes.
+     */
+    @Override
+    public void writeSnapshot(WritableByteChannel out, ItemCodec<? super Type> codec, boolean incremental) throws IOException {
+        boolean full = !incremental || !snapshot_written;
+        // the changes are forgotten level by level while they are written, after a failure the next one is full
+        snapshot_written = false;
+        SnapshotWriter w = new SnapshotWriter(out);
+        write_snapshot_header(w, full);
+
+        w.putInt(capacity_BB);
+        w.putFloat(migration_rate);
+        w.putFloat(migration_credit);
+        w.putInt(counter_IB);
+        w.putInt(output_level_IB);
+        w.putInt(output_idx_of_level_IB);
+        w.putFloat(transfer_ratio);
+        // a bag which reads it continues the sequence, ConcurrentBag has no random state to write
+        w.put((byte) 1);
+        w.putLong(random.state());
+        w.put((byte) (input_idx_of_levels_IB != null ? 1 : 0));
+        if (input_idx_of_levels_IB != null) {
+            for (int i = 0; i < n_working_modes * 2; i++) {
+                w.putInt(input_idx_of_levels_IB[i]);
+                w.putInt(output_idx_of_levels_BB[i]);
+            }
+        }
+
+        int n_records = 0;
+        for (int region = LinkedLevel.IB; region <= LinkedLevel.BB; region++) {
+            LevelTable<Type> table = region == LinkedLevel.IB ? item_table_IB : item_table_BB;
+            int n_levels = region == LinkedLevel.IB ? n_levels_IB : n_levels_BB;
+            for (int i = 0; i < n_levels; i++) {
+                if (full ? table.occupied(i) : table.changed(i)) {
+                    n_records++;
+                }
+            }
+        }
+        w.putInt(n_records);
+        for (int region = LinkedLevel.IB; region <= LinkedLevel.BB; region++) {
+            LevelTable<Type> table = region == LinkedLevel.IB ? item_table_IB : item_table_BB;
+            int n_levels = region == LinkedLevel.IB ? n_levels_IB : n_levels_BB;
+            for (int i = 0; i < n_levels; i++) {
+                if (full ? table.occupied(i) : table.changed(i)) {
+                    w.put((byte) region);
+                    w.putInt(i);
+                    w.putInt(table.size(i));
+                    for (LinkedLevel.Node<Type> n = table.first(i); n != null; n = n.next) {
+                        w.putItem(n.item, codec);
+                    }
+                }
+            }
+            table.clearChanged();
+        }
+        w.flush();
+        snapshot_written = true;
+    }
+
+    /**
+     * Apply the snapshot records of the buffer to the bag, a full record replaces the content of the bag and an
+     * incremental one replaces the levels it holds
+     * @throws StreamCorruptedException If the buffer holds no snapshot, or one of a bag with another spec
+     */
+    @Override
+    public void readSnapshot(ByteBuffer in, ItemCodec<? extends Type> codec) throws IOException {
+        while (in.hasRemaining()) {
+            boolean full = read_snapshot_header(in);
+            if (full) {
+                clear();
+            }
+
+            capacity_BB = in.getInt();
+            migration_rate = in.getFloat();
+            migration_credit = in.getFloat();
+            counter_IB = in.getInt();
+            output_level_IB = in.getInt();
+            output_idx_of_level_IB = in.getInt();
+            transfer_ratio = in.getFloat();
+            if (in.get() != 0) {
+                random = new SplitMix64(in.getLong());
+            }
+            if (in.get() != 0) {
+                input_idx_of_levels_IB = new int[n_working_modes * 2];
+                output_idx_of_levels_BB = new int[n_working_modes * 2];
+                for (int i = 0; i < n_working_modes * 2; i++) {
+                    input_idx_of_levels_IB[i] = in.getInt();
+                    output_idx_of_levels_BB[i] = in.getInt();
+                }
+            }
+
+            int n_records = in.getInt();
+            int items_start = in.position();
+            if (!full) {
+                // the levels are emptied first, an item may have moved into a level which comes earlier
+                for (int r = 0; r < n_records; r++) {
+                    int region = in.get();
+                    int level = in.getInt();
+                    int n = in.getInt();
+                    LevelTable<Type> table = region == LinkedLevel.IB ? item_table_IB : item_table_BB;
+                    for (LinkedLevel.Node<Type> node = table.first(level); node != null; node = table.first(level)) {
+                        remove_node(node);
+                    }
+                    for (int i = 0; i < n; i++) {
+                        in.position(in.position() + 4 + in.getInt(in.position()));
+                    }
+                }
+                in.position(items_start);
+            }
+            for (int r = 0; r < n_records; r++) {
+                int region = in.get();
+                int level = in.getInt();
+                int n = in.getInt();
+                for (int i = 0; i < n; i++) {
+                    int length = in.getInt();
+                    ByteBuffer bytes = in.slice();
+                    bytes.limit(length);
+                    in.position(in.position() + length);
+                    LinkedLevel.Node<Type> node = new LinkedLevel.Node<Type>(codec.decode(bytes));
+                    node.epoch = (int) clock;
+                    LinkedLevel.Node<Type> replaced = name_table.put(node, region);
+                    if (replaced != null) {
+                        remove_level_node(replaced);
+                    }
+                    if (region == LinkedLevel.IB) {
+                        into_level_IB(node, level);
+                    } else {
+                        into_level_BB(node, level);
+                    }
+                }
+            }
+        }
+        item_table_IB.clearChanged();
+        item_table_BB.clearChanged();
+        snapshot_written = true;
+    }
+
+    private void remove_node(LinkedLevel.Node<Type> node) {
+        remove_level_node(node);
+        name_table.remove(node);
+    }
+
+    private void remove_level_node(LinkedLevel.Node<Type> node) {
+        if (node.region() == LinkedLevel.IB) {
+            out_of_level_IB(node);
+        } else {
+            out_of_level_BB(node);
+        }
+    }
+
+    @Override
+    protected boolean appends_snapshot() {
+        return snapshot_written;
+    }
+
+    // the name table points into the levels, so it is rebuilt from the levels instead of being serialized
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        name_table = new ItemIndex<Type>();
+        // the items kept the priority they decayed to, the lazy forgetting and the ages start over
+        for (int i = 0; i < n_levels_IB; i++) {
+            for (LinkedLevel.Node<Type> n = item_table_IB.first(i); n != null; n = n.next) {
+                name_table.put(n, LinkedLevel.IB);
+                n.epoch = (int) clock;
+            }
+        }
+        for (int i = 0; i < n_levels_BB; i++) {
+            for (LinkedLevel.Node<Type> n = item_table_BB.first(i); n != null; n = n.next) {
+                name_table.put(n, LinkedLevel.BB);
+                n.epoch = (int) clock;
+                n.generation = generation_BB;
+            }
+        }
+        restart_generations_BB();
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Concept;
+import org.opennars.entity.Item;
+import org.opennars.entity.Sentence;
+import org.opennars.entity.Task;
+import org.opennars.language.Term;
+import org.opennars.main.Parameters;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Builds the bags of a {@link Memory} with the levels and sizes of the parameters, each one of the kind chosen
+ * for it, so that a bag can get the structure which suits its access pattern.
+ * <p>
+ * The size is the number of items of the whole bag, as for the original LevelBag, and each kind gets it in the
+ * form its constructor takes, rounded down, so the improved bags hold at most as many items as the level bag
+ * unless the size is smaller than the number of levels.
+ * <p>
+ * All the bags are improved Bags unless another kind is set, with setKind or with a system property named after
+ * the bag, for example {@code -Dorg.opennars.storage.bag.novelTasks=level}.
+ */
+public final class BagFactory {
+
+    public enum Kind {
+        /** the original level bag, LevelBag */
+        LEVEL,
+        /** the two-tier Bag */
+        IMPROVED,
+        /** the two-tier bag for many threads, ConcurrentBag */
+        CONCURRENT,
+        /** independent two-tier bags, one for each processor, ShardedBag */
+        SHARDED;
+
+        /**
+         * @param name The name of a kind, in any case
+         */
+        public static Kind of(final String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("unknown bag kind: " + name);
+            }
+        }
+    }
+
+    // the bags of a memory
+    public static final String CONCEPTS = "concepts";
+    public static final String NOVEL_TASKS = "novelTasks";
+    public static final String SEQ_CURRENT = "seq_current";
+    public static final String RECENT_OPERATIONS = "recent_operations";
+
+    public static final String PROPERTY_PREFIX = "org.opennars.storage.bag.";
+
+    private final Parameters parameters;
+    private final Map<String, Kind> kinds = new HashMap<String, Kind>();
+    private int shards = Runtime.getRuntime().availableProcessors();
+
+    public BagFactory(final Parameters parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * @param bag The name of a bag, one of those of a memory or any other one passed to create
+     */
+    public BagFactory setKind(final String bag, final Kind kind) {
+        kinds.put(bag, kind);
+        return this;
+    }
+
+    /**
+     * @return The kind set for the bag, else the one of its system property, else IMPROVED
+     */
+    public Kind getKind(final String bag) {
+        final Kind kind = kinds.get(bag);
+        if (kind != null) {
+            return kind;
+        }
+        final String property = System.getProperty(PROPERTY_PREFIX + bag);
+        return property == null ? Kind.IMPROVED : Kind.of(property);
+    }
+
+    /**
+     * @param shards The number of shards of a SHARDED bag, the number of processors by default
+     */
+    public BagFactory setShards(final int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        this.shards = shards;
+        return this;
+    }
+
+    public <Type extends Item<K>, K> ItemBag<Type, K> create(final String bag, final int levels, final int capacity) {
+        return create(getKind(bag), levels, capacity);
+    }
+
+    /**
+     * @param capacity The number of items of the whole bag: LevelBag takes it as it is, the improved bags take
+     *                 their share for each level of the improved bag, at least one, and each shard of a ShardedBag
+     *                 its share of that; with fewer items per level than shards, there are fewer shards, so that
+     *                 each one still holds an item per level
+     */
+    public <Type extends Item<K>, K> ItemBag<Type, K> create(final Kind kind, final int levels, final int capacity) {
+        final int perLevel = Math.max(1, capacity / levels);
+        final int shardCount = Math.min(shards, perLevel);
+        switch (kind) {
+            case LEVEL:
+                return new LevelBag<Type, K>(levels, capacity, parameters);
+            case IMPROVED:
+                return new Bag<Type, K>(levels, perLevel, parameters);
+            case CONCURRENT:
+                return new ConcurrentBag<Type, K>(levels, perLevel, parameters);
+            case SHARDED:
+                return new ShardedBag<Type, K>(levels, perLevel / shardCount, (int) (parameters.BAG_THRESHOLD * levels), shardCount);
+            default:
+                throw new IllegalArgumentException("unknown bag kind: " + kind);
+        }
+    }
+
+    public ItemBag<Concept, Term> concepts() {
+        return create(CONCEPTS, parameters.CONCEPT_BAG_LEVELS, parameters.CONCEPT_BAG_SIZE);
+    }
+
+    public ItemBag<Task<Term>, Sentence<Term>> novelTasks() {
+        return create(NOVEL_TASKS, parameters.NOVEL_TASK_BAG_LEVELS, parameters.NOVEL_TASK_BAG_SIZE);
+    }
+
+    public ItemBag<Task<Term>, Sentence<Term>> seqCurrent() {
+        return create(SEQ_CURRENT, parameters.SEQUENCE_BAG_LEVELS, parameters.SEQUENCE_BAG_SIZE);
+    }
+
+    public ItemBag<Task<Term>, Sentence<Term>> recentOperations() {
+        return create(RECENT_OPERATIONS, parameters.OPERATION_BAG_LEVELS, parameters.OPERATION_BAG_SIZE);
+    }
+
+    /**
+     * @return A new memory with a bag of the chosen kind for each of its bags
+     */
+    public Memory memory() {
+        return new Memory(parameters, concepts(), novelTasks(), seqCurrent(), recentOperations());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of a Bag, updated on the hot path while the metrics are enabled.
+ * <p>
+ * Recording never allocates: the counters are LongAdders and the histograms have one bucket per power of two,
+ * so they are safe for {@link ConcurrentBag} as well.
+ */
+final class BagMetrics {
+
+    // the bag buffer
+    final LongAdder puts = new LongAdder();
+    final LongAdder merges_BB = new LongAdder();
+    final LongAdder rejected_BB = new LongAdder();
+    final LongAdder evicted_BB = new LongAdder();
+    final LongAdder expired_BB = new LongAdder();
+
+    // the moves from the bag buffer to the improved bag
+    final LongAdder transfers = new LongAdder();
+    final LongAdder evicted_IB = new LongAdder();
+    final LongAdder replaced_IB = new LongAdder();
+
+    // the improved bag
+    final LongAdder take_outs = new LongAdder();
+    final LongAdder empty_take_outs = new LongAdder();
+    final LongAdder pick_outs = new LongAdder();
+    final LongAdder scan_fallbacks = new LongAdder();
+
+    final Histogram put_in_nanos = new Histogram();
+    final Histogram take_out_nanos = new Histogram();
+    // levels looked at by takeOut to find the next occupied level
+    final Histogram take_out_scan_levels = new Histogram();
+
+    /**
+     * Histogram with logarithmic buckets, bucket i counts the values in [2^(i-1), 2^i - 1], bucket 0 counts 0
+     */
+    static final class Histogram {
+        static final int BUCKETS = 65;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(value, 0)));
+        }
+
+        long[] snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+    }
+}
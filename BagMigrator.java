@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Item;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Background migration of a {@link ConcurrentBag}.
+ * <p>
+ * putIn only appends the item to a bounded lock-free ingest queue. A dedicated thread drains the queue in
+ * batches into the bag buffer and moves items to the improved bag, as putInAll does, so the migration keeps the
+ * transfer ratio of the bag. When the queue is full, putIn waits until the thread has taken a batch, and when the
+ * bag buffer is full, putIn puts the item in itself as in the synchronous mode and gets the overflow back; that is
+ * the backpressure on the producers. Only the items already queued when the bag buffer fills up overflow to the
+ * sink.
+ */
+final class BagMigrator<Type extends Item<K>, K> implements Runnable {
+
+    // how long the thread sleeps when there is nothing to do, it is woken up by new items anyway
+    private static final long IDLE_NANOS = 1_000_000L;
+
+    private final ConcurrentBag<Type, K> bag;
+    private final ConcurrentLinkedQueue<Type> queue = new ConcurrentLinkedQueue<Type>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final int capacity;
+    private final int batch_size;
+    private final Consumer<? super Type> overflowSink;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+
+    // set by stop, an offer in progress is counted so that stop drains the queue after the last one
+    private volatile boolean closed = false;
+    private final AtomicInteger offering = new AtomicInteger();
+
+    // the producers waiting for room in the queue
+    private final ReentrantLock room_lock = new ReentrantLock();
+    private final Condition room = room_lock.newCondition();
+    private volatile int waiting = 0;
+
+    /**
+     * @param capacity Maximum number of queued items
+     * @param batch_size Maximum number of items ingested at once
+     * @param overflowSink Receives the items which did not fit into the bag buffer, may be null
+     */
+    BagMigrator(ConcurrentBag<Type, K> bag, int capacity, int batch_size, Consumer<? super Type> overflowSink) {
+        this.bag = bag;
+        this.capacity = capacity;
+        this.batch_size = batch_size;
+        this.overflowSink = overflowSink;
+        this.thread = new Thread(this, "bag-migrator");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue an item, waiting while the queue is full
+     * @return Whether the item was queued, false once the migrator is stopped, while the bag buffer is full, or if
+     *         the calling thread is the migrator or is interrupted while it waits
+     */
+    boolean offer(Type item) {
+        offering.incrementAndGet();
+        try {
+            while (!closed) {
+                if (bag.buffer_full()) {
+                    return false;
+                }
+                if (queued.incrementAndGet() <= capacity) {
+                    queue.offer(item);
+                    if (idle) {
+                        LockSupport.unpark(thread);
+                    }
+                    return true;
+                }
+                queued.decrementAndGet();
+                // the overflow sink of the migrator may put items in, it must not wait for itself
+                if (Thread.currentThread() == thread || !await_room()) {
+                    return false;
+                }
+            }
+            return false;
+        } finally {
+            offering.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return False if the thread was interrupted
+     */
+    private boolean await_room() {
+        room_lock.lock();
+        try {
+            waiting++;
+            // timed, so that a batch taken between the check of the queue and the wait is not missed for long
+            while (queued.get() >= capacity && !closed) {
+                room.await(IDLE_NANOS, TimeUnit.NANOSECONDS);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting--;
+            room_lock.unlock();
+        }
+    }
+
+    private void signal_room() {
+        if (waiting > 0) {
+            room_lock.lock();
+            try {
+                room.signalAll();
+            } finally {
+                room_lock.unlock();
+            }
+        }
+    }
+
+    int queued() {
+        return queued.get();
+    }
+
+    void discard() {
+        while (queue.poll() != null) {
+            queued.decrementAndGet();
+        }
+        signal_room();
+    }
+
+    /**
+     * Stop the thread, the items still queued are put into the bag by the calling thread
+     * <p>
+     * The waiting producers and those which come later put their items in themselves.
+     */
+    void stop() throws InterruptedException {
+        closed = true;
+        signal_room();
+        // an offer which has not seen the flag may still queue its item
+        while (offering.get() > 0) {
+            Thread.yield();
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        thread.join();
+        ArrayList<Type> rest = new ArrayList<Type>();
+        Type item;
+        while ((item = queue.poll()) != null) {
+            queued.decrementAndGet();
+            rest.add(item);
+        }
+        bag.ingest(rest, overflowSink);
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Type> batch = new ArrayList<Type>(batch_size);
+        while (running) {
+            Type item;
+            while (batch.size() < batch_size && (item = queue.poll()) != null) {
+                batch.add(item);
+            }
+            if (batch.isEmpty()) {
+                park();
+                continue;
+            }
+            queued.addAndGet(-batch.size());
+            signal_room();
+            bag.ingest(batch, overflowSink);
+            batch.clear();
+        }
+    }
+
+    private void park() {
+        idle = true;
+        if (running && queue.isEmpty()) {
+            LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+        idle = false;
+    }
+}
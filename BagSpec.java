@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable shape of a Bag: levels, capacity, threshold, working modes and the size of the bag buffer, with the
+ * distributors derived from it.
+ * <p>
+ * Specs are interned by {@link #of(int, int, int, int, int, int)} and the distributors are cached by range, so the many
+ * bags of one shape share one set of distributor tables.
+ */
+public final class BagSpec implements Serializable {
+
+    public static final int DEFAULT_WORKING_MODES = 5;
+    // by default the bag buffer has twice the levels and 10 times the items of the improved bag
+    public static final int DEFAULT_BUFFER_LEVELS_FACTOR = 2;
+    public static final int DEFAULT_BUFFER_CAPACITY_FACTOR = 10;
+
+    // widest range of levels which still gets the order table of Distributor
+    static final int ALIAS_RANGE = 128;
+
+    private static final ConcurrentHashMap<BagSpec, BagSpec> specs = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, Distributor> distributors = new ConcurrentHashMap<>();
+
+    public final int levels;
+    public final int capacity;
+    public final int threshold;
+    public final int working_modes;
+    // levels and capacity of the bag buffer
+    public final int buffer_levels;
+    public final int buffer_capacity;
+
+    // derived, as in Bag
+    final transient Distributor output_distributor_IB;
+    final transient Distributor[][] input_distributors_IB;
+    final transient Distributor[][] output_distributors_BB;
+
+    // the key of a spec in the cache, without the distributors
+    private BagSpec(final int levels, final int capacity, final int threshold, final int working_modes,
+                    final int buffer_levels, final int buffer_capacity) {
+        this.levels = levels;
+        this.capacity = capacity;
+        this.threshold = threshold;
+        this.working_modes = working_modes;
+        this.buffer_levels = buffer_levels;
+        this.buffer_capacity = buffer_capacity;
+        this.output_distributor_IB = null;
+        this.input_distributors_IB = null;
+        this.output_distributors_BB = null;
+    }
+
+    private BagSpec(final BagSpec key) {
+        levels = key.levels;
+        capacity = key.capacity;
+        threshold = key.threshold;
+        working_modes = key.working_modes;
+        buffer_levels = key.buffer_levels;
+        buffer_capacity = key.buffer_capacity;
+
+        int n_levels_each_mode_IB = levels / working_modes;
+        int n_levels_each_mode_BB = buffer_levels / working_modes;
+        output_distributor_IB = distributor(0, levels - 1, false);
+        input_distributors_IB = new Distributor[working_modes][2];
+        output_distributors_BB = new Distributor[working_modes][2];
+        for (int i = 0; i < working_modes; i++) {
+            input_distributors_IB[i][0] = distributor(i * n_levels_each_mode_IB, (i + 1) * n_levels_each_mode_IB - 1, false);
+            input_distributors_IB[i][1] = distributor(i * n_levels_each_mode_IB, (i + 1) * n_levels_each_mode_IB - 1, true);
+            output_distributors_BB[i][0] = distributor(i * n_levels_each_mode_BB, (i + 1) * n_levels_each_mode_BB - 1, false);
+            output_distributors_BB[i][1] = distributor(i * n_levels_each_mode_BB, (i + 1) * n_levels_each_mode_BB - 1, true);
+        }
+    }
+
+    public static BagSpec of(final int levels, final int capacity, final int threshold) {
+        return of(levels, capacity, threshold, DEFAULT_WORKING_MODES);
+    }
+
+    /**
+     * @param levels Levels of the improved bag, the bag buffer has twice as many; at least one per working mode
+     * @param capacity Capacity of each level of the improved bag, the bag buffer holds 10 times as many items
+     * @param threshold Under this level, the levels are dormant, 0 disables the effect
+     * @param working_modes Number of working modes, at most 64
+     */
+    public static BagSpec of(final int levels, final int capacity, final int threshold, final int working_modes) {
+        return of(levels, capacity, threshold, working_modes,
+                levels * DEFAULT_BUFFER_LEVELS_FACTOR, capacity * DEFAULT_BUFFER_CAPACITY_FACTOR);
+    }
+
+    /**
+     * @param buffer_levels Levels of the bag buffer, at least one per working mode
+     * @param buffer_capacity Number of items of the bag buffer, the initial one if a TransferController resizes it
+     */
+    public static BagSpec of(final int levels, final int capacity, final int threshold, final int working_modes,
+                             final int buffer_levels, final int buffer_capacity) {
+        if (working_modes < 1 || working_modes > 64) {
+            throw new IllegalArgumentException("working modes must be in [1, 64]: " + working_modes);
+        }
+        if (levels < working_modes) {
+            throw new IllegalArgumentException("at least one level per working mode is needed: " + levels + " levels, " + working_modes + " modes");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (buffer_levels < working_modes) {
+            throw new IllegalArgumentException("at least one buffer level per working mode is needed: " + buffer_levels + " levels, " + working_modes + " modes");
+        }
+        if (buffer_capacity < 1) {
+            throw new IllegalArgumentException("buffer capacity must be positive: " + buffer_capacity);
+        }
+        BagSpec key = new BagSpec(levels, capacity, threshold, working_modes, buffer_levels, buffer_capacity);
+        BagSpec spec = specs.get(key);
+        return spec != null ? spec : specs.computeIfAbsent(key, BagSpec::new);
+    }
+
+    /**
+     * The order table of Distributor has range * (range + 1) / 2 entries, above ALIAS_RANGE levels the alias table
+     * with the same proportions is used instead
+     */
+    static Distributor distributor(final int start, final int end, final boolean inverse) {
+        long key = ((long) start << 32) | ((long) end << 1) | (inverse ? 1 : 0);
+        return distributors.computeIfAbsent(key, k -> end - start + 1 > ALIAS_RANGE
+                ? new AliasDistributor(start, end, inverse)
+                : new Distributor(start, end, inverse));
+    }
+
+    // a deserialized spec is replaced by the shared one
+    private Object readResolve() {
+        return of(levels, capacity, threshold, working_modes, buffer_levels, buffer_capacity);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof BagSpec)) {
+            return false;
+        }
+        BagSpec s = (BagSpec) o;
+        return levels == s.levels && capacity == s.capacity && threshold == s.threshold && working_modes == s.working_modes
+                && buffer_levels == s.buffer_levels && buffer_capacity == s.buffer_capacity;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(levels, capacity, threshold, working_modes, buffer_levels, buffer_capacity);
+    }
+
+    @Override
+    public String toString() {
+        return "BagSpec(levels " + levels + ", capacity " + capacity + ", threshold " + threshold + ", working modes " + working_modes
+                + ", buffer levels " + buffer_levels + ", buffer capacity " + buffer_capacity + ")";
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+/**
+ * Snapshot of the metrics and of the level occupancy of a Bag, see {@link Bag#stats()}.
+ * <p>
+ * The counters count since the metrics were enabled, they are 0 while the metrics are disabled.
+ * The occupancy is always filled in.
+ */
+public final class BagStats {
+
+    public final boolean metrics_enabled;
+
+    // number of items in each level, the lowest level first
+    public final int[] levels_IB;
+    public final int[] levels_BB;
+    public final int size_IB;
+    public final int size_BB;
+
+    /** items put in */
+    public final long puts;
+    /** items merged with a buffered item of the same key */
+    public final long merges_BB;
+    /** items dropped when put in, as the bag buffer was full of higher items */
+    public final long rejected_BB;
+    /** buffered items evicted for a higher item */
+    public final long evicted_BB;
+    /** buffered items dropped for their age, see {@link Bag#setBufferMaxAge} */
+    public final long expired_BB;
+
+    /** items moved from the bag buffer to the improved bag */
+    public final long transfers;
+    /** items evicted from a full improved bag level by a transfer */
+    public final long evicted_IB;
+    /** items of the improved bag replaced by a newer copy from the bag buffer */
+    public final long replaced_IB;
+
+    public final long take_outs;
+    /** takeOut calls which found the improved bag empty */
+    public final long empty_take_outs;
+    public final long pick_outs;
+    /** level scans which ran out of probes and went to the next occupied level directly */
+    public final long scan_fallbacks;
+
+    public final Histogram put_in_nanos;
+    public final Histogram take_out_nanos;
+    /** levels looked at by takeOut to find the next occupied level */
+    public final Histogram take_out_scan_levels;
+
+    BagStats(final BagMetrics m, final int[] levels_IB, final int[] levels_BB) {
+        this.metrics_enabled = m != null;
+        this.levels_IB = levels_IB;
+        this.levels_BB = levels_BB;
+        this.size_IB = sum(levels_IB);
+        this.size_BB = sum(levels_BB);
+        this.puts = m == null ? 0 : m.puts.sum();
+        this.merges_BB = m == null ? 0 : m.merges_BB.sum();
+        this.rejected_BB = m == null ? 0 : m.rejected_BB.sum();
+        this.evicted_BB = m == null ? 0 : m.evicted_BB.sum();
+        this.expired_BB = m == null ? 0 : m.expired_BB.sum();
+        this.transfers = m == null ? 0 : m.transfers.sum();
+        this.evicted_IB = m == null ? 0 : m.evicted_IB.sum();
+        this.replaced_IB = m == null ? 0 : m.replaced_IB.sum();
+        this.take_outs = m == null ? 0 : m.take_outs.sum();
+        this.empty_take_outs = m == null ? 0 : m.empty_take_outs.sum();
+        this.pick_outs = m == null ? 0 : m.pick_outs.sum();
+        this.scan_fallbacks = m == null ? 0 : m.scan_fallbacks.sum();
+        this.put_in_nanos = new Histogram(m == null ? null : m.put_in_nanos);
+        this.take_out_nanos = new Histogram(m == null ? null : m.take_out_nanos);
+        this.take_out_scan_levels = new Histogram(m == null ? null : m.take_out_scan_levels);
+    }
+
+    private static int sum(final int[] values) {
+        int sum = 0;
+        for (int v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    /**
+     * Snapshot of a histogram with logarithmic buckets, bucket i counts the values in [2^(i-1), 2^i - 1]
+     */
+    public static final class Histogram {
+
+        private final long[] buckets;
+        private final long count;
+
+        Histogram(final BagMetrics.Histogram h) {
+            buckets = h == null ? new long[BagMetrics.Histogram.BUCKETS] : h.snapshot();
+            long n = 0;
+            for (long b : buckets) {
+                n += b;
+            }
+            count = n;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long bucket(final int i) {
+            return buckets[i];
+        }
+
+        /**
+         * @param q The quantile, in [0, 1]
+         * @return The upper bound of the bucket holding the quantile, so at most twice the exact value; 0 if empty
+         */
+        public long quantile(final double q) {
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " p50<=" + quantile(0.5) + " p99<=" + quantile(0.99) + " max<=" + quantile(1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BagStats(IB " + size_IB + " BB " + size_BB
+                + ", puts " + puts + " merged " + merges_BB + " rejected " + rejected_BB + " evicted BB " + evicted_BB
+                + " expired BB " + expired_BB
+                + ", transfers " + transfers + " evicted IB " + evicted_IB + " replaced IB " + replaced_IB
+                + ", takeOuts " + take_outs + " empty " + empty_take_outs + " pickOuts " + pick_outs
+                + " scan fallbacks " + scan_fallbacks
+                + ", putIn ns " + put_in_nanos + ", takeOut ns " + take_out_nanos
+                + ", takeOut scan " + take_out_scan_levels + ")";
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Item;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cold tier of a bag: the items evicted from it are appended to a memory-mapped file, and an index keeps where
+ * the last item of each key was written, so that a miss of get or pickOut can bring the item back instead of
+ * deriving it again, see {@link Bag#setColdTier}.
+ * <p>
+ * Each record is the length of the item, then the item as written by the codec. A record which was taken back or
+ * written again is dead, the dead records are dropped by compacting the file when it is full. When the live
+ * records fill more than half of it, the oldest ones are dropped too, so that the next compaction is as far away.
+ * The index is kept in memory, the file only lives as long as the tier and is truncated when opened.
+ */
+public final class ColdTier<Type extends Item<K>, K> implements Closeable {
+
+    private static final int MIN_MAPPED = 1 << 20;
+
+    private final FileChannel channel;
+    private final ItemCodec<Type> codec;
+    private final int max_bytes;
+    private MappedByteBuffer map;
+
+    // offset << 32 | length of the record of each key
+    private final HashMap<K, Long> index = new HashMap<K, Long>();
+    private int end;
+    private long dead_bytes;
+
+    private long writes;
+    private long hits;
+    private long misses;
+    private long dropped;
+    private long compactions;
+
+    private ColdTier(final FileChannel channel, final ItemCodec<Type> codec, final int max_bytes) throws IOException {
+        this.channel = channel;
+        this.codec = codec;
+        this.max_bytes = max_bytes;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(MIN_MAPPED, max_bytes));
+    }
+
+    /**
+     * @param file The file, it is created or truncated
+     * @param codec The codec of the items
+     * @param maxBytes The size the file may grow to, at most 2 GB
+     */
+    public static <Type extends Item<K>, K> ColdTier<Type, K> open(final Path file, final ItemCodec<Type> codec, final int maxBytes) throws IOException {
+        if (maxBytes < 8) {
+            throw new IllegalArgumentException("max bytes too small: " + maxBytes);
+        }
+        final FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new ColdTier<Type, K>(ch, codec, maxBytes);
+        } catch (IOException | RuntimeException ex) {
+            ch.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Append an item, it replaces the one of the same key
+     * @return Whether the item was written, false if it is larger than the file
+     */
+    public synchronized boolean put(final Type item) {
+        while (true) {
+            final int start = end;
+            try {
+                map.position(start + 4);
+                codec.encode(item, map);
+                final int length = map.position() - start - 4;
+                map.putInt(start, length);
+                end = map.position();
+                final Long old = index.put(item.name(), (long) start << 32 | length);
+                if (old != null) {
+                    dead_bytes += 4 + (int) (long) old;
+                }
+                writes++;
+                return true;
+            } catch (BufferOverflowException | IllegalArgumentException ex) {
+                // IllegalArgumentException if even the length does not fit at the end of the map
+                end = start;
+                if (!make_room()) {
+                    // the older record of the key is no longer right either
+                    remove(item.name());
+                    dropped++;
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the item of a key out of the tier
+     * @return The item, or null if the key is not in the tier
+     */
+    public synchronized Type take(final K key) {
+        final Long record = index.remove(key);
+        if (record == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        final int length = (int) (long) record;
+        dead_bytes += 4 + length;
+        final ByteBuffer in = map.duplicate();
+        in.position((int) (record >>> 32) + 4).limit((int) (record >>> 32) + 4 + length);
+        return codec.decode(in.slice());
+    }
+
+    public synchronized boolean contains(final K key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Forget the item of a key without reading it
+     */
+    public synchronized boolean remove(final K key) {
+        final Long record = index.remove(key);
+        if (record == null) {
+            return false;
+        }
+        dead_bytes += 4 + (int) (long) record;
+        return true;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return The bytes written since the last compaction, live and dead
+     */
+    public synchronized long bytes() {
+        return end;
+    }
+
+    public synchronized long writes() {
+        return writes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return The items which were dropped to make room, or which were larger than the file
+     */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    public synchronized long compactions() {
+        return compactions;
+    }
+
+    public synchronized void clear() {
+        index.clear();
+        end = 0;
+        dead_bytes = 0;
+    }
+
+    // grow the map up to max_bytes, else compact it down to half of it at most
+    private boolean make_room() {
+        try {
+            if (map.capacity() < max_bytes) {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (int) Math.min((long) map.capacity() * 2, max_bytes));
+                return true;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        final int before = end;
+        compact(max_bytes / 2);
+        return end < before;
+    }
+
+    /**
+     * Move the live records to the front of the file, in the order they were written
+     */
+    public synchronized void compact() {
+        compact(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param keep_bytes The oldest live records are dropped until the others take at most this many bytes
+     */
+    private void compact(final long keep_bytes) {
+        final List<Map.Entry<K, Long>> records = new ArrayList<Map.Entry<K, Long>>(index.entrySet());
+        records.sort((x, y) -> Long.compare(x.getValue(), y.getValue()));
+        long live_bytes = end - dead_bytes;
+        int first = 0;
+        while (live_bytes > keep_bytes) {
+            final Map.Entry<K, Long> e = records.get(first++);
+            live_bytes -= 4 + (int) (long) e.getValue();
+            index.remove(e.getKey());
+            dropped++;
+        }
+        // the records only move down, each one is copied before the next one is overwritten
+        final ByteBuffer copy = map.duplicate();
+        byte[] tmp = new byte[0];
+        int to = 0;
+        for (int i = first; i < records.size(); i++) {
+            final Map.Entry<K, Long> e = records.get(i);
+            final long record = e.getValue();
+            final int from = (int) (record >>> 32);
+            final int size = 4 + (int) record;
+            if (from != to) {
+                if (tmp.length < size) {
+                    tmp = new byte[size];
+                }
+                copy.position(from);
+                copy.get(tmp, 0, size);
+                copy.position(to);
+                copy.put(tmp, 0, size);
+                e.setValue((long) to << 32 | (record & 0xFFFFFFFFL));
+            }
+            to += size;
+        }
+        end = to;
+        dead_bytes = 0;
+        compactions++;
+    }
+
+    /**
+     * Write the records to the disk, they are only needed by this tier, so it is not done otherwise
+     */
+    public synchronized void force() {
+        map.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.clear();
+        channel.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ColdTier{items=" + index.size() + ", bytes=" + end + ", dead=" + dead_bytes + ", writes=" + writes
+                + ", hits=" + hits + ", misses=" + misses + ", dropped=" + dropped + ", compactions=" + compactions + "}";
+    }
+}
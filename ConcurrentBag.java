@@ -0,0 +1,1214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Item;
+import org.opennars.inference.BudgetFunctions;
+import org.opennars.main.Parameters;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Thread-safe Bag, with the same two-tier structure (improved bag and bag buffer) as {@link Bag}.
+ * <p>
+ * get, contains and iterator read a concurrent hash table without locking, the iterator is weakly consistent.
+ * Every level of the improved bag has its own lock, and the bag buffer levels are locked by working mode, so
+ * mutations on different levels or working modes do not block each other. putIn also locks a stripe of the
+ * key, so that the merge of a buffered item with the same key is not lost.
+ * <p>
+ * A node belongs to the level it was linked to until it is unlinked under the lock of that level, then it is
+ * dead (location -1) and never linked again. An item of the improved bag is owned by the thread that removes
+ * its node from the name table, so takeOut and pickOut never return the same item twice.
+ * <p>
+ * The bag buffer keeps the capacity and the migration rate of its spec, and the forgetting is applied by putBack.
+ */
+public class ConcurrentBag<Type extends Item<K>, K> extends TwoTierBag<Type, K> {
+
+    private static final int N_KEY_LOCKS = 64;
+
+    // lock stripes, a thread never waits for a second stripe while holding a level or working mode lock
+    private ReentrantLock[] key_locks;
+    private ReentrantLock[] level_locks_IB;
+    private ReentrantLock[] mode_locks_BB;
+
+    private ArrayList<LinkedLevel<Type>> item_table_IB;
+    private transient ConcurrentHashMap<K, LinkedLevel.Node<Type>> name_table_IB;
+    private ArrayList<LinkedLevel<Type>> item_table_BB;
+    private transient ConcurrentHashMap<K, LinkedLevel.Node<Type>> name_table_BB;
+
+    private ConcurrentLevelBitmap occupied_levels_IB;
+    private ConcurrentLevelBitmap occupied_levels_BB;
+    private AtomicIntegerArray occupied_levels_each_mode_BB;
+
+    private final AtomicInteger size_IB = new AtomicInteger();
+    private final AtomicInteger mass_IB = new AtomicInteger();
+    private final AtomicInteger size_BB = new AtomicInteger();
+
+    // output state of the improved bag, races on it only change which level is fired next
+    private final AtomicInteger output_idx_of_level_IB = new AtomicInteger();
+    private volatile int output_level_IB;
+    private final AtomicInteger counter_IB = new AtomicInteger();
+
+    // the cursors of a working mode are guarded by the lock of the working mode
+    private int[][] input_idx_of_levels_IB;
+    private int[][] output_idx_of_levels_BB;
+
+    // set in the asynchronous mode, see startMigrator
+    private transient volatile BagMigrator<Type, K> migrator;
+
+    // whether a miss of get looks up the cold tier, see setRehydrateOnGet
+    private transient volatile boolean rehydrate_on_get;
+
+    public ConcurrentBag(final int levels, final int capacity, Parameters narParameters) {
+        this(levels, capacity, (int) (narParameters.BAG_THRESHOLD * levels));
+    }
+
+    public ConcurrentBag(final int levels, final int capacity, final int thresholdLevel) {
+        this(BagSpec.of(levels, capacity, thresholdLevel));
+    }
+
+    public ConcurrentBag(final BagSpec spec) {
+        super(spec);
+
+        key_locks = new_locks(N_KEY_LOCKS);
+        level_locks_IB = new_locks(n_levels_IB);
+        mode_locks_BB = new_locks(n_working_modes);
+
+        item_table_IB = new ArrayList<LinkedLevel<Type>>(n_levels_IB);
+        for (int i = 0; i < n_levels_IB; i++) {
+            item_table_IB.add(new LinkedLevel<Type>(LinkedLevel.IB, i));
+        }
+        item_table_BB = new ArrayList<LinkedLevel<Type>>(n_levels_BB);
+        for (int i = 0; i < n_levels_BB; i++) {
+            item_table_BB.add(new LinkedLevel<Type>(LinkedLevel.BB, i));
+        }
+        name_table_IB = new ConcurrentHashMap<K, LinkedLevel.Node<Type>>();
+        name_table_BB = new ConcurrentHashMap<K, LinkedLevel.Node<Type>>();
+        occupied_levels_IB = new ConcurrentLevelBitmap(n_levels_IB);
+        occupied_levels_BB = new ConcurrentLevelBitmap(n_levels_BB);
+        occupied_levels_each_mode_BB = new AtomicIntegerArray(n_working_modes);
+        input_idx_of_levels_IB = new int[n_working_modes][2];
+        output_idx_of_levels_BB = new int[n_working_modes][2];
+        output_level_IB = output_distributor_IB.pick(0);
+    }
+
+    private static ReentrantLock[] new_locks(int n) {
+        ReentrantLock[] locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * Empty the bag, all the level locks are held while the tables are reset
+     */
+    @Override
+    public void clear() {
+        BagMigrator<Type, K> m = migrator;
+        if (m != null) {
+            m.discard();
+        }
+        lock_all();
+        try {
+            // the removed nodes are marked dead, a thread still holding one will not unlink it from the new levels
+            for (int i = 0; i < n_levels_IB; i++) {
+                kill_nodes(item_table_IB.set(i, new LinkedLevel<Type>(LinkedLevel.IB, i)));
+                occupied_levels_IB.clear(i);
+            }
+            for (int i = 0; i < n_levels_BB; i++) {
+                kill_nodes(item_table_BB.set(i, new LinkedLevel<Type>(LinkedLevel.BB, i)));
+                occupied_levels_BB.clear(i);
+            }
+            for (int i = 0; i < n_working_modes; i++) {
+                occupied_levels_each_mode_BB.set(i, 0);
+            }
+            name_table_IB.clear();
+            name_table_BB.clear();
+            size_IB.set(0);
+            mass_IB.set(0);
+            size_BB.set(0);
+            counter_IB.set(0);
+        } finally {
+            unlock_all();
+        }
+    }
+
+    // in the order of the other paths, which take a working mode lock before a level lock
+    private void lock_all() {
+        for (ReentrantLock lock : mode_locks_BB) {
+            lock.lock();
+        }
+        for (ReentrantLock lock : level_locks_IB) {
+            lock.lock();
+        }
+    }
+
+    private void unlock_all() {
+        for (ReentrantLock lock : level_locks_IB) {
+            lock.unlock();
+        }
+        for (ReentrantLock lock : mode_locks_BB) {
+            lock.unlock();
+        }
+    }
+
+    private static <Type> void kill_nodes(LinkedLevel<Type> items) {
+        for (LinkedLevel.Node<Type> n = items.first(); n != null; n = n.next) {
+            n.location = -1;
+        }
+    }
+
+    @Override
+    public float getAveragePriority() {
+        int size = size_IB.get();
+        if (size == 0) {
+            return 0.01f;
+        }
+        float f = (float) mass_IB.get() / (size * n_levels_IB);
+        if (f > 1) {
+            return 1.0f;
+        }
+        return f;
+    }
+
+    @Override
+    public boolean contains(Type it) {
+        LinkedLevel.Node<Type> node = name_table_IB.get(it.name());
+        return node != null && it.equals(node.item);
+    }
+
+    /**
+     * @return The item of the key in the improved bag; a miss looks up the cold tier only after
+     *         setRehydrateOnGet(true)
+     */
+    @Override
+    public Type get(K key) {
+        LinkedLevel.Node<Type> node = name_table_IB.get(key);
+        if (node == null) {
+            ColdTier<Type, K> c = cold_tier;
+            return c == null || !rehydrate_on_get ? null : rehydrate(c, key);
+        }
+        return node.item;
+    }
+
+    /**
+     * Let get bring an evicted item back from the cold tier when it misses, as Bag does; off by default, since
+     * the cold tier has one lock and every miss of get would wait on it, pickOut brings the items back anyway
+     */
+    public void setRehydrateOnGet(boolean enabled) {
+        rehydrate_on_get = enabled;
+    }
+
+    /**
+     * Put an item into the bag
+     * <p>
+     * In the asynchronous mode the item is only queued and null is returned, the overflow goes to the sink given
+     * to startMigrator. When the queue is full, putIn waits for room in it; when the bag buffer is full, the item
+     * is put in right away and the overflow is returned, as in the synchronous mode.
+     */
+    @Override
+    protected Type put_in(Type newItem) {
+        BagMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        BagMigrator<Type, K> m = migrator;
+        Type overflow = null;
+        if (m == null || !m.offer(newItem)) {
+            overflow = put_in_BB_locked(newItem);
+            put_in_IB_from_BB_concurrent();
+        }
+        if (metrics != null) {
+            metrics.puts.increment();
+            metrics.put_in_nanos.record(System.nanoTime() - start);
+        }
+        return overflow;
+    }
+
+    @Override
+    protected void put_in_all(Collection<? extends Type> newItems, Consumer<? super Type> overflowSink) {
+        BagMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.puts.add(newItems.size());
+        }
+        ingest(newItems, overflowSink);
+    }
+
+    /**
+     * Put an item back, after applying the forgetting to it
+     */
+    @Override
+    public Type putBack(final Type oldItem, final float forgetCycles, final Memory m) {
+        TraceRecorder r = recorder;
+        if (r != null) {
+            r.putBack(oldItem, forgetCycles);
+        }
+        BudgetFunctions.applyForgetting(oldItem.budget, forgetCycles, m.narParameters.FORGET_QUALITY_RELATIVE);
+        return put_in(oldItem);
+    }
+
+    /**
+     * Switch to the asynchronous mode, where a background thread moves the items into the bag while the bag buffer
+     * has room
+     * @param queue_capacity Maximum number of items waiting for the thread, before putIn waits for room
+     * @param batch_size Maximum number of items the thread puts in at once, the share of a batch moved to the
+     *                   improved bag is the transfer ratio
+     * @param overflowSink Receives the items which did not fit into the bag buffer, may be null
+     */
+    public synchronized void startMigrator(int queue_capacity, int batch_size, Consumer<? super Type> overflowSink) {
+        if (migrator != null) {
+            throw new IllegalStateException("migrator already started");
+        }
+        BagMigrator<Type, K> m = new BagMigrator<Type, K>(this, queue_capacity, batch_size, overflowSink);
+        m.start();
+        migrator = m;
+    }
+
+    /**
+     * Back to the synchronous mode, the items still queued are put in before returning, and so are the items
+     * which were being queued meanwhile
+     */
+    public synchronized void stopMigrator() throws InterruptedException {
+        BagMigrator<Type, K> m = migrator;
+        if (m != null) {
+            migrator = null;
+            m.stop();
+        }
+    }
+
+    /**
+     * @return Number of items waiting for the background thread
+     */
+    public int queued() {
+        BagMigrator<Type, K> m = migrator;
+        return m == null ? 0 : m.queued();
+    }
+
+    boolean buffer_full() {
+        return size_BB.get() >= capacity_BB;
+    }
+
+    void ingest(Collection<? extends Type> newItems, Consumer<? super Type> overflowSink) {
+        for (Type newItem : newItems) {
+            Type overflow = put_in_BB_locked(newItem);
+            if (overflow != null && overflowSink != null) {
+                overflowSink.accept(overflow);
+            }
+        }
+        migrate(transfers(newItems.size()));
+    }
+
+    /**
+     * Move up to n items from the bag buffer to the improved bag
+     * @return Whether any item was moved
+     */
+    boolean migrate(int n) {
+        boolean moved = false;
+        for (int i = 0; i < n; i++) {
+            if (!put_in_IB_from_BB_concurrent()) {
+                break;
+            }
+            moved = true;
+        }
+        return moved;
+    }
+
+    private ReentrantLock key_lock(K key) {
+        return key_locks[(key.hashCode() & 0x7fffffff) % N_KEY_LOCKS];
+    }
+
+    private Type put_in_BB_locked(Type newItem) {
+        ReentrantLock key_lock = key_lock(newItem.name());
+        key_lock.lock();
+        try {
+            return put_in_BB_concurrent(newItem);
+        } finally {
+            key_lock.unlock();
+        }
+    }
+
+    private Type put_in_BB_concurrent(Type newItem) {
+        K newKey = newItem.name();
+        LinkedLevel.Node<Type> newNode = new LinkedLevel.Node<Type>(newItem);
+        newNode.location = -1;
+        LinkedLevel.Node<Type> existedNode = name_table_BB.put(newKey, newNode);
+        BagMetrics m = metrics;
+        // if the buffered item is being moved to the improved bag, it is not merged
+        if (existedNode != null && unlink_BB(existedNode)) {
+            newItem.merge(existedNode.item);
+            if (m != null) {
+                m.merges_BB.increment();
+            }
+        } else if (existedNode == null) {
+            ColdTier<Type, K> cold = cold_tier;
+            if (cold != null) {
+                cold.remove(newKey);
+            }
+        }
+
+        float fl = newItem.getPriority() * n_levels_BB;
+        int inLevel = (int) Math.ceil(fl) - 1;
+        inLevel = Math.max(inLevel, 0);
+
+        LinkedLevel.Node<Type> overflow = null;
+        if (size_BB.get() + 1 > capacity_BB) {
+            int outLevel = occupied_levels_BB.lowest();
+            if (outLevel > inLevel) {
+                name_table_BB.remove(newKey, newNode);
+                evicted(newItem, EvictionListener.Cause.REJECTED_BB);
+                if (m != null) {
+                    m.rejected_BB.increment();
+                }
+                return newItem;
+            } else if (outLevel >= 0) {
+                overflow = take_out_first_BB_concurrent(outLevel);
+                if (overflow != null) {
+                    name_table_BB.remove(overflow.item.name(), overflow);
+                    evicted(overflow.item, EvictionListener.Cause.EVICTED_BB);
+                    if (m != null) {
+                        m.evicted_BB.increment();
+                    }
+                }
+            }
+        }
+
+        ReentrantLock lock = mode_lock_BB(inLevel);
+        lock.lock();
+        try {
+            into_level_BB_concurrent(newNode, inLevel);
+        } finally {
+            lock.unlock();
+        }
+        return overflow == null ? null : overflow.item;
+    }
+
+    /**
+     * @return Whether an item was moved
+     */
+    private boolean put_in_IB_from_BB_concurrent() {
+        if (size_BB.get() == 0) {
+            return false;
+        }
+
+        // deciding the working mode, uniformly among the modes which have items in their BB levels
+        long modes = 0;
+        for (int i = 0; i < n_working_modes; i++) {
+            if (occupied_levels_each_mode_BB.get(i) > 0) {
+                modes |= 1L << i;
+            }
+        }
+        if (modes == 0) {
+            return false;
+        }
+        // not the random source of the bag, it would be shared by the threads, and the interleaving of the
+        // threads makes the choices irreproducible anyway
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int rank = random.nextInt(Long.bitCount(modes));
+        for (int i = 0; i < rank; i++) {
+            modes &= modes - 1;
+        }
+        int selected_working_mode = Long.numberOfTrailingZeros(modes);
+        int direction = random.nextInt(2);
+
+        LinkedLevel.Node<Type> selected_node;
+        int selected_input_level_IB;
+        ReentrantLock mode_lock = mode_locks_BB[selected_working_mode];
+        mode_lock.lock();
+        try {
+            Distributor input_distributor = input_distributors_IB[selected_working_mode][direction];
+            int[] input_cursors = input_idx_of_levels_IB[selected_working_mode];
+            input_cursors[direction] = input_distributor.next(input_cursors[direction]);
+            selected_input_level_IB = input_distributor.pick(input_cursors[direction]);
+
+            int start = selected_working_mode * n_levels_each_mode_BB;
+            int end = start + n_levels_each_mode_BB - 1;
+            Distributor output_distributor = output_distributors_BB[selected_working_mode][direction];
+            int[] output_cursors = output_idx_of_levels_BB[selected_working_mode];
+            int level = -1;
+            for (int i = 0; i < LEVEL_PROBES; i++) {
+                output_cursors[direction] = output_distributor.next(output_cursors[direction]);
+                level = output_distributor.pick(output_cursors[direction]);
+                if (occupied_levels_BB.get(level)) {
+                    break;
+                }
+            }
+            if (!occupied_levels_BB.get(level)) {
+                level = occupied_levels_BB.nextSetCyclic(level, start, end);
+                BagMetrics m = metrics;
+                if (m != null) {
+                    m.scan_fallbacks.increment();
+                }
+            }
+            if (level < 0) {
+                return false;
+            }
+            selected_node = item_table_BB.get(level).first();
+            out_of_level_BB_concurrent(selected_node);
+        } finally {
+            mode_lock.unlock();
+        }
+        K selected_key = selected_node.item.name();
+        name_table_BB.remove(selected_key, selected_node);
+
+        // the buffered node is dead, the item gets a new node in the improved bag
+        LinkedLevel.Node<Type> node = new LinkedLevel.Node<Type>(selected_node.item);
+        LinkedLevel.Node<Type> overflow = null;
+        LinkedLevel.Node<Type> existed;
+        ReentrantLock level_lock = level_locks_IB[selected_input_level_IB];
+        level_lock.lock();
+        try {
+            LinkedLevel<Type> items = item_table_IB.get(selected_input_level_IB);
+            if (items.size() > capacity_each_level_IB) {
+                overflow = items.first();
+                out_of_level_IB_concurrent(overflow);
+            }
+            into_level_IB_concurrent(node, selected_input_level_IB);
+            existed = name_table_IB.put(selected_key, node);
+        } finally {
+            level_lock.unlock();
+        }
+        if (overflow != null) {
+            name_table_IB.remove(overflow.item.name(), overflow);
+            evicted(overflow.item, EvictionListener.Cause.EVICTED_IB);
+        }
+        if (existed != null && unlink_IB(existed)) {
+            evicted(existed.item, EvictionListener.Cause.REPLACED_IB);
+        }
+        BagMetrics m = metrics;
+        if (m != null) {
+            m.transfers.increment();
+            if (overflow != null) {
+                m.evicted_IB.increment();
+            }
+            if (existed != null) {
+                m.replaced_IB.increment();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Type takeOut() {
+        BagMetrics m = metrics;
+        Type selected;
+        if (m == null) {
+            selected = take_out_concurrent(null);
+        } else {
+            long start = System.nanoTime();
+            selected = take_out_concurrent(m);
+            m.take_out_nanos.record(System.nanoTime() - start);
+            (selected == null ? m.empty_take_outs : m.take_outs).increment();
+        }
+        TraceRecorder r = recorder;
+        if (r != null) {
+            r.takeOut(selected);
+        }
+        return selected;
+    }
+
+    private Type take_out_concurrent(BagMetrics m) {
+        while (size_IB.get() > 0) {
+            int level = output_level_IB;
+            if (counter_IB.getAndDecrement() <= 0 || !occupied_levels_IB.get(level)) {
+                level = select_output_level(m);
+                if (level < 0) {
+                    return null;
+                }
+                output_level_IB = level;
+                // the current selection is one of the items to take
+                counter_IB.set(level < dormant_level_threshold ? 0 : item_table_IB.get(level).size() - 1);
+            }
+            LinkedLevel.Node<Type> selected;
+            ReentrantLock lock = level_locks_IB[level];
+            lock.lock();
+            try {
+                selected = item_table_IB.get(level).first();
+                if (selected == null) {
+                    continue;
+                }
+                out_of_level_IB_concurrent(selected);
+            } finally {
+                lock.unlock();
+            }
+            if (name_table_IB.remove(selected.item.name(), selected)) {
+                return selected.item;
+            }
+            // picked out or replaced by a newer copy in the meantime, whoever did it owns the item
+        }
+        return null;
+    }
+
+    private int select_output_level(BagMetrics m) {
+        int level = -1;
+        for (int i = 0; i < LEVEL_PROBES; i++) {
+            int idx = output_idx_of_level_IB.getAndUpdate(output_distributor_IB::next);
+            level = output_distributor_IB.pick(idx);
+            if (occupied_levels_IB.get(level)) {
+                if (m != null) {
+                    m.take_out_scan_levels.record(i + 1);
+                }
+                return level;
+            }
+        }
+        if (m != null) {
+            m.take_out_scan_levels.record(LEVEL_PROBES);
+            m.scan_fallbacks.increment();
+        }
+        return occupied_levels_IB.nextSetCyclic(level, 0, n_levels_IB - 1);
+    }
+
+    @Override
+    public Type pickOut(K key) {
+        LinkedLevel.Node<Type> picked = name_table_IB.remove(key);
+        TraceRecorder r = recorder;
+        if (picked == null) {
+            ColdTier<Type, K> c = cold_tier;
+            Type cold = c == null ? null : c.take(key);
+            if (r != null) {
+                r.pickOut(key, cold);
+            }
+            return cold;
+        }
+        unlink_IB(picked);
+        BagMetrics m = metrics;
+        if (m != null) {
+            m.pick_outs.increment();
+        }
+        if (r != null) {
+            r.pickOut(key, picked.item);
+        }
+        return picked.item;
+    }
+
+    /**
+     * Fire an item without keeping it for the caller, see {@link Bag#sampleAndUpdate}
+     * <p>
+     * The item is taken out and put back, so the other threads may miss it in the meantime.
+     */
+    @Override
+    protected Type sample_and_update(UnaryOperator<Type> update) {
+        Type selected = take_out_concurrent(metrics);
+        if (selected == null) {
+            return null;
+        }
+        Type updated;
+        try {
+            updated = update.apply(selected);
+            if (updated != null && !updated.name().equals(selected.name())) {
+                throw new IllegalArgumentException("the update changed the key " + selected.name() + " to " + updated.name());
+            }
+        } catch (RuntimeException ex) {
+            put_in_IB(selected, level_of_IB(selected.getPriority()), false);
+            throw ex;
+        }
+        if (updated != null) {
+            put_in_IB(updated, level_of_IB(updated.getPriority()), false);
+        }
+        return updated;
+    }
+
+    /**
+     * Move the items of the key to the levels of their new priority, see {@link Bag#updatePriority}
+     * <p>
+     * A buffered item which is being moved to the improved bag meanwhile keeps its priority.
+     */
+    @Override
+    protected boolean update_priority(K key, float newPriority) {
+        boolean in_IB = update_priority_IB(key, newPriority);
+        boolean in_BB = update_priority_BB(key, newPriority);
+        return in_IB || in_BB;
+    }
+
+    private boolean update_priority_IB(K key, float newPriority) {
+        LinkedLevel.Node<Type> node = name_table_IB.get(key);
+        if (node == null) {
+            return false;
+        }
+        int level = level_of_IB(newPriority);
+        // whoever unlinks the node owns the move, a dead node is never linked again
+        if (!unlink_IB(node)) {
+            return name_table_IB.containsKey(key);
+        }
+        node.item.setPriority(newPriority);
+        LinkedLevel.Node<Type> moved = new LinkedLevel.Node<Type>(node.item);
+        ReentrantLock lock = level_locks_IB[level];
+        lock.lock();
+        try {
+            into_level_IB_concurrent(moved, level);
+            // picked out while it was unlinked, the one who picked it owns it
+            if (!name_table_IB.replace(key, node, moved)) {
+                out_of_level_IB_concurrent(moved);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    // under the lock of the key, as putIn, so that a merge into the buffered item is not lost
+    private boolean update_priority_BB(K key, float newPriority) {
+        ReentrantLock key_lock = key_lock(key);
+        key_lock.lock();
+        try {
+            LinkedLevel.Node<Type> node = name_table_BB.get(key);
+            if (node == null) {
+                return false;
+            }
+            if (!unlink_BB(node)) {
+                // taken by a migration, on its way to the improved bag
+                return true;
+            }
+            node.item.setPriority(newPriority);
+            LinkedLevel.Node<Type> moved = new LinkedLevel.Node<Type>(node.item);
+            // in the name table before it is linked, as in putIn, so that a migration finds it there
+            moved.location = -1;
+            if (!name_table_BB.replace(key, node, moved)) {
+                // the bag was cleared meanwhile
+                return false;
+            }
+            int level = level_of_BB(newPriority);
+            ReentrantLock lock = mode_lock_BB(level);
+            lock.lock();
+            try {
+                into_level_BB_concurrent(moved, level);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            key_lock.unlock();
+        }
+    }
+
+    @Override
+    protected boolean in_bag(K key) {
+        return name_table_IB.containsKey(key) || name_table_BB.containsKey(key);
+    }
+
+    @Override
+    protected Type rehydrate(ColdTier<Type, K> c, K key) {
+        Type item = c.take(key);
+        if (item != null) {
+            // it comes back as a transfer would, evicting the first item of a full level
+            put_in_IB(item, level_of_IB(item.getPriority()), true);
+        }
+        return item;
+    }
+
+    /**
+     * @param make_room Whether the first item of a full level is evicted, else the level is not trimmed
+     */
+    private void put_in_IB(Type item, int level, boolean make_room) {
+        LinkedLevel.Node<Type> node = new LinkedLevel.Node<Type>(item);
+        LinkedLevel.Node<Type> overflow = null;
+        LinkedLevel.Node<Type> existed;
+        ReentrantLock lock = level_locks_IB[level];
+        lock.lock();
+        try {
+            LinkedLevel<Type> items = item_table_IB.get(level);
+            if (make_room && items.size() > capacity_each_level_IB) {
+                overflow = items.first();
+                out_of_level_IB_concurrent(overflow);
+            }
+            into_level_IB_concurrent(node, level);
+            existed = name_table_IB.put(item.name(), node);
+        } finally {
+            lock.unlock();
+        }
+        if (overflow != null) {
+            name_table_IB.remove(overflow.item.name(), overflow);
+            evicted(overflow.item, EvictionListener.Cause.EVICTED_IB);
+            BagMetrics m = metrics;
+            if (m != null) {
+                m.evicted_IB.increment();
+            }
+        }
+        if (existed != null) {
+            unlink_IB(existed);
+        }
+    }
+
+    private ReentrantLock mode_lock_BB(int level) {
+        // the levels left over by the integer division are guarded by the last working mode
+        return mode_locks_BB[Math.min(level / n_levels_each_mode_BB, n_working_modes - 1)];
+    }
+
+    /**
+     * Unlink a node of the improved bag if it is still linked
+     * @return Whether the node was unlinked by this call
+     */
+    private boolean unlink_IB(LinkedLevel.Node<Type> node) {
+        int location = node.location;
+        if (location < 0) {
+            return false;
+        }
+        ReentrantLock lock = level_locks_IB[location >>> 1];
+        lock.lock();
+        try {
+            if (node.location != location) {
+                return false;
+            }
+            out_of_level_IB_concurrent(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unlink a node of the bag buffer if it is still linked
+     * @return Whether the node was unlinked by this call
+     */
+    private boolean unlink_BB(LinkedLevel.Node<Type> node) {
+        int location = node.location;
+        if (location < 0) {
+            return false;
+        }
+        ReentrantLock lock = mode_lock_BB(location >>> 1);
+        lock.lock();
+        try {
+            if (node.location != location) {
+                return false;
+            }
+            out_of_level_BB_concurrent(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private LinkedLevel.Node<Type> take_out_first_BB_concurrent(int level) {
+        ReentrantLock lock = mode_lock_BB(level);
+        lock.lock();
+        try {
+            LinkedLevel.Node<Type> first = item_table_BB.get(level).first();
+            if (first != null) {
+                out_of_level_BB_concurrent(first);
+            }
+            return first;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the following ones are called with the lock of the level held
+
+    private void into_level_IB_concurrent(LinkedLevel.Node<Type> node, int level) {
+        LinkedLevel<Type> items = item_table_IB.get(level);
+        items.add(node);
+        if (items.size() == 1) {
+            occupied_levels_IB.set(level);
+        }
+        size_IB.incrementAndGet();
+        mass_IB.addAndGet(level + 1);
+    }
+
+    private void out_of_level_IB_concurrent(LinkedLevel.Node<Type> node) {
+        int level = node.level();
+        LinkedLevel<Type> items = item_table_IB.get(level);
+        items.remove(node);
+        node.location = -1;
+        if (items.isEmpty()) {
+            occupied_levels_IB.clear(level);
+        }
+        size_IB.decrementAndGet();
+        mass_IB.addAndGet(-(level + 1));
+    }
+
+    private void into_level_BB_concurrent(LinkedLevel.Node<Type> node, int level) {
+        LinkedLevel<Type> items = item_table_BB.get(level);
+        items.add(node);
+        if (items.size() == 1) {
+            occupied_levels_BB.set(level);
+            int mode = level / n_levels_each_mode_BB;
+            if (mode < n_working_modes) {
+                occupied_levels_each_mode_BB.incrementAndGet(mode);
+            }
+        }
+        size_BB.incrementAndGet();
+    }
+
+    private void out_of_level_BB_concurrent(LinkedLevel.Node<Type> node) {
+        int level = node.level();
+        LinkedLevel<Type> items = item_table_BB.get(level);
+        items.remove(node);
+        node.location = -1;
+        if (items.isEmpty()) {
+            occupied_levels_BB.clear(level);
+            int mode = level / n_levels_each_mode_BB;
+            if (mode < n_working_modes) {
+                occupied_levels_each_mode_BB.decrementAndGet(mode);
+            }
+        }
+        size_BB.decrementAndGet();
+    }
+
+    @Override
+    public int size() {
+        return size_IB.get();
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * Write a full snapshot record in the format of Bag, which a Bag of the same spec reads as well; the levels of
+     * this class do not keep track of their changes, so an incremental record is written in full
+     * <p>
+     * The levels are copied while all the locks are held and written after they are released, the items queued
+     * for the migrator are not in the snapshot.
+     */
+    @Override
+    public void writeSnapshot(WritableByteChannel out, ItemCodec<? super Type> codec, boolean incremental) throws IOException {
+        ArrayList<ArrayList<Type>> levels_IB = new ArrayList<ArrayList<Type>>(n_levels_IB);
+        ArrayList<ArrayList<Type>> levels_BB = new ArrayList<ArrayList<Type>>(n_levels_BB);
+        int[] cursors = new int[n_working_modes * 4];
+        int counter, output_level, output_idx;
+        lock_all();
+        try {
+            copy_levels(item_table_IB, levels_IB);
+            copy_levels(item_table_BB, levels_BB);
+            for (int i = 0; i < n_working_modes; i++) {
+                for (int direction = 0; direction < 2; direction++) {
+                    cursors[(i * 2 + direction) * 2] = input_idx_of_levels_IB[i][direction];
+                    cursors[(i * 2 + direction) * 2 + 1] = output_idx_of_levels_BB[i][direction];
+                }
+            }
+            counter = counter_IB.get();
+            output_level = output_level_IB;
+            output_idx = output_idx_of_level_IB.get();
+        } finally {
+            unlock_all();
+        }
+
+        SnapshotWriter w = new SnapshotWriter(out);
+        write_snapshot_header(w, true);
+        w.putInt(capacity_BB);
+        // the migration rate and its credit of Bag
+        w.putFloat(1.0f);
+        w.putFloat(0);
+        w.putInt(counter);
+        w.putInt(output_level);
+        w.putInt(output_idx);
+        w.putFloat(transfer_ratio);
+        // no random source of its own
+        w.put((byte) 0);
+        w.put((byte) 1);
+        for (int cursor : cursors) {
+            w.putInt(cursor);
+        }
+
+        int n_records = 0;
+        for (ArrayList<Type> items : levels_IB) {
+            n_records += items.isEmpty() ? 0 : 1;
+        }
+        for (ArrayList<Type> items : levels_BB) {
+            n_records += items.isEmpty() ? 0 : 1;
+        }
+        w.putInt(n_records);
+        write_levels(w, LinkedLevel.IB, levels_IB, codec);
+        write_levels(w, LinkedLevel.BB, levels_BB, codec);
+        w.flush();
+    }
+
+    private static <Type> void copy_levels(ArrayList<LinkedLevel<Type>> table, ArrayList<ArrayList<Type>> levels) {
+        for (LinkedLevel<Type> level : table) {
+            ArrayList<Type> items = new ArrayList<Type>(level.size());
+            for (Type item : level) {
+                items.add(item);
+            }
+            levels.add(items);
+        }
+    }
+
+    private static <Type> void write_levels(SnapshotWriter w, int region, ArrayList<ArrayList<Type>> levels,
+                                            ItemCodec<? super Type> codec) throws IOException {
+        for (int i = 0; i < levels.size(); i++) {
+            ArrayList<Type> items = levels.get(i);
+            if (items.isEmpty()) {
+                continue;
+            }
+            w.put((byte) region);
+            w.putInt(i);
+            w.putInt(items.size());
+            for (Type item : items) {
+                w.putItem(item, codec);
+            }
+        }
+    }
+
+    /**
+     * Apply the snapshot records of the buffer to the bag, the full and incremental ones of Bag as well, while all
+     * the locks are held
+     * <p>
+     * The capacity of the bag buffer and the migration rate of a Bag are not taken over, nor its random source.
+     */
+    @Override
+    public void readSnapshot(ByteBuffer in, ItemCodec<? extends Type> codec) throws IOException {
+        lock_all();
+        try {
+            while (in.hasRemaining()) {
+                boolean full = read_snapshot_header(in);
+                if (full) {
+                    clear();
+                }
+                // the capacity of the bag buffer, the migration rate and its credit
+                in.getInt();
+                in.getFloat();
+                in.getFloat();
+                counter_IB.set(in.getInt());
+                output_level_IB = in.getInt();
+                output_idx_of_level_IB.set(in.getInt());
+                transfer_ratio = in.getFloat();
+                if (in.get() != 0) {
+                    in.getLong();
+                }
+                if (in.get() != 0) {
+                    for (int i = 0; i < n_working_modes; i++) {
+                        for (int direction = 0; direction < 2; direction++) {
+                            input_idx_of_levels_IB[i][direction] = in.getInt();
+                            output_idx_of_levels_BB[i][direction] = in.getInt();
+                        }
+                    }
+                }
+
+                int n_records = in.getInt();
+                int items_start = in.position();
+                if (!full) {
+                    // the levels are emptied first, an item may have moved into a level which comes earlier
+                    for (int r = 0; r < n_records; r++) {
+                        int region = in.get();
+                        int level = in.getInt();
+                        int n = in.getInt();
+                        empty_level(region, level);
+                        for (int i = 0; i < n; i++) {
+                            in.position(in.position() + 4 + in.getInt(in.position()));
+                        }
+                    }
+                    in.position(items_start);
+                }
+                for (int r = 0; r < n_records; r++) {
+                    int region = in.get();
+                    int level = in.getInt();
+                    int n = in.getInt();
+                    for (int i = 0; i < n; i++) {
+                        int length = in.getInt();
+                        ByteBuffer bytes = in.slice();
+                        bytes.limit(length);
+                        in.position(in.position() + length);
+                        restore(region, level, codec.decode(bytes));
+                    }
+                }
+            }
+        } finally {
+            unlock_all();
+        }
+    }
+
+    // the following ones are called with all the locks held
+
+    private void empty_level(int region, int level) {
+        if (region == LinkedLevel.IB) {
+            LinkedLevel<Type> items = item_table_IB.get(level);
+            for (LinkedLevel.Node<Type> node = items.first(); node != null; node = items.first()) {
+                out_of_level_IB_concurrent(node);
+                name_table_IB.remove(node.item.name(), node);
+            }
+        } else {
+            LinkedLevel<Type> items = item_table_BB.get(level);
+            for (LinkedLevel.Node<Type> node = items.first(); node != null; node = items.first()) {
+                out_of_level_BB_concurrent(node);
+                name_table_BB.remove(node.item.name(), node);
+            }
+        }
+    }
+
+    private void restore(int region, int level, Type item) {
+        LinkedLevel.Node<Type> node = new LinkedLevel.Node<Type>(item);
+        if (region == LinkedLevel.IB) {
+            LinkedLevel.Node<Type> replaced = name_table_IB.put(item.name(), node);
+            if (replaced != null && replaced.location >= 0) {
+                out_of_level_IB_concurrent(replaced);
+            }
+            into_level_IB_concurrent(node, level);
+        } else {
+            LinkedLevel.Node<Type> replaced = name_table_BB.put(item.name(), node);
+            if (replaced != null && replaced.location >= 0) {
+                out_of_level_BB_concurrent(replaced);
+            }
+            into_level_BB_concurrent(node, level);
+        }
+    }
+
+    @Override
+    protected boolean appends_snapshot() {
+        return false;
+    }
+
+    // read without the level locks, a snapshot taken while the bag changes is only approximate
+    @Override
+    protected int level_size_IB(int level) {
+        return item_table_IB.get(level).size();
+    }
+
+    @Override
+    protected int level_size_BB(int level) {
+        return item_table_BB.get(level).size();
+    }
+
+    /**
+     * Weakly consistent iteration over the items of the improved bag
+     */
+    @Override
+    public Iterator<Type> iterator() {
+        final Iterator<LinkedLevel.Node<Type>> nodes = name_table_IB.values().iterator();
+        return new Iterator<Type>() {
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public Type next() {
+                return nodes.next().item;
+            }
+        };
+    }
+
+    /**
+     * Each level is copied under its lock and passed to the action after the lock is released
+     */
+    @Override
+    public void forEachInLevelRange(int lo, int hi, Consumer<? super Type> action) {
+        if (lo < 0 || hi >= n_levels_IB) {
+            throw new IllegalArgumentException("levels [" + lo + ", " + hi + "] out of [0, " + (n_levels_IB - 1) + "]");
+        }
+        ArrayList<Type> items = new ArrayList<Type>();
+        for (int level = hi; level >= lo; level--) {
+            level_locks_IB[level].lock();
+            try {
+                for (Type item : item_table_IB.get(level)) {
+                    items.add(item);
+                }
+            } finally {
+                level_locks_IB[level].unlock();
+            }
+            for (Type item : items) {
+                action.accept(item);
+            }
+            items.clear();
+        }
+    }
+
+    // the levels change under a parallel stream, it splits the weakly consistent iterator into batches instead
+    @Override
+    public Spliterator<Type> spliterator() {
+        return Spliterators.spliterator(iterator(), size(), Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(" ");
+        for (int i = n_levels_IB; i > 0; i--) {
+            String level = level_to_string(i - 1, false);
+            if (!level.isEmpty()) {
+                buf.append("\n --- Level ").append(i).append(":\n ").append(level);
+            }
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public String toStringLong() {
+        StringBuilder buf = new StringBuilder(" BAG " + getClass().getSimpleName());
+        buf.append(" ").append(showSizes());
+        for (int i = n_levels_IB; i > 0; i--) {
+            String level = level_to_string(i - 1, true);
+            if (!level.isEmpty()) {
+                buf.append("\n --- LEVEL ").append(i).append(":\n ").append(level);
+            }
+        }
+        buf.append(">>>> end of Bag").append(getClass().getSimpleName());
+        return buf.toString();
+    }
+
+    private String level_to_string(int level, boolean long_format) {
+        StringBuilder buf = new StringBuilder();
+        level_locks_IB[level].lock();
+        try {
+            for (Type item : item_table_IB.get(level)) {
+                buf.append(long_format ? item.toStringLong() : item.toString()).append("\n ");
+            }
+        } finally {
+            level_locks_IB[level].unlock();
+        }
+        return buf.toString();
+    }
+
+    String showSizes() {
+        StringBuilder buf = new StringBuilder(" ");
+        int levels = 0;
+        for (int i = 0; i < n_levels_IB; i++) {
+            int size = item_table_IB.get(i).size();
+            if (size > 0) {
+                levels++;
+                buf.append(size).append(" ");
+            }
+        }
+        return "Levels: " + Integer.toString(levels) + ", sizes: " + buf;
+    }
+
+    // the name tables point into the levels, so they are rebuilt from the levels instead of being serialized
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        name_table_IB = new ConcurrentHashMap<K, LinkedLevel.Node<Type>>();
+        for (LinkedLevel<Type> items : item_table_IB) {
+            for (LinkedLevel.Node<Type> n = items.first(); n != null; n = n.next) {
+                name_table_IB.put(n.item.name(), n);
+            }
+        }
+        name_table_BB = new ConcurrentHashMap<K, LinkedLevel.Node<Type>>();
+        for (LinkedLevel<Type> items : item_table_BB) {
+            for (LinkedLevel.Node<Type> n = items.first(); n != null; n = n.next) {
+                name_table_BB.put(n.item.name(), n);
+            }
+        }
+    }
+}
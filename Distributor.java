@@ -57,6 +57,12 @@ public class Distributor implements Serializable {
         }
     }
 
+    /**
+     * For subclasses which keep the proportions in another way
+     */
+    protected Distributor() {
+    }
+
     public Distributor(int start, int end, boolean inverse) {
         int index, rank, time;
         int range = end - start + 1;
@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+/**
+ * Gets the items which a bag drops by itself, see {@link Bag#setEvictionListener}.
+ * <p>
+ * It is called by the thread which caused the eviction, while the bag is being changed, so it must not call back
+ * into the bag.
+ */
+@FunctionalInterface
+public interface EvictionListener<Type> {
+
+    enum Cause {
+        /** a new item did not fit into the bag buffer, all its items were of higher levels */
+        REJECTED_BB,
+        /** an item of the lowest level of the bag buffer made room for a new one */
+        EVICTED_BB,
+        /** an item of the lowest level of the bag buffer was dropped as its capacity shrank */
+        SHRUNK_BB,
+        /** an item of the bag buffer was older than its maximum age */
+        EXPIRED_BB,
+        /** the first item of a full level of the improved bag made room for an item from the bag buffer */
+        EVICTED_IB,
+        /** an item of the improved bag was replaced by the item of the same key from the bag buffer */
+        REPLACED_IB
+    }
+
+    void evicted(Type item, Cause cause);
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) map from a non-negative int key to a slot of a primitive-keyed bag.
+ * <p>
+ * Keys and slots are kept in two int arrays, a free entry has the key -1, so nothing is boxed.
+ */
+final class IntSlotIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private int[] slots;
+    private int size;
+
+    IntSlotIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The slot of the key, or -1
+     */
+    int get(final int key) {
+        final int mask = keys.length - 1;
+        for (int i = hash(key) & mask; keys[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return slots[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The slot replaced, or -1
+     */
+    int put(final int key, final int slot) {
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; keys[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final int replaced = slots[i];
+                slots[i] = slot;
+                return replaced;
+            }
+        }
+        keys[i] = key;
+        slots[i] = slot;
+        if (++size * 3 > keys.length * 2) {
+            allocate(keys.length * 2);
+        }
+        return -1;
+    }
+
+    /**
+     * @return The slot removed, or -1
+     */
+    int remove(final int key) {
+        final int mask = keys.length - 1;
+        for (int i = hash(key) & mask; keys[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final int removed = slots[i];
+                delete(i);
+                return removed;
+            }
+        }
+        return -1;
+    }
+
+    void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    // backward shift deletion, as in ItemIndex
+    private void delete(int hole) {
+        final int mask = keys.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (keys[i] < 0) {
+                break;
+            }
+            final int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                slots[hole] = slots[i];
+                hole = i;
+            }
+        }
+        keys[hole] = -1;
+        size--;
+    }
+
+    private void allocate(final int capacity) {
+        final int[] oldKeys = keys;
+        final int[] oldSlots = slots;
+        keys = new int[capacity];
+        Arrays.fill(keys, -1);
+        slots = new int[capacity];
+        if (oldKeys == null) {
+            return;
+        }
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] >= 0) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] >= 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                slots[i] = oldSlots[j];
+            }
+        }
+    }
+
+    // dense ids would fill the table in runs, so they are scrambled
+    private static int hash(final int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
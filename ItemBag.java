@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Item;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * The operations of a bag which {@link Memory} uses, so that each bag of the memory can be of another kind,
+ * see {@link BagFactory}.
+ */
+public interface ItemBag<Type extends Item<K>, K> extends Iterable<Type> {
+
+    void clear();
+
+    Type get(K key);
+
+    boolean contains(Type it);
+
+    /**
+     * @return The item which was dropped to make room, the new one if it did not fit, or null
+     */
+    Type putIn(Type newItem);
+
+    /**
+     * Put a batch of items in, one after another as by putIn unless the bag does better
+     * @param overflowSink Receives the items which were dropped, may be null
+     */
+    default void putInAll(Collection<? extends Type> newItems, Consumer<? super Type> overflowSink) {
+        for (Type newItem : newItems) {
+            Type overflow = putIn(newItem);
+            if (overflow != null && overflowSink != null) {
+                overflowSink.accept(overflow);
+            }
+        }
+    }
+
+    /**
+     * Put an item back after applying the forgetting to it
+     */
+    Type putBack(Type oldItem, float forgetCycles, Memory m);
+
+    /**
+     * @return An item chosen by its priority, or null if the bag is empty
+     */
+    Type takeOut();
+
+    Type pickOut(K key);
+
+    default Type pickOut(Type val) {
+        return pickOut(val.name());
+    }
+
+    int size();
+
+    float getAveragePriority();
+
+    /**
+     * @return Whether the bag may be used by several threads without holding its monitor
+     */
+    default boolean isConcurrent() {
+        return false;
+    }
+
+    /**
+     * @return Whether the bag has writeSnapshot and readSnapshot, Memory leaves out the bags which do not
+     */
+    default boolean supportsSnapshot() {
+        return false;
+    }
+
+    /**
+     * @see TwoTierBag#writeSnapshot(Path, ItemCodec, boolean)
+     */
+    default void writeSnapshot(Path file, ItemCodec<? super Type> codec, boolean incremental) throws IOException {
+        throw new UnsupportedOperationException("snapshot of a " + getClass().getSimpleName());
+    }
+
+    /**
+     * @see TwoTierBag#readSnapshot(Path, ItemCodec)
+     */
+    default void readSnapshot(Path file, ItemCodec<? extends Type> codec) throws IOException {
+        throw new UnsupportedOperationException("snapshot of a " + getClass().getSimpleName());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes and reads the items of a bag snapshot, see {@link Bag#writeSnapshot}.
+ * <p>
+ * encode may throw {@link java.nio.BufferOverflowException} when the item does not fit, it is then called again
+ * with more room. decode gets exactly the bytes written by encode.
+ */
+public interface ItemCodec<Type> {
+
+    void encode(Type item, ByteBuffer out);
+
+    Type decode(ByteBuffer in);
+
+    /**
+     * A codec which falls back to Java serialization for each item, for the items which have no codec of their own
+     */
+    static <Type> ItemCodec<Type> serializable() {
+        return new ItemCodec<Type>() {
+            @Override
+            public void encode(Type item, ByteBuffer out) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                    oos.writeObject(item);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                out.put(bytes.toByteArray());
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Type decode(ByteBuffer in) {
+                byte[] bytes = new byte[in.remaining()];
+                in.get(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (Type) ois.readObject();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                } catch (ClassNotFoundException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+    }
+}
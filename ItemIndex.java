@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Item;
+
+/**
+ * Key index of a Bag, shared by the improved bag and the bag buffer.
+ * <p>
+ * It is an open-addressing (linear probing) table of level nodes, each node carries the item and its packed
+ * location, so no entry objects or boxed levels are allocated. A key can be in both regions at once, as one
+ * node per region, and all lookups compare the key and the region along one probe sequence.
+ */
+final class ItemIndex<E extends Item<?>> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    // allocated by the first put, most bags of a large system stay empty or small
+    private LinkedLevel.Node<E>[] nodes;
+    private int[] hashes;
+    private int size;
+
+    ItemIndex() {
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The node of the key in the region, or null
+     */
+    LinkedLevel.Node<E> get(final Object key, final int region) {
+        if (size == 0) {
+            return null;
+        }
+        final int h = hash(key);
+        final int mask = nodes.length - 1;
+        for (int i = h & mask; nodes[i] != null; i = (i + 1) & mask) {
+            if (matches(i, h, key, region)) {
+                return nodes[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put a node for its key in the region, replacing the node already there
+     * @return The replaced node, or null
+     */
+    LinkedLevel.Node<E> put(final LinkedLevel.Node<E> node, final int region) {
+        if (nodes == null) {
+            allocate(MIN_CAPACITY);
+        }
+        final Object key = node.item.name();
+        final int h = hash(key);
+        final int mask = nodes.length - 1;
+        int i = h & mask;
+        for (; nodes[i] != null; i = (i + 1) & mask) {
+            if (matches(i, h, key, region)) {
+                final LinkedLevel.Node<E> replaced = nodes[i];
+                nodes[i] = node;
+                return replaced;
+            }
+        }
+        nodes[i] = node;
+        hashes[i] = h;
+        if (++size * 3 > nodes.length * 2) {
+            allocate(nodes.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the node of the key in the region
+     * @return The removed node, or null
+     */
+    LinkedLevel.Node<E> remove(final Object key, final int region) {
+        if (size == 0) {
+            return null;
+        }
+        final int h = hash(key);
+        final int mask = nodes.length - 1;
+        for (int i = h & mask; nodes[i] != null; i = (i + 1) & mask) {
+            if (matches(i, h, key, region)) {
+                final LinkedLevel.Node<E> removed = nodes[i];
+                delete(i);
+                return removed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove exactly this node
+     */
+    void remove(final LinkedLevel.Node<E> node) {
+        if (size == 0) {
+            return;
+        }
+        final int h = hash(node.item.name());
+        final int mask = nodes.length - 1;
+        for (int i = h & mask; nodes[i] != null; i = (i + 1) & mask) {
+            if (nodes[i] == node) {
+                delete(i);
+                return;
+            }
+        }
+    }
+
+    private boolean matches(final int i, final int h, final Object key, final int region) {
+        final LinkedLevel.Node<E> n = nodes[i];
+        return hashes[i] == h && n.region() == region && key.equals(n.item.name());
+    }
+
+    // backward shift deletion, so that no tombstones are left in the probe sequences
+    private void delete(int hole) {
+        final int mask = nodes.length - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            if (nodes[i] == null) {
+                break;
+            }
+            final int home = hashes[i] & mask;
+            // the entry at i can fill the hole if its home slot is not in (hole, i]
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                nodes[hole] = nodes[i];
+                hashes[hole] = hashes[i];
+                hole = i;
+            }
+        }
+        nodes[hole] = null;
+        size--;
+    }
+
+    private void allocate(final int capacity) {
+        final LinkedLevel.Node<E>[] oldNodes = nodes;
+        final int[] oldHashes = hashes;
+        nodes = LinkedLevel.new_nodes(capacity);
+        hashes = new int[capacity];
+        if (oldNodes == null) {
+            return;
+        }
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldNodes.length; j++) {
+            if (oldNodes[j] != null) {
+                int i = oldHashes[j] & mask;
+                while (nodes[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                nodes[i] = oldNodes[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+    }
+
+    private static int hash(final Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
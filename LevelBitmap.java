@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.Serializable;
+
+/**
+ * Occupancy bitmap of the levels of a Bag, one bit per non-empty level.
+ * <p>
+ * Finding the lowest occupied level or the next occupied level of a range
+ * costs one step per 64 levels instead of one step per level.
+ */
+final class LevelBitmap implements Serializable {
+
+    private final long[] words;
+
+    LevelBitmap(final int levels) {
+        words = new long[(levels + 63) >>> 6];
+    }
+
+    void set(final int level) {
+        words[level >>> 6] |= 1L << level;
+    }
+
+    void clear(final int level) {
+        words[level >>> 6] &= ~(1L << level);
+    }
+
+    boolean get(final int level) {
+        return (words[level >>> 6] & (1L << level)) != 0;
+    }
+
+    /**
+     * @return The lowest occupied level, or -1 if all levels are empty
+     */
+    int lowest() {
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(words[i]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first occupied level in [from, to]
+     * @return The level, or -1 if the range is empty
+     */
+    int nextSet(final int from, final int to) {
+        if (from > to) {
+            return -1;
+        }
+        int i = from >>> 6;
+        final int last = to >>> 6;
+        long word = words[i] & (-1L << from);
+        while (true) {
+            if (i == last) {
+                word &= -1L >>> (63 - (to & 63));
+            }
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (i == last) {
+                return -1;
+            }
+            word = words[++i];
+        }
+    }
+
+    /**
+     * Find the next occupied level at or after the given one, wrapping around inside [start, end]
+     * @param level The level to start from, inside [start, end]
+     * @return The level, or -1 if the whole range is empty
+     */
+    int nextSetCyclic(final int level, final int start, final int end) {
+        final int found = nextSet(level, end);
+        if (found >= 0) {
+            return found;
+        }
+        return nextSet(start, level - 1);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.Serializable;
+
+/**
+ * The levels of one region of a Bag, with their occupancy, allocated when first used.
+ * <p>
+ * As long as items sit in a few levels only, the non-empty levels are kept in a small array and found by a
+ * linear search; once more levels are needed, the table switches to one slot per level. An empty bag costs
+ * this object only.
+ */
+final class LevelTable<E> implements Serializable {
+
+    // number of levels kept in the compact form
+    private static final int COMPACT_LEVELS = 4;
+
+    private final int region;
+    private final int n_levels;
+
+    // null until an item is added; in the compact form, the slots hold levels in any order
+    private LinkedLevel<E>[] levels;
+    private boolean direct;
+    private LevelBitmap occupied;
+    // levels whose content changed since the last snapshot, for the incremental ones
+    private transient LevelBitmap changed;
+
+    LevelTable(final int region, final int n_levels) {
+        this.region = region;
+        this.n_levels = n_levels;
+    }
+
+    /**
+     * @return The level, or null if it has never been used or was reclaimed while empty
+     */
+    LinkedLevel<E> get(final int level) {
+        final LinkedLevel<E>[] ls = levels;
+        if (ls == null) {
+            return null;
+        }
+        if (direct) {
+            return ls[level];
+        }
+        for (LinkedLevel<E> l : ls) {
+            if (l != null && l.level == level) {
+                return l;
+            }
+        }
+        return null;
+    }
+
+    int size(final int level) {
+        final LinkedLevel<E> l = get(level);
+        return l == null ? 0 : l.size();
+    }
+
+    LinkedLevel.Node<E> first(final int level) {
+        final LinkedLevel<E> l = get(level);
+        return l == null ? null : l.first();
+    }
+
+    boolean occupied(final int level) {
+        return occupied != null && occupied.get(level);
+    }
+
+    /**
+     * @return The lowest occupied level, or -1 if all levels are empty
+     */
+    int lowest() {
+        return occupied == null ? -1 : occupied.lowest();
+    }
+
+    /**
+     * @see LevelBitmap#nextSet(int, int)
+     */
+    int nextSet(final int from, final int to) {
+        return occupied == null ? -1 : occupied.nextSet(from, to);
+    }
+
+    /**
+     * @see LevelBitmap#nextSetCyclic(int, int, int)
+     */
+    int nextSetCyclic(final int level, final int start, final int end) {
+        return occupied == null ? -1 : occupied.nextSetCyclic(level, start, end);
+    }
+
+    boolean changed(final int level) {
+        return changed != null && changed.get(level);
+    }
+
+    void clearChanged() {
+        changed = null;
+    }
+
+    private void mark_changed(final int level) {
+        if (changed == null) {
+            changed = new LevelBitmap(n_levels);
+        }
+        changed.set(level);
+    }
+
+    /**
+     * Append a node at the end of a level
+     * @return Whether the level was empty before
+     */
+    boolean add(final LinkedLevel.Node<E> node, final int level) {
+        final LinkedLevel<E> l = level_for_add(level);
+        l.add(node);
+        mark_changed(level);
+        if (l.size() == 1) {
+            occupied.set(level);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Unlink the nodes of a level from the first one up to a node at once, see LinkedLevel.removeUpTo
+     * @return The first node unlinked
+     */
+    LinkedLevel.Node<E> removeUpTo(final LinkedLevel.Node<E> last, final int n) {
+        final int level = last.level();
+        final LinkedLevel<E> l = get(level);
+        final LinkedLevel.Node<E> first = l.removeUpTo(last, n);
+        mark_changed(level);
+        if (l.isEmpty()) {
+            occupied.clear(level);
+        }
+        return first;
+    }
+
+    /**
+     * Unlink a node from the level it is in
+     * @return Whether the level turned empty
+     */
+    boolean remove(final LinkedLevel.Node<E> node) {
+        final int level = node.level();
+        final LinkedLevel<E> l = get(level);
+        l.remove(node);
+        mark_changed(level);
+        if (l.isEmpty()) {
+            occupied.clear(level);
+            return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> LinkedLevel<E>[] new_levels(final int n) {
+        return (LinkedLevel<E>[]) new LinkedLevel<?>[n];
+    }
+
+    private LinkedLevel<E> level_for_add(final int level) {
+        if (levels == null) {
+            levels = new_levels(COMPACT_LEVELS);
+            occupied = new LevelBitmap(n_levels);
+        }
+        if (direct) {
+            if (levels[level] == null) {
+                levels[level] = new LinkedLevel<E>(region, level);
+            }
+            return levels[level];
+        }
+        int free = -1;
+        for (int i = 0; i < levels.length; i++) {
+            final LinkedLevel<E> l = levels[i];
+            if (l == null || l.isEmpty()) {
+                if (l != null && l.level == level) {
+                    return l;
+                }
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (l.level == level) {
+                return l;
+            }
+        }
+        if (free >= 0) {
+            // an empty level can give its slot away, nobody holds on to it
+            return levels[free] = new LinkedLevel<E>(region, level);
+        }
+        final LinkedLevel<E>[] all = new_levels(n_levels);
+        for (LinkedLevel<E> l : levels) {
+            all[l.level] = l;
+        }
+        levels = all;
+        direct = true;
+        return levels[level] = new LinkedLevel<E>(region, level);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * One level (FIFO queue) of a Bag, kept as an intrusive doubly-linked list.
+ * <p>
+ * Every entry keeps a handle to its node, so appending, popping the first
+ * entry and unlinking a known entry are all constant time.
+ */
+final class LinkedLevel<E> implements Serializable, Iterable<E> {
+
+    /** the two regions of a Bag: the improved bag and the bag buffer */
+    static final int IB = 0;
+    static final int BB = 1;
+
+    /**
+     * Handle of an entry, owned by at most one level at a time
+     */
+    static final class Node<E> {
+        final E item;
+        /** region and level of the last level the node was added to, packed by {@link #location(int, int)} */
+        int location;
+        /** cycle of the bag clock at which the item was last decayed, for the lazy forgetting of a Bag */
+        int epoch;
+        /** generation of the bag buffer in which the node was last added to one of its levels, for the age bound of a Bag */
+        int generation;
+        Node<E> prev;
+        Node<E> next;
+
+        Node(final E item) {
+            this.item = item;
+        }
+
+        int level() {
+            return location >>> 1;
+        }
+
+        int region() {
+            return location & 1;
+        }
+    }
+
+    static int location(final int region, final int level) {
+        return (level << 1) | region;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <E> Node<E>[] new_nodes(final int n) {
+        return (Node<E>[]) new Node<?>[n];
+    }
+
+    /** index of this level in its table */
+    final int level;
+    /** packed region and level, stamped on the nodes added to this level */
+    private final int location;
+
+    private transient Node<E> head;
+    private transient Node<E> tail;
+    private transient int size;
+
+    LinkedLevel(final int region, final int level) {
+        this.level = level;
+        this.location = location(region, level);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    Node<E> first() {
+        return head;
+    }
+
+    /**
+     * Append a node at the end of the level
+     * @param node A node which is not in any level
+     */
+    void add(final Node<E> node) {
+        node.location = location;
+        node.prev = tail;
+        node.next = null;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+        size++;
+    }
+
+    /**
+     * Pop the first node of the level
+     * @return The first node, or null if the level is empty
+     */
+    Node<E> removeFirst() {
+        final Node<E> first = head;
+        if (first != null) {
+            remove(first);
+        }
+        return first;
+    }
+
+    /**
+     * Unlink the nodes from the first one up to a node of this level at once, they stay linked to each other
+     * @param last A node which is in this level
+     * @param n The number of nodes up to last, last included
+     * @return The first node unlinked
+     */
+    Node<E> removeUpTo(final Node<E> last, final int n) {
+        final Node<E> first = head;
+        head = last.next;
+        if (head == null) {
+            tail = null;
+        } else {
+            head.prev = null;
+        }
+        last.next = null;
+        size -= n;
+        return first;
+    }
+
+    /**
+     * Unlink a node of this level, the node keeps its location until it is added again
+     * @param node A node which is in this level
+     */
+    void remove(final Node<E> node) {
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        size--;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private Node<E> cursor = head;
+
+            @Override
+            public boolean hasNext() {
+                return cursor != null;
+            }
+
+            @Override
+            public E next() {
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                final E item = cursor.item;
+                cursor = cursor.next;
+                return item;
+            }
+        };
+    }
+
+    // the nodes are written as a flat sequence of items, default serialization would recurse along the links
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (Node<E> n = head; n != null; n = n.next) {
+            out.writeObject(n.item);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            add(new Node<>((E) in.readObject()));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.nio.LongBuffer;
+import java.util.function.LongConsumer;
+
+/**
+ * A {@link PrimitiveKeyBag} of non-negative long keys, such as hashes or packed pairs of ids.
+ */
+public final class LongKeyBag extends PrimitiveKeyBag {
+
+    private LongBuffer keys;
+    private final LongSlotIndex index_IB = new LongSlotIndex();
+    private final LongSlotIndex index_BB = new LongSlotIndex();
+
+    public LongKeyBag(final int levels, final int capacity, final int thresholdLevel) {
+        this(BagSpec.of(levels, capacity, thresholdLevel));
+    }
+
+    public LongKeyBag(final BagSpec spec) {
+        this(spec, new SplitMix64(), false);
+    }
+
+    /**
+     * @param random The random source of the bag, as for Bag
+     * @param offHeap Whether the columns are kept in direct buffers
+     */
+    public LongKeyBag(final BagSpec spec, final SplitMix64 random, final boolean offHeap) {
+        super(spec, random, offHeap);
+        clear();
+    }
+
+    /**
+     * Put a key into the bag buffer, as Bag.putIn
+     * @return The key which did not fit into the bag buffer, which may be the new one, or -1
+     */
+    public long putIn(final long key, final float priority) {
+        return put_in_BB(key, priority, true);
+    }
+
+    /**
+     * Put a batch of keys into the bag buffer, then move a share of the batch to the improved bag, as Bag.putInAll
+     * @param overflowSink Receives the keys which did not fit into the bag buffer, may be null
+     */
+    public void putInAll(final long[] newKeys, final float[] newPriorities, final int n, final LongConsumer overflowSink) {
+        for (int i = 0; i < n; i++) {
+            final long overflow = put_in_BB(newKeys[i], newPriorities[i], false);
+            if (overflow >= 0 && overflowSink != null) {
+                overflowSink.accept(overflow);
+            }
+        }
+        transfer(transfers(n));
+    }
+
+    private long put_in_BB(final long key, final float priority, final boolean migrate) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key must not be negative: " + key);
+        }
+        check_priority(priority);
+        int slot = index_BB.get(key);
+        if (slot < 0) {
+            slot = allocate_slot();
+            keys.put(slot, key);
+            index_BB.put(key, slot);
+        }
+        final int overflow = put_in(slot, priority, migrate);
+        if (overflow < 0) {
+            return -1;
+        }
+        final long overflowKey = keys.get(overflow);
+        free_slot(overflow);
+        return overflowKey;
+    }
+
+    /**
+     * Take out a key, as Bag.takeOut; its priority is given by {@link #takenPriority()}
+     * @return The key, or -1 if the bag is empty
+     */
+    public long takeOut() {
+        final int slot = take_out();
+        if (slot < 0) {
+            return -1;
+        }
+        final long key = keys.get(slot);
+        free_slot(slot);
+        return key;
+    }
+
+    /**
+     * Take out a key of the improved bag; its priority is given by {@link #takenPriority()}
+     * @return Whether the key was in the improved bag
+     */
+    public boolean pickOut(final long key) {
+        final int slot = index_IB.remove(key);
+        if (slot < 0) {
+            return false;
+        }
+        pick_out(slot);
+        return true;
+    }
+
+    public boolean contains(final long key) {
+        return index_IB.get(key) >= 0;
+    }
+
+    /**
+     * @return The priority of the key in the improved bag, or NaN
+     */
+    public float priority(final long key) {
+        final int slot = index_IB.get(key);
+        return slot < 0 ? Float.NaN : priority_of(slot);
+    }
+
+    /**
+     * Set the priority of a key in the improved bag and in the bag buffer, as Bag.updatePriority
+     * @return Whether the key is in the bag
+     */
+    public boolean updatePriority(final long key, final float priority) {
+        check_priority(priority);
+        final int slot_IB = index_IB.get(key);
+        final int slot_BB = index_BB.get(key);
+        update_priority(slot_IB, slot_BB, priority);
+        return slot_IB >= 0 || slot_BB >= 0;
+    }
+
+    /**
+     * Pass the keys of the improved bag, from the highest level down
+     */
+    public void forEach(final KeyConsumer action) {
+        for (int slot = first_slot_IB(n_levels_IB - 1); slot >= 0; slot = next_slot_IB(slot)) {
+            action.accept(keys.get(slot), priority_of(slot));
+        }
+    }
+
+    @FunctionalInterface
+    public interface KeyConsumer {
+        void accept(long key, float priority);
+    }
+
+    @Override
+    protected void index(final int slot, final int region) {
+        (region == LinkedLevel.IB ? index_IB : index_BB).put(keys.get(slot), slot);
+    }
+
+    @Override
+    protected int unindex(final int slot, final int region) {
+        return (region == LinkedLevel.IB ? index_IB : index_BB).remove(keys.get(slot));
+    }
+
+    @Override
+    protected void grow_keys() {
+        keys = long_column(keys);
+    }
+
+    @Override
+    protected void clear_keys() {
+        keys = long_column(null);
+        index_IB.clear();
+        index_BB.clear();
+    }
+}
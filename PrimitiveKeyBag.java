@@ -0,0 +1,628 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * The Bag of {@link Bag}, for items which are only a primitive key and a priority.
+ * <p>
+ * An item is a slot, an index into parallel columns: the priority, the region and level, and the links of the
+ * level list; the subclasses add the column of the keys and the key indexes. So putting in, migrating and taking
+ * out create no object, and the columns can be kept off-heap, out of the reach of the GC.
+ * <p>
+ * The levels, distributors and random choices are those of Bag: with the same spec, seed and operations, it takes
+ * out the keys Bag takes out. The priorities of merged items are merged as in BudgetFunctions.merge, by maximum.
+ * There is no lazy forgetting, the caller lowers the priority before putting a key back.
+ */
+public abstract class PrimitiveKeyBag {
+
+    protected final BagSpec spec;
+
+    protected final int n_working_modes;
+    protected final int n_levels_IB;
+    protected final int n_levels_BB;
+    protected final int n_levels_each_mode_BB;
+
+    protected final int capacity_BB;
+    protected final int capacity_each_level_IB;
+
+    protected final int dormant_level_threshold;
+
+    protected final Distributor output_distributor_IB;
+    protected final Distributor[][] input_distributors_IB;
+    protected final Distributor[][] output_distributors_BB;
+
+    protected final SplitMix64 random;
+
+    // whether the columns are direct buffers
+    protected final boolean off_heap;
+
+    // the columns of the slots
+    // the location packs the region and level as for the nodes of Bag, it is -1 while the slot is in no level
+    // the free slots are chained through the next column
+    private FloatBuffer priorities;
+    private IntBuffer locations;
+    private IntBuffer prevs;
+    private IntBuffer nexts;
+    private int slot_capacity;
+    private int slots_used;
+    private int free_slot;
+
+    // the levels of both regions, the improved bag at [level], the bag buffer at [n_levels_IB + level]
+    private final int[] heads;
+    private final int[] tails;
+    private final int[] sizes;
+    private LevelBitmap occupied_IB;
+    private LevelBitmap occupied_BB;
+
+    private int size_IB;
+    private int mass_IB;
+    private int counter_IB;
+    private int size_BB;
+
+    private final int[] occupied_levels_each_mode_BB;
+    private long occupied_modes_BB;
+
+    private int output_level_IB;
+    private int output_idx_of_level_IB;
+    private final int[] input_idx_of_levels_IB;
+    private final int[] output_idx_of_levels_BB;
+
+    // share of a batch of putInAll which is moved to the improved bag afterwards, as for Bag
+    protected float transfer_ratio = 1.0f;
+
+    // priority of the last item taken or picked out
+    private float taken_priority = Float.NaN;
+
+    private static final int MIN_SLOTS = 16;
+
+    PrimitiveKeyBag(final BagSpec spec, final SplitMix64 random, final boolean offHeap) {
+        this.spec = spec;
+        this.random = random;
+        this.off_heap = offHeap;
+
+        n_working_modes = spec.working_modes;
+        n_levels_IB = spec.levels;
+        n_levels_BB = spec.buffer_levels;
+        n_levels_each_mode_BB = n_levels_BB / n_working_modes;
+
+        capacity_BB = spec.buffer_capacity;
+        capacity_each_level_IB = spec.capacity;
+
+        dormant_level_threshold = spec.threshold;
+
+        output_distributor_IB = spec.output_distributor_IB;
+        input_distributors_IB = spec.input_distributors_IB;
+        output_distributors_BB = spec.output_distributors_BB;
+
+        heads = new int[n_levels_IB + n_levels_BB];
+        tails = new int[n_levels_IB + n_levels_BB];
+        sizes = new int[n_levels_IB + n_levels_BB];
+        occupied_levels_each_mode_BB = new int[n_working_modes];
+        input_idx_of_levels_IB = new int[n_working_modes * 2];
+        output_idx_of_levels_BB = new int[n_working_modes * 2];
+    }
+
+    /**
+     * Remove all items, the columns shrink back to their initial size
+     */
+    public void clear() {
+        slot_capacity = MIN_SLOTS;
+        priorities = float_column(null);
+        locations = int_column(null);
+        prevs = int_column(null);
+        nexts = int_column(null);
+        slots_used = 0;
+        free_slot = -1;
+        clear_keys();
+
+        Arrays.fill(heads, -1);
+        Arrays.fill(tails, -1);
+        Arrays.fill(sizes, 0);
+        occupied_IB = new LevelBitmap(n_levels_IB);
+        occupied_BB = new LevelBitmap(n_levels_BB);
+        size_IB = 0;
+        size_BB = 0;
+        mass_IB = 0;
+        counter_IB = 0;
+
+        Arrays.fill(occupied_levels_each_mode_BB, 0);
+        occupied_modes_BB = 0;
+
+        output_idx_of_level_IB = 0;
+        output_level_IB = output_distributor_IB.pick(0);
+        Arrays.fill(input_idx_of_levels_IB, 0);
+        Arrays.fill(output_idx_of_levels_BB, 0);
+    }
+
+    // the keys, kept by the subclass
+
+    /**
+     * Index the key of a slot in a region
+     */
+    protected abstract void index(int slot, int region);
+
+    /**
+     * Remove the key of a slot from the index of a region
+     * @return The slot which was indexed under the key, or -1
+     */
+    protected abstract int unindex(int slot, int region);
+
+    /**
+     * Copy the key column to a column of the new slot capacity
+     */
+    protected abstract void grow_keys();
+
+    protected abstract void clear_keys();
+
+    // the slots
+
+    protected final int allocate_slot() {
+        int slot = free_slot;
+        if (slot >= 0) {
+            free_slot = nexts.get(slot);
+        } else {
+            if (slots_used == slot_capacity) {
+                grow();
+            }
+            slot = slots_used++;
+        }
+        locations.put(slot, -1);
+        return slot;
+    }
+
+    protected final void free_slot(final int slot) {
+        locations.put(slot, -1);
+        nexts.put(slot, free_slot);
+        free_slot = slot;
+    }
+
+    private void grow() {
+        slot_capacity = slot_capacity * 2;
+        priorities = float_column(priorities);
+        locations = int_column(locations);
+        prevs = int_column(prevs);
+        nexts = int_column(nexts);
+        grow_keys();
+    }
+
+    /**
+     * @param old The column to copy, or null
+     * @return A column of the slot capacity, with the used slots of the old one
+     */
+    protected final IntBuffer int_column(final IntBuffer old) {
+        final IntBuffer column = off_heap
+                ? ByteBuffer.allocateDirect(slot_capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer()
+                : IntBuffer.allocate(slot_capacity);
+        if (old != null && off_heap) {
+            final IntBuffer used = old.duplicate();
+            used.limit(slots_used);
+            column.put(used);
+            column.rewind();
+        } else if (old != null) {
+            System.arraycopy(old.array(), 0, column.array(), 0, slots_used);
+        }
+        return column;
+    }
+
+    protected final LongBuffer long_column(final LongBuffer old) {
+        final LongBuffer column = off_heap
+                ? ByteBuffer.allocateDirect(slot_capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer()
+                : LongBuffer.allocate(slot_capacity);
+        if (old != null && off_heap) {
+            final LongBuffer used = old.duplicate();
+            used.limit(slots_used);
+            column.put(used);
+            column.rewind();
+        } else if (old != null) {
+            System.arraycopy(old.array(), 0, column.array(), 0, slots_used);
+        }
+        return column;
+    }
+
+    private FloatBuffer float_column(final FloatBuffer old) {
+        final FloatBuffer column = off_heap
+                ? ByteBuffer.allocateDirect(slot_capacity * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer()
+                : FloatBuffer.allocate(slot_capacity);
+        if (old != null && off_heap) {
+            final FloatBuffer used = old.duplicate();
+            used.limit(slots_used);
+            column.put(used);
+            column.rewind();
+        } else if (old != null) {
+            System.arraycopy(old.array(), 0, column.array(), 0, slots_used);
+        }
+        return column;
+    }
+
+    protected static void check_priority(final float priority) {
+        if (!(priority >= 0 && priority <= 1)) {
+            throw new IllegalArgumentException("priority must be in [0, 1]: " + priority);
+        }
+    }
+
+    // the levels
+
+    private boolean link(final int slot, final int region, final int level) {
+        final int l = region == LinkedLevel.IB ? level : n_levels_IB + level;
+        final int tail = tails[l];
+        locations.put(slot, LinkedLevel.location(region, level));
+        prevs.put(slot, tail);
+        nexts.put(slot, -1);
+        if (tail < 0) {
+            heads[l] = slot;
+        } else {
+            nexts.put(tail, slot);
+        }
+        tails[l] = slot;
+        return sizes[l]++ == 0;
+    }
+
+    private boolean unlink(final int slot) {
+        final int location = locations.get(slot);
+        final int level = location >>> 1;
+        final int l = (location & 1) == LinkedLevel.IB ? level : n_levels_IB + level;
+        final int prev = prevs.get(slot);
+        final int next = nexts.get(slot);
+        if (prev < 0) {
+            heads[l] = next;
+        } else {
+            nexts.put(prev, next);
+        }
+        if (next < 0) {
+            tails[l] = prev;
+        } else {
+            prevs.put(next, prev);
+        }
+        locations.put(slot, -1);
+        return --sizes[l] == 0;
+    }
+
+    private void into_level_BB(final int slot, final int level) {
+        size_BB++;
+        if (link(slot, LinkedLevel.BB, level)) {
+            occupied_BB.set(level);
+            final int mode = level / n_levels_each_mode_BB;
+            if (mode < n_working_modes && occupied_levels_each_mode_BB[mode]++ == 0) {
+                occupied_modes_BB |= 1L << mode;
+            }
+        }
+    }
+
+    private void out_of_level_BB(final int slot) {
+        final int level = locations.get(slot) >>> 1;
+        size_BB--;
+        if (unlink(slot)) {
+            occupied_BB.clear(level);
+            final int mode = level / n_levels_each_mode_BB;
+            if (mode < n_working_modes && --occupied_levels_each_mode_BB[mode] == 0) {
+                occupied_modes_BB &= ~(1L << mode);
+            }
+        }
+    }
+
+    private void into_level_IB(final int slot, final int level) {
+        if (link(slot, LinkedLevel.IB, level)) {
+            occupied_IB.set(level);
+        }
+        size_IB++;
+        mass_IB += (level + 1);
+    }
+
+    private void out_of_level_IB(final int slot) {
+        final int level = locations.get(slot) >>> 1;
+        if (unlink(slot)) {
+            occupied_IB.clear(level);
+        }
+        size_IB--;
+        mass_IB -= (level + 1);
+    }
+
+    private int take_out_first_BB(final int level) {
+        final int slot = heads[n_levels_IB + level];
+        out_of_level_BB(slot);
+        return slot;
+    }
+
+    private int take_out_first_IB(final int level) {
+        final int slot = heads[level];
+        out_of_level_IB(slot);
+        return slot;
+    }
+
+    // putting in, as put_in_BB of Bag followed by one migration
+
+    /**
+     * Put a slot into the bag buffer, merging the priority if it is already there
+     * @param slot A slot whose key is indexed in the bag buffer
+     * @param migrate Whether one item is moved to the improved bag afterwards, as by putIn
+     * @return The slot which overflowed the bag buffer, removed from it but not freed, or -1
+     */
+    protected final int put_in(final int slot, float priority, final boolean migrate) {
+        if (locations.get(slot) >= 0) {
+            priority = Math.max(priority, priorities.get(slot));
+            out_of_level_BB(slot);
+        }
+        priorities.put(slot, priority);
+        final int overflow = into_base_BB(slot);
+        if (overflow >= 0) {
+            unindex(overflow, LinkedLevel.BB);
+        }
+        if (migrate) {
+            put_in_IB_from_BB();
+        }
+        return overflow;
+    }
+
+    private int into_base_BB(final int slot) {
+        final int inLevel = level_of_BB(priorities.get(slot));
+        int overflow = -1;
+        if (size_BB + 1 > capacity_BB) {
+            final int outLevel = occupied_BB.lowest();
+            if (outLevel > inLevel) {
+                return slot;
+            }
+            overflow = take_out_first_BB(outLevel);
+        }
+        into_level_BB(slot, inLevel);
+        return overflow;
+    }
+
+    private int next_occupied_level(final Distributor distributor, final int idx, final int start, final int end) {
+        int level = -1;
+        for (int i = 0; i < Bag.LEVEL_PROBES; i++) {
+            output_idx_of_levels_BB[idx] = distributor.next(output_idx_of_levels_BB[idx]);
+            level = distributor.pick(output_idx_of_levels_BB[idx]);
+            if (occupied_BB.get(level)) {
+                return level;
+            }
+        }
+        return occupied_BB.nextSetCyclic(level, start, end);
+    }
+
+    /**
+     * Move one item from the bag buffer to the improved bag, as Bag does
+     * @return Whether an item was moved
+     */
+    protected final boolean put_in_IB_from_BB() {
+        if (size_BB == 0 || occupied_modes_BB == 0) {
+            return false;
+        }
+
+        final int rank = random.nextInt(Long.bitCount(occupied_modes_BB));
+        long modes = occupied_modes_BB;
+        for (int i = 0; i < rank; i++) {
+            modes &= modes - 1;
+        }
+        final int selected_working_mode = Long.numberOfTrailingZeros(modes);
+        final int direction = random.nextBoolean() ? 0 : 1;
+        final int cursor = selected_working_mode * 2 + direction;
+
+        final Distributor selected_input_distributor_IB = input_distributors_IB[selected_working_mode][direction];
+        input_idx_of_levels_IB[cursor] = selected_input_distributor_IB.next(input_idx_of_levels_IB[cursor]);
+        final int selected_input_level_IB = selected_input_distributor_IB.pick(input_idx_of_levels_IB[cursor]);
+
+        final int start = selected_working_mode * n_levels_each_mode_BB;
+        final int selected_output_level_BB = next_occupied_level(output_distributors_BB[selected_working_mode][direction],
+                cursor, start, start + n_levels_each_mode_BB - 1);
+
+        // the slot moves as it is, only its index entry goes from one region to the other
+        final int selected = take_out_first_BB(selected_output_level_BB);
+        unindex(selected, LinkedLevel.BB);
+
+        if (sizes[selected_input_level_IB] > capacity_each_level_IB) {
+            final int overflow = take_out_first_IB(selected_input_level_IB);
+            unindex(overflow, LinkedLevel.IB);
+            free_slot(overflow);
+        }
+        final int existed = unindex(selected, LinkedLevel.IB);
+        if (existed >= 0) {
+            out_of_level_IB(existed);
+            free_slot(existed);
+        }
+
+        into_level_IB(selected, selected_input_level_IB);
+        index(selected, LinkedLevel.IB);
+        return true;
+    }
+
+    /**
+     * Move up to n items from the bag buffer to the improved bag
+     */
+    public void transfer(final int n) {
+        for (int i = 0; i < n; i++) {
+            if (!put_in_IB_from_BB()) {
+                return;
+            }
+        }
+    }
+
+    protected final int transfers(final int batch_size) {
+        return (int) Math.ceil(batch_size * transfer_ratio);
+    }
+
+    /**
+     * @param ratio Share of a batch of putInAll which is moved to the improved bag, 1 by default
+     */
+    public void setTransferRatio(final float ratio) {
+        if (ratio < 0) {
+            throw new IllegalArgumentException("transfer ratio must not be negative: " + ratio);
+        }
+        transfer_ratio = ratio;
+    }
+
+    // taking out
+
+    /**
+     * Take out the slot selected as by Bag.takeOut
+     * @return The slot, removed from the improved bag and its index but not freed, or -1 if the bag is empty
+     */
+    protected final int take_out() {
+        if (size_IB == 0) {
+            return -1;
+        }
+        final int slot = take_out_first_IB(select_output_level_IB());
+        unindex(slot, LinkedLevel.IB);
+        taken_priority = priorities.get(slot);
+        return slot;
+    }
+
+    private int select_output_level_IB() {
+        if (!occupied_IB.get(output_level_IB) || (counter_IB == 0)) {
+            int probes = 0;
+            do {
+                output_level_IB = output_distributor_IB.pick(output_idx_of_level_IB);
+                output_idx_of_level_IB = output_distributor_IB.next(output_idx_of_level_IB);
+            } while (!occupied_IB.get(output_level_IB) && ++probes < Bag.LEVEL_PROBES);
+            if (!occupied_IB.get(output_level_IB)) {
+                output_level_IB = occupied_IB.nextSetCyclic(output_level_IB, 0, n_levels_IB - 1);
+            }
+            if (output_level_IB < dormant_level_threshold) {
+                counter_IB = 1;
+            } else {
+                counter_IB = sizes[output_level_IB];
+            }
+        }
+        counter_IB--;
+        return output_level_IB;
+    }
+
+    /**
+     * Remove a slot of the improved bag, whose key was already removed from the index
+     */
+    protected final void pick_out(final int slot) {
+        out_of_level_IB(slot);
+        taken_priority = priorities.get(slot);
+        free_slot(slot);
+    }
+
+    /**
+     * @return The priority of the item last taken or picked out
+     */
+    public float takenPriority() {
+        return taken_priority;
+    }
+
+    protected final float priority_of(final int slot) {
+        return priorities.get(slot);
+    }
+
+    /**
+     * Set the priority of the slots of a key, and move them to the level of the priority, as Bag.updatePriority
+     * @param slot_IB The slot in the improved bag, or -1
+     * @param slot_BB The slot in the bag buffer, or -1
+     */
+    protected final void update_priority(final int slot_IB, final int slot_BB, final float priority) {
+        if (slot_IB >= 0) {
+            priorities.put(slot_IB, priority);
+            final int level = level_of_IB(priority);
+            if (level != locations.get(slot_IB) >>> 1) {
+                out_of_level_IB(slot_IB);
+                into_level_IB(slot_IB, level);
+            }
+        }
+        if (slot_BB >= 0) {
+            priorities.put(slot_BB, priority);
+            final int level = level_of_BB(priority);
+            if (level != locations.get(slot_BB) >>> 1) {
+                out_of_level_BB(slot_BB);
+                into_level_BB(slot_BB, level);
+            }
+        }
+    }
+
+    protected final int level_of_IB(final float priority) {
+        return Math.max((int) Math.ceil(priority * n_levels_IB) - 1, 0);
+    }
+
+    protected final int level_of_BB(final float priority) {
+        return Math.max((int) Math.ceil(priority * n_levels_BB) - 1, 0);
+    }
+
+    // the slots of a region in level order, for the iteration of the subclasses
+
+    /**
+     * @return The first slot of the highest occupied level of the improved bag at or below the given level, or -1
+     */
+    protected final int first_slot_IB(int level) {
+        for (; level >= 0; level--) {
+            if (heads[level] >= 0) {
+                return heads[level];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The slot after the given one in the improved bag, from the highest level down, or -1
+     */
+    protected final int next_slot_IB(final int slot) {
+        final int next = nexts.get(slot);
+        if (next >= 0) {
+            return next;
+        }
+        return first_slot_IB((locations.get(slot) >>> 1) - 1);
+    }
+
+    public float getAveragePriority() {
+        if (size_IB == 0) {
+            return 0.01f;
+        }
+        final float f = (float) mass_IB / (size_IB * n_levels_IB);
+        if (f > 1) {
+            return 1.0f;
+        }
+        return f;
+    }
+
+    /**
+     * @return The number of items of the improved bag, as Bag.size
+     */
+    public int size() {
+        return size_IB;
+    }
+
+    public int sizeBuffer() {
+        return size_BB;
+    }
+
+    /**
+     * @return The number of items in each level; there are no metrics
+     */
+    public BagStats stats() {
+        return new BagStats(null, Arrays.copyOfRange(sizes, 0, n_levels_IB),
+                Arrays.copyOfRange(sizes, n_levels_IB, n_levels_IB + n_levels_BB));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + spec + ", IB " + size_IB + ", BB " + size_BB + ")";
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Item;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe bag made of independent {@link Bag} shards, for many threads firing items at once.
+ * <p>
+ * The keys are hash-partitioned across the shards, each shard has its own bag buffer, distributors, random
+ * source and lock. A worker takes out from its home shard and steals from the others only when its home is
+ * empty, so the workers rarely wait for each other.
+ * <p>
+ * Each shard fires its levels in the proportions of a Bag, and the hash spreads the items evenly, so the shards
+ * hold alike populations and the selection over all of them keeps about the proportions of one shard. Next to a
+ * single bag with all the items, a level above the threshold, which is fired as a whole, holds fewer items in each
+ * shard, so the dormant levels fire up to shards times as often.
+ */
+public class ShardedBag<Type extends Item<K>, K> implements ItemBag<Type, K> {
+
+    private final Bag<Type, K>[] shards;
+    private final ReentrantLock[] locks;
+    // null unless the operations are recorded, see setTraceRecorder
+    private volatile TraceRecorder recorder;
+
+    public ShardedBag(final int levels, final int capacity, final int thresholdLevel, final int shards) {
+        this(BagSpec.of(levels, capacity, thresholdLevel), shards);
+    }
+
+    /**
+     * All the shards hold up to shards times as many items as one bag of the spec; BagFactory gives each one its
+     * share of the capacity of the bag instead. While the levels have room, that does not change the proportions,
+     * which follow the items each shard holds; the hash does not spread the items exactly evenly, so near the
+     * capacity a level of one shard fills up and evicts a little before the others.
+     * @param shardSpec The spec of each shard
+     * @param shards The number of shards, for example the number of workers
+     */
+    public ShardedBag(final BagSpec shardSpec, final int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        @SuppressWarnings("unchecked")
+        final Bag<Type, K>[] all = (Bag<Type, K>[]) new Bag<?, ?>[shards];
+        this.shards = all;
+        this.locks = new ReentrantLock[shards];
+        for (int i = 0; i < shards; i++) {
+            // each shard gets its own unseeded generator, so they make independent choices
+            this.shards[i] = new Bag<Type, K>(shardSpec, new SplitMix64());
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return The shard of the key
+     */
+    public int shardOf(final K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return Math.floorMod(h * 0x9E3779B9, shards.length);
+    }
+
+    /**
+     * @return The default home shard of the calling thread
+     */
+    public int homeShard() {
+        return (int) Math.floorMod(Thread.currentThread().getId(), (long) shards.length);
+    }
+
+    public Type putIn(final Type newItem) {
+        final TraceRecorder r = recorder;
+        if (r != null) {
+            r.putIn(newItem);
+        }
+        final int i = shardOf(newItem.name());
+        locks[i].lock();
+        try {
+            return shards[i].putIn(newItem);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Put a batch of items, each shard is locked once for its part of the batch
+     * @param overflowSink Receives the items which did not fit into a bag buffer, may be null
+     */
+    public void putInAll(final Collection<? extends Type> newItems, final Consumer<? super Type> overflowSink) {
+        final TraceRecorder r = recorder;
+        if (r != null) {
+            r.putInAll(newItems);
+        }
+        final List<List<Type>> parts = new ArrayList<List<Type>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<Type>());
+        }
+        for (final Type item : newItems) {
+            parts.get(shardOf(item.name())).add(item);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (parts.get(i).isEmpty()) {
+                continue;
+            }
+            locks[i].lock();
+            try {
+                shards[i].putInAll(parts.get(i), overflowSink);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    public Type putBack(final Type oldItem, final float forgetCycles, final Memory m) {
+        final TraceRecorder r = recorder;
+        if (r != null) {
+            r.putBack(oldItem, forgetCycles);
+        }
+        final int i = shardOf(oldItem.name());
+        locks[i].lock();
+        try {
+            return shards[i].putBack(oldItem, forgetCycles, m);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Take out an item from the home shard of the calling thread, see takeOut(int)
+     */
+    public Type takeOut() {
+        return takeOut(homeShard());
+    }
+
+    /**
+     * Take out an item from the home shard, or from another shard when the home one is empty
+     * <p>
+     * The other shards are tried in turn from the next one, first those which are not locked, then the ones
+     * which were, so a steal waits for a busy shard only when no idle one has items.
+     * @param home The home shard of the worker
+     * @return The item, or null if all the shards are empty
+     */
+    public Type takeOut(final int home) {
+        final Type selected = take_out_or_steal(home);
+        final TraceRecorder r = recorder;
+        if (r != null) {
+            r.takeOut(selected);
+        }
+        return selected;
+    }
+
+    private Type take_out_or_steal(final int home) {
+        final int n = shards.length;
+        final int first = Math.floorMod(home, n);
+        Type selected = take_out(first);
+        if (selected != null || n == 1) {
+            return selected;
+        }
+        long busy = 0;
+        for (int k = 1; k < n; k++) {
+            final int i = (first + k) % n;
+            if (shards[i].size() == 0) {
+                // read without the lock, an item put in meanwhile is left for the next call
+                continue;
+            }
+            if (!locks[i].tryLock()) {
+                if (k < 64) {
+                    busy |= 1L << k;
+                }
+                continue;
+            }
+            try {
+                selected = shards[i].takeOut();
+            } finally {
+                locks[i].unlock();
+            }
+            if (selected != null) {
+                return selected;
+            }
+        }
+        for (int k = 1; k < n; k++) {
+            if (k < 64 && (busy & (1L << k)) == 0) {
+                continue;
+            }
+            selected = take_out((first + k) % n);
+            if (selected != null) {
+                return selected;
+            }
+        }
+        return null;
+    }
+
+    private Type take_out(final int i) {
+        locks[i].lock();
+        try {
+            return shards[i].takeOut();
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    public Type pickOut(final K key) {
+        final int i = shardOf(key);
+        final Type picked;
+        locks[i].lock();
+        try {
+            picked = shards[i].pickOut(key);
+        } finally {
+            locks[i].unlock();
+        }
+        final TraceRecorder r = recorder;
+        if (r != null) {
+            r.pickOut(key, picked);
+        }
+        return picked;
+    }
+
+    public Type get(final K key) {
+        final int i = shardOf(key);
+        locks[i].lock();
+        try {
+            return shards[i].get(key);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    public boolean contains(final Type it) {
+        final int i = shardOf(it.name());
+        locks[i].lock();
+        try {
+            return shards[i].contains(it);
+        } finally {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * @return The number of items of the improved bags of all the shards
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                size += shards[i].size();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return size;
+    }
+
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * @return The average priority of the shards, weighted by their sizes
+     */
+    public float getAveragePriority() {
+        float sum = 0;
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                final int n = shards[i].size();
+                sum += shards[i].getAveragePriority() * n;
+                size += n;
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return size == 0 ? 0.01f : sum / size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                shards[i].clear();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Pass the items of all the shards to the action, each shard is copied under its lock first
+     */
+    @Override
+    public void forEach(final Consumer<? super Type> action) {
+        final ArrayList<Type> items = new ArrayList<Type>();
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                shards[i].forEach(items::add);
+            } finally {
+                locks[i].unlock();
+            }
+            items.forEach(action);
+            items.clear();
+        }
+    }
+
+    /**
+     * Iterate a copy of the items, taken shard by shard
+     */
+    @Override
+    public Iterator<Type> iterator() {
+        final ArrayList<Type> items = new ArrayList<Type>();
+        forEach(items::add);
+        return items.iterator();
+    }
+
+    /**
+     * @return The stats of each shard
+     */
+    public List<BagStats> stats() {
+        final List<BagStats> stats = new ArrayList<BagStats>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                stats.add(shards[i].stats());
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return stats;
+    }
+
+    public void setMetricsEnabled(final boolean enabled) {
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                shards[i].setMetricsEnabled(enabled);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Record the operations on the sharded bag to a trace, see Bag.setTraceRecorder
+     * <p>
+     * They are recorded here rather than by the shards, which would log a take-out for every shard a steal tries
+     * and so replay as several take-outs; the operations of different threads are recorded in the order they reach
+     * the recorder.
+     * @param r The recorder, or null to stop recording
+     */
+    public void setTraceRecorder(final TraceRecorder r) {
+        recorder = r;
+    }
+
+    /**
+     * Report the evictions of all the shards to one listener, see Bag.setEvictionListener
+     */
+    public void setEvictionListener(final EvictionListener<? super Type> l) {
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                shards[i].setEvictionListener(l);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Keep the evicted items of all the shards in one cold tier, the shards have no key in common, see Bag.setColdTier
+     */
+    public void setColdTier(final ColdTier<Type, K> c) {
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                shards[i].setColdTier(c);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Bound the age of the buffered items of each shard, the generations are counted by each shard, see
+     * Bag.setBufferMaxAge
+     */
+    public void setBufferMaxAge(final int maxAge, final int generationLength) {
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                shards[i].setBufferMaxAge(maxAge, generationLength);
+            } finally {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Close the current generation of every shard
+     * @return The number of items dropped
+     */
+    public int closeBufferGeneration() {
+        int expired = 0;
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                expired += shards[i].closeBufferGeneration();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return expired;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder("ShardedBag(");
+        for (int i = 0; i < shards.length; i++) {
+            buf.append(i == 0 ? "" : ", ").append(shards[i].size());
+        }
+        return buf.append(")").toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered output of a bag snapshot or trace to a channel, the items are written length-prefixed through their codec.
+ */
+final class SnapshotWriter {
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+
+    SnapshotWriter(final WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    void put(final byte b) throws IOException {
+        ensure(1);
+        buf.put(b);
+    }
+
+    void putInt(final int i) throws IOException {
+        ensure(4);
+        buf.putInt(i);
+    }
+
+    void putLong(final long l) throws IOException {
+        ensure(8);
+        buf.putLong(l);
+    }
+
+    void putFloat(final float f) throws IOException {
+        ensure(4);
+        buf.putFloat(f);
+    }
+
+    /**
+     * Unsigned LEB128, 7 bits per byte, so that small values take one byte
+     */
+    void putVarLong(long v) throws IOException {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    <T> void putItem(final T item, final ItemCodec<? super T> codec) throws IOException {
+        ensure(4);
+        while (true) {
+            final int start = buf.position();
+            try {
+                buf.position(start + 4);
+                codec.encode(item, buf);
+                buf.putInt(start, buf.position() - start - 4);
+                return;
+            } catch (BufferOverflowException ex) {
+                buf.position(start);
+                if (start == 0) {
+                    // the item alone does not fit
+                    buf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+                } else {
+                    flush();
+                }
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    private void ensure(final int n) throws IOException {
+        if (buf.remaining() < n) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default random source of a Bag: the SplitMix64 generator.
+ * <p>
+ * It is not thread-safe and uses no atomic operations, each bag owns one. Unlike SplittableRandom it is
+ * Serializable, so a restored bag continues the same sequence.
+ */
+public final class SplitMix64 implements Serializable {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // seeds for the generators created without a seed
+    private static final AtomicLong seeder = new AtomicLong(mix(System.currentTimeMillis()) ^ mix(System.nanoTime()));
+
+    private long state;
+
+    /**
+     * A generator with a seed which differs from the other unseeded ones
+     */
+    public SplitMix64() {
+        this(seeder.getAndAdd(2 * GOLDEN_GAMMA));
+    }
+
+    /**
+     * A generator which gives the same sequence for the same seed
+     */
+    public SplitMix64(final long seed) {
+        this.state = seed;
+    }
+
+    // for the snapshots of a bag, a generator seeded with it continues the sequence
+    long state() {
+        return state;
+    }
+
+    public long nextLong() {
+        return mix(state += GOLDEN_GAMMA);
+    }
+
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    /**
+     * @param bound The positive bound
+     * @return A uniform integer in [0, bound), drawn by rejection as Random.nextInt(int) does
+     */
+    public int nextInt(final int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive: " + bound);
+        }
+        int r = nextInt() >>> 1;
+        final int m = bound - 1;
+        if ((bound & m) == 0) {
+            return (int) ((bound * (long) r) >> 31);
+        }
+        for (int u = r; u - (r = u % bound) + m < 0; u = nextInt() >>> 1) {
+        }
+        return r;
+    }
+
+    public boolean nextBoolean() {
+        return nextLong() < 0;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
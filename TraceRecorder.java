@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.BudgetValue;
+import org.opennars.entity.Item;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Records the operations of bags to a compact binary trace, for {@link TraceReplay}.
+ * <p>
+ * Attached to a bag by {@link TwoTierBag#setTraceRecorder(TraceRecorder)}, it logs putIn, putInAll, putBack,
+ * takeOut, pickOut, updatePriority and sampleAndUpdate as they happen. A key is logged as an id, given in the order
+ * the keys are first seen, so the trace holds no terms; the budget is logged in full, so that the replay can apply
+ * the forgetting of putBack.
+ * <p>
+ * The trace starts with the magic "BTRC", a version byte and the wall clock time in milliseconds, then each
+ * record is an op byte, the nanoseconds since the previous record as a varint, and, unless takeOut or
+ * sampleAndUpdate found the bag empty:
+ * <ul>
+ *     <li>for a put, the key id as a varint, the priority, durability and quality, and the forget cycles of a
+ *     putBack; a putInAll is the number of items as a varint followed by the key and budget of each</li>
+ *     <li>for takeOut and pickOut, the key id and the priority of the item taken or picked out (NaN if pickOut
+ *     missed)</li>
+ *     <li>for updatePriority, the key id and the new priority</li>
+ *     <li>for sampleAndUpdate, the key id, the priority of the item fired and its priority after the update (NaN
+ *     if the update dropped it)</li>
+ * </ul>
+ * One recorder may serve several bags or threads.
+ * <p>
+ * The ids of the keys are kept for the life of the recorder, since a key must keep its id until the end of the
+ * trace, so a recorder takes memory for each distinct key it has seen; {@link #keys()} tells how many. A long
+ * run is recorded as a series of traces, each one by a new recorder.
+ */
+public final class TraceRecorder implements Closeable {
+
+    static final int MAGIC = 0x42545243; // "BTRC"
+    static final byte VERSION = 2;
+
+    static final byte PUT_IN = 1;
+    static final byte PUT_BACK = 2;
+    static final byte TAKE_OUT = 3;
+    static final byte TAKE_OUT_EMPTY = 4;
+    static final byte PICK_OUT = 5;
+    // since version 2
+    static final byte PUT_IN_ALL = 6;
+    static final byte UPDATE_PRIORITY = 7;
+    static final byte SAMPLE_AND_UPDATE = 8;
+    static final byte SAMPLE_AND_UPDATE_EMPTY = 9;
+
+    private final WritableByteChannel channel;
+    private final SnapshotWriter w;
+    // not bounded, see the class comment
+    private final HashMap<Object, Integer> ids = new HashMap<Object, Integer>();
+    private long last_nanos;
+    private long records;
+
+    public TraceRecorder(final WritableByteChannel out) throws IOException {
+        channel = out;
+        w = new SnapshotWriter(out);
+        w.putInt(MAGIC);
+        w.put(VERSION);
+        w.putLong(System.currentTimeMillis());
+        last_nanos = System.nanoTime();
+    }
+
+    /**
+     * A recorder writing to a new file, or replacing it
+     */
+    public static TraceRecorder open(final Path file) throws IOException {
+        return new TraceRecorder(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    synchronized void putIn(final Item<?> item) {
+        try {
+            header(PUT_IN);
+            key(item.name());
+            budget(item.budget);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    synchronized void putInAll(final Collection<? extends Item<?>> items) {
+        try {
+            header(PUT_IN_ALL);
+            w.putVarLong(items.size());
+            for (final Item<?> item : items) {
+                key(item.name());
+                budget(item.budget);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    synchronized void putBack(final Item<?> item, final float forgetCycles) {
+        try {
+            header(PUT_BACK);
+            key(item.name());
+            budget(item.budget);
+            w.putFloat(forgetCycles);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @param taken The item taken out, or null
+     */
+    synchronized void takeOut(final Item<?> taken) {
+        try {
+            if (taken == null) {
+                header(TAKE_OUT_EMPTY);
+                return;
+            }
+            header(TAKE_OUT);
+            key(taken.name());
+            w.putFloat(taken.getPriority());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @param picked The item picked out, or null
+     */
+    synchronized void pickOut(final Object key, final Item<?> picked) {
+        try {
+            header(PICK_OUT);
+            key(key);
+            w.putFloat(picked == null ? Float.NaN : picked.getPriority());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    synchronized void updatePriority(final Object key, final float priority) {
+        try {
+            header(UPDATE_PRIORITY);
+            key(key);
+            w.putFloat(priority);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @param key The key of the item fired, or null if the bag was empty
+     * @param priority The priority of the item when it was fired
+     * @param updated The item after the update, or null if it was dropped
+     */
+    synchronized void sampleAndUpdate(final Object key, final float priority, final Item<?> updated) {
+        try {
+            if (key == null) {
+                header(SAMPLE_AND_UPDATE_EMPTY);
+                return;
+            }
+            header(SAMPLE_AND_UPDATE);
+            key(key);
+            w.putFloat(priority);
+            w.putFloat(updated == null ? Float.NaN : updated.getPriority());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void header(final byte op) throws IOException {
+        final long now = System.nanoTime();
+        w.put(op);
+        w.putVarLong(Math.max(now - last_nanos, 0));
+        last_nanos = now;
+        records++;
+    }
+
+    private void key(final Object key) throws IOException {
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = ids.size();
+            ids.put(key, id);
+        }
+        w.putVarLong(id);
+    }
+
+    private void budget(final BudgetValue budget) throws IOException {
+        w.putFloat(budget.getPriority());
+        w.putFloat(budget.getDurability());
+        w.putFloat(budget.getQuality());
+    }
+
+    /**
+     * @return The number of records so far
+     */
+    public synchronized long records() {
+        return records;
+    }
+
+    /**
+     * @return The number of distinct keys so far
+     */
+    public synchronized int keys() {
+        return ids.size();
+    }
+
+    public synchronized void flush() throws IOException {
+        w.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        w.flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.BudgetValue;
+import org.opennars.entity.Item;
+import org.opennars.inference.BudgetFunctions;
+import org.opennars.main.Parameters;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a trace of {@link TraceRecorder} against a bag, as fast as it goes, and reports the throughput, the
+ * latency of each operation and the fidelity of the selection.
+ * <p>
+ * The fidelity compares the items taken out during the replay with the recorded ones: both are counted by the
+ * level of their priority, as the bag buffer places them, with the average priority of each level. A fidelity of
+ * 1 means the same share of the take-outs in every level.
+ * <p>
+ * From the command line: {@code TraceReplay <trace> [improved|level|concurrent|sharded|int] [levels] [capacity]},
+ * where the capacity is the number of items of the whole bag, so that the kinds are compared at the same size.
+ */
+public final class TraceReplay {
+
+    /**
+     * The operations of a trace on some bag; the keys are the ids of the trace
+     */
+    public interface Target {
+        void putIn(int key, float priority, float durability, float quality);
+
+        void putInAll(int[] keys, float[] priorities, float[] durabilities, float[] qualities);
+
+        void putBack(int key, float priority, float durability, float quality, float forgetCycles);
+
+        /**
+         * @return The priority of the item taken out, or NaN if the bag is empty
+         */
+        float takeOut();
+
+        /**
+         * @return The priority of the item picked out, or NaN if the key is not in the bag
+         */
+        float pickOut(int key);
+
+        /**
+         * @return Whether the key is in the bag
+         */
+        boolean updatePriority(int key, float priority);
+
+        /**
+         * Fire an item and set its priority
+         * @param priority The new priority, or NaN to drop the item
+         * @return The priority of the item fired, or NaN if the bag is empty
+         */
+        float sampleAndUpdate(float priority);
+    }
+
+    /**
+     * Item of a replay, keyed by its id in the trace
+     */
+    public static final class TraceItem extends Item<Integer> {
+        private final Integer key;
+
+        public TraceItem(final int key, final BudgetValue budget) {
+            super(budget);
+            this.key = key;
+        }
+
+        @Override
+        public Integer name() {
+            return key;
+        }
+    }
+
+    /**
+     * The result of a replay
+     */
+    public static final class Report {
+        public final long records;
+        public final long put_ins;
+        public final long put_backs;
+        public final long take_outs;
+        public final long pick_outs;
+        public final long put_in_alls;
+        public final long update_priorities;
+        public final long samples;
+        public final long empty_take_outs_recorded;
+        public final long empty_take_outs_replayed;
+        /** time between the first and the last record, when recorded */
+        public final long recorded_nanos;
+        /** time spent in the operations of the bag during the replay */
+        public final long replay_nanos;
+
+        /** take-outs, pick-outs and samples by level of priority */
+        public final long[] hits_recorded;
+        public final long[] hits_replayed;
+        /** average priority of each level, NaN for a level without hits */
+        public final double[] priority_recorded;
+        public final double[] priority_replayed;
+
+        public final BagStats.Histogram put_in_nanos;
+        public final BagStats.Histogram put_back_nanos;
+        public final BagStats.Histogram take_out_nanos;
+        public final BagStats.Histogram pick_out_nanos;
+        public final BagStats.Histogram put_in_all_nanos;
+        public final BagStats.Histogram update_priority_nanos;
+        public final BagStats.Histogram sample_nanos;
+
+        private Report(final Replay r) {
+            records = r.records;
+            put_ins = r.put_ins;
+            put_backs = r.put_backs;
+            take_outs = r.take_outs;
+            pick_outs = r.pick_outs;
+            put_in_alls = r.put_in_alls;
+            update_priorities = r.update_priorities;
+            samples = r.samples;
+            empty_take_outs_recorded = r.empty_recorded;
+            empty_take_outs_replayed = r.empty_replayed;
+            recorded_nanos = r.recorded_nanos;
+            replay_nanos = r.replay_nanos;
+            hits_recorded = r.hits_recorded;
+            hits_replayed = r.hits_replayed;
+            priority_recorded = averages(r.sum_recorded, r.hits_recorded);
+            priority_replayed = averages(r.sum_replayed, r.hits_replayed);
+            put_in_nanos = new BagStats.Histogram(r.put_in_nanos);
+            put_back_nanos = new BagStats.Histogram(r.put_back_nanos);
+            take_out_nanos = new BagStats.Histogram(r.take_out_nanos);
+            pick_out_nanos = new BagStats.Histogram(r.pick_out_nanos);
+            put_in_all_nanos = new BagStats.Histogram(r.put_in_all_nanos);
+            update_priority_nanos = new BagStats.Histogram(r.update_priority_nanos);
+            sample_nanos = new BagStats.Histogram(r.sample_nanos);
+        }
+
+        private static double[] averages(final double[] sums, final long[] hits) {
+            final double[] avg = new double[sums.length];
+            for (int i = 0; i < sums.length; i++) {
+                avg[i] = hits[i] == 0 ? Double.NaN : sums[i] / hits[i];
+            }
+            return avg;
+        }
+
+        /**
+         * @return Operations per second of bag time
+         */
+        public double throughput() {
+            return replay_nanos == 0 ? 0 : records * 1e9 / replay_nanos;
+        }
+
+        /**
+         * @return 1 minus the total variation distance between the recorded and the replayed hits of the levels
+         */
+        public double fidelity() {
+            long n_recorded = 0;
+            long n_replayed = 0;
+            for (int i = 0; i < hits_recorded.length; i++) {
+                n_recorded += hits_recorded[i];
+                n_replayed += hits_replayed[i];
+            }
+            if (n_recorded == 0 || n_replayed == 0) {
+                return n_recorded == n_replayed ? 1 : 0;
+            }
+            double distance = 0;
+            for (int i = 0; i < hits_recorded.length; i++) {
+                distance += Math.abs((double) hits_recorded[i] / n_recorded - (double) hits_replayed[i] / n_replayed);
+            }
+            return 1 - distance / 2;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder buf = new StringBuilder();
+            buf.append("records ").append(records).append(" (putIn ").append(put_ins).append(", putBack ").append(put_backs)
+                    .append(", takeOut ").append(take_outs).append(", pickOut ").append(pick_outs)
+                    .append(", putInAll ").append(put_in_alls).append(", updatePriority ").append(update_priorities)
+                    .append(", sampleAndUpdate ").append(samples).append(")\n");
+            buf.append("recorded ").append(recorded_nanos / 1_000_000).append(" ms, replayed ").append(replay_nanos / 1_000_000)
+                    .append(" ms, ").append(Math.round(throughput())).append(" ops/s\n");
+            buf.append("putIn ns ").append(put_in_nanos).append("\nputBack ns ").append(put_back_nanos)
+                    .append("\ntakeOut ns ").append(take_out_nanos).append("\npickOut ns ").append(pick_out_nanos)
+                    .append("\nputInAll ns ").append(put_in_all_nanos).append("\nupdatePriority ns ").append(update_priority_nanos)
+                    .append("\nsampleAndUpdate ns ").append(sample_nanos).append("\n");
+            buf.append("empty takeOuts recorded ").append(empty_take_outs_recorded).append(", replayed ").append(empty_take_outs_replayed)
+                    .append(", fidelity ").append(String.format("%.4f", fidelity())).append("\n");
+            buf.append("level: hits recorded/replayed, avg priority recorded/replayed\n");
+            for (int i = hits_recorded.length - 1; i >= 0; i--) {
+                if (hits_recorded[i] != 0 || hits_replayed[i] != 0) {
+                    buf.append(String.format("%5d: %d/%d, %.3f/%.3f%n", i, hits_recorded[i], hits_replayed[i],
+                            priority_recorded[i], priority_replayed[i]));
+                }
+            }
+            return buf.toString();
+        }
+    }
+
+    // the counts of a running replay
+    private static final class Replay {
+        long records, put_ins, put_backs, take_outs, pick_outs, put_in_alls, update_priorities, samples;
+        long empty_recorded, empty_replayed;
+        long recorded_nanos, replay_nanos;
+        final long[] hits_recorded;
+        final long[] hits_replayed;
+        final double[] sum_recorded;
+        final double[] sum_replayed;
+        final BagMetrics.Histogram put_in_nanos = new BagMetrics.Histogram();
+        final BagMetrics.Histogram put_back_nanos = new BagMetrics.Histogram();
+        final BagMetrics.Histogram take_out_nanos = new BagMetrics.Histogram();
+        final BagMetrics.Histogram pick_out_nanos = new BagMetrics.Histogram();
+        final BagMetrics.Histogram put_in_all_nanos = new BagMetrics.Histogram();
+        final BagMetrics.Histogram update_priority_nanos = new BagMetrics.Histogram();
+        final BagMetrics.Histogram sample_nanos = new BagMetrics.Histogram();
+
+        Replay(final int levels) {
+            hits_recorded = new long[levels];
+            hits_replayed = new long[levels];
+            sum_recorded = new double[levels];
+            sum_replayed = new double[levels];
+        }
+
+        void hit(final float recorded, final float replayed) {
+            if (!Float.isNaN(recorded)) {
+                final int level = level(recorded);
+                hits_recorded[level]++;
+                sum_recorded[level] += recorded;
+            }
+            if (!Float.isNaN(replayed)) {
+                final int level = level(replayed);
+                hits_replayed[level]++;
+                sum_replayed[level] += replayed;
+            }
+        }
+
+        int level(final float priority) {
+            final int levels = hits_recorded.length;
+            return Math.min(Math.max((int) Math.ceil(priority * levels) - 1, 0), levels - 1);
+        }
+    }
+
+    private TraceReplay() {
+    }
+
+    /**
+     * Map a trace file, read-only
+     */
+    public static ByteBuffer read(final Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    /**
+     * Run the operations of a trace against a target
+     * @param levels Number of levels of priority the take-outs are counted in
+     * @throws StreamCorruptedException If the buffer holds no trace
+     */
+    public static Report replay(final ByteBuffer trace, final Target target, final int levels) throws IOException {
+        final ByteBuffer in = trace.duplicate();
+        if (in.remaining() < 13 || in.getInt() != TraceRecorder.MAGIC) {
+            throw new StreamCorruptedException("not a bag trace");
+        }
+        // version 1 has only the first five ops
+        final byte version = in.get();
+        if (version < 1 || version > TraceRecorder.VERSION) {
+            throw new StreamCorruptedException("unknown trace version " + version);
+        }
+        in.getLong();
+        final Replay r = new Replay(levels);
+        while (in.hasRemaining()) {
+            final byte op = in.get();
+            r.recorded_nanos += getVarLong(in);
+            r.records++;
+            final long start;
+            switch (op) {
+                case TraceRecorder.PUT_IN: {
+                    final int key = (int) getVarLong(in);
+                    final float p = in.getFloat();
+                    final float d = in.getFloat();
+                    final float q = in.getFloat();
+                    start = System.nanoTime();
+                    target.putIn(key, p, d, q);
+                    r.put_in_nanos.record(elapsed(r, start));
+                    r.put_ins++;
+                    break;
+                }
+                case TraceRecorder.PUT_BACK: {
+                    final int key = (int) getVarLong(in);
+                    final float p = in.getFloat();
+                    final float d = in.getFloat();
+                    final float q = in.getFloat();
+                    final float forgetCycles = in.getFloat();
+                    start = System.nanoTime();
+                    target.putBack(key, p, d, q, forgetCycles);
+                    r.put_back_nanos.record(elapsed(r, start));
+                    r.put_backs++;
+                    break;
+                }
+                case TraceRecorder.TAKE_OUT:
+                case TraceRecorder.TAKE_OUT_EMPTY: {
+                    float recorded = Float.NaN;
+                    if (op == TraceRecorder.TAKE_OUT) {
+                        getVarLong(in);
+                        recorded = in.getFloat();
+                    } else {
+                        r.empty_recorded++;
+                    }
+                    start = System.nanoTime();
+                    final float replayed = target.takeOut();
+                    r.take_out_nanos.record(elapsed(r, start));
+                    if (Float.isNaN(replayed)) {
+                        r.empty_replayed++;
+                    }
+                    r.hit(recorded, replayed);
+                    r.take_outs++;
+                    break;
+                }
+                case TraceRecorder.PICK_OUT: {
+                    final int key = (int) getVarLong(in);
+                    final float recorded = in.getFloat();
+                    start = System.nanoTime();
+                    final float replayed = target.pickOut(key);
+                    r.pick_out_nanos.record(elapsed(r, start));
+                    r.hit(recorded, replayed);
+                    r.pick_outs++;
+                    break;
+                }
+                case TraceRecorder.PUT_IN_ALL: {
+                    final int n = (int) getVarLong(in);
+                    final int[] keys = new int[n];
+                    final float[] p = new float[n];
+                    final float[] d = new float[n];
+                    final float[] q = new float[n];
+                    for (int i = 0; i < n; i++) {
+                        keys[i] = (int) getVarLong(in);
+                        p[i] = in.getFloat();
+                        d[i] = in.getFloat();
+                        q[i] = in.getFloat();
+                    }
+                    start = System.nanoTime();
+                    target.putInAll(keys, p, d, q);
+                    r.put_in_all_nanos.record(elapsed(r, start));
+                    r.put_in_alls++;
+                    break;
+                }
+                case TraceRecorder.UPDATE_PRIORITY: {
+                    final int key = (int) getVarLong(in);
+                    final float p = in.getFloat();
+                    start = System.nanoTime();
+                    target.updatePriority(key, p);
+                    r.update_priority_nanos.record(elapsed(r, start));
+                    r.update_priorities++;
+                    break;
+                }
+                case TraceRecorder.SAMPLE_AND_UPDATE:
+                case TraceRecorder.SAMPLE_AND_UPDATE_EMPTY: {
+                    float recorded = Float.NaN;
+                    float updated = Float.NaN;
+                    if (op == TraceRecorder.SAMPLE_AND_UPDATE) {
+                        getVarLong(in);
+                        recorded = in.getFloat();
+                        updated = in.getFloat();
+                    }
+                    start = System.nanoTime();
+                    // the item fired by the replay may be another one, it gets the priority the recorded one got
+                    final float replayed = target.sampleAndUpdate(updated);
+                    r.sample_nanos.record(elapsed(r, start));
+                    r.hit(recorded, replayed);
+                    r.samples++;
+                    break;
+                }
+                default:
+                    throw new StreamCorruptedException("unknown op " + op + " at " + (in.position() - 1));
+            }
+        }
+        return new Report(r);
+    }
+
+    private static long elapsed(final Replay r, final long start) {
+        final long nanos = System.nanoTime() - start;
+        r.replay_nanos += nanos;
+        return nanos;
+    }
+
+    private static long getVarLong(final ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+    }
+
+    /**
+     * A target on a bag of any kind
+     */
+    @SuppressWarnings("unchecked")
+    public static Target of(final ItemBag<TraceItem, Integer> bag, final Parameters parameters) {
+        final Memory memory = memory(parameters);
+        // the bags without updatePriority and sampleAndUpdate take the item out and put it in again
+        final TwoTierBag<TraceItem, Integer> twoTier = bag instanceof TwoTierBag ? (TwoTierBag<TraceItem, Integer>) bag : null;
+        return new Target() {
+            @Override
+            public void putIn(final int key, final float priority, final float durability, final float quality) {
+                bag.putIn(new TraceItem(key, new BudgetValue(priority, durability, quality, parameters)));
+            }
+
+            @Override
+            public void putInAll(final int[] keys, final float[] priorities, final float[] durabilities, final float[] qualities) {
+                final List<TraceItem> items = new ArrayList<TraceItem>(keys.length);
+                for (int i = 0; i < keys.length; i++) {
+                    items.add(new TraceItem(keys[i], new BudgetValue(priorities[i], durabilities[i], qualities[i], parameters)));
+                }
+                bag.putInAll(items, null);
+            }
+
+            @Override
+            public void putBack(final int key, final float priority, final float durability, final float quality, final float forgetCycles) {
+                bag.putBack(new TraceItem(key, new BudgetValue(priority, durability, quality, parameters)), forgetCycles, memory);
+            }
+
+            @Override
+            public float takeOut() {
+                return priority(bag.takeOut());
+            }
+
+            @Override
+            public float pickOut(final int key) {
+                return priority(bag.pickOut(key));
+            }
+
+            @Override
+            public boolean updatePriority(final int key, final float priority) {
+                if (twoTier != null) {
+                    return twoTier.updatePriority(key, priority);
+                }
+                final TraceItem item = bag.pickOut(key);
+                if (item == null) {
+                    return false;
+                }
+                item.setPriority(priority);
+                bag.putIn(item);
+                return true;
+            }
+
+            @Override
+            public float sampleAndUpdate(final float priority) {
+                if (twoTier != null) {
+                    final float[] sampled = {Float.NaN};
+                    twoTier.sampleAndUpdate(item -> {
+                        sampled[0] = item.getPriority();
+                        if (Float.isNaN(priority)) {
+                            return null;
+                        }
+                        item.setPriority(priority);
+                        return item;
+                    });
+                    return sampled[0];
+                }
+                final TraceItem item = bag.takeOut();
+                if (item == null) {
+                    return Float.NaN;
+                }
+                final float sampled = item.getPriority();
+                if (!Float.isNaN(priority)) {
+                    item.setPriority(priority);
+                    bag.putIn(item);
+                }
+                return sampled;
+            }
+        };
+    }
+
+    /**
+     * A target on an IntKeyBag, putBack applies the forgetting of Bag.putBack to the priority and sampleAndUpdate
+     * takes the key out and puts it in again
+     */
+    public static Target of(final IntKeyBag bag, final Parameters parameters) {
+        final BudgetValue budget = new BudgetValue(0, 0, 0, parameters);
+        return new Target() {
+            @Override
+            public void putIn(final int key, final float priority, final float durability, final float quality) {
+                bag.putIn(key, priority);
+            }
+
+            @Override
+            public void putBack(final int key, final float priority, final float durability, final float quality, final float forgetCycles) {
+                budget.setPriority(priority);
+                budget.setDurability(durability);
+                budget.setQuality(quality);
+                BudgetFunctions.applyForgetting(budget, forgetCycles, parameters.FORGET_QUALITY_RELATIVE);
+                bag.putIn(key, budget.getPriority());
+            }
+
+            @Override
+            public float takeOut() {
+                return bag.takeOut() < 0 ? Float.NaN : bag.takenPriority();
+            }
+
+            @Override
+            public float pickOut(final int key) {
+                return bag.pickOut(key) ? bag.takenPriority() : Float.NaN;
+            }
+
+            @Override
+            public void putInAll(final int[] keys, final float[] priorities, final float[] durabilities, final float[] qualities) {
+                bag.putInAll(keys, priorities, keys.length, null);
+            }
+
+            @Override
+            public boolean updatePriority(final int key, final float priority) {
+                return bag.updatePriority(key, priority);
+            }
+
+            @Override
+            public float sampleAndUpdate(final float priority) {
+                final int key = bag.takeOut();
+                if (key < 0) {
+                    return Float.NaN;
+                }
+                final float sampled = bag.takenPriority();
+                if (!Float.isNaN(priority)) {
+                    bag.putIn(key, priority);
+                }
+                return sampled;
+            }
+        };
+    }
+
+    private static float priority(final Item<?> item) {
+        return item == null ? Float.NaN : item.getPriority();
+    }
+
+    // putBack reads the forgetting parameters from a Memory
+    private static Memory memory(final Parameters parameters) {
+        return new Memory(parameters,
+                new Bag<>(10, 1, parameters), new Bag<>(10, 1, parameters),
+                new Bag<>(10, 1, parameters), new Bag<>(10, 1, parameters));
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: TraceReplay <trace> [improved|level|concurrent|sharded|int] [levels] [capacity]");
+            System.exit(2);
+        }
+        final Parameters parameters = new Parameters();
+        final String kind = args.length > 1 ? args[1] : "improved";
+        final int levels = args.length > 2 ? Integer.parseInt(args[2]) : parameters.CONCEPT_BAG_LEVELS;
+        final int capacity = args.length > 3 ? Integer.parseInt(args[3]) : parameters.CONCEPT_BAG_SIZE;
+        final int threshold = (int) (parameters.BAG_THRESHOLD * levels);
+        final Target target;
+        if (kind.equals("int")) {
+            target = of(new IntKeyBag(levels, Math.max(1, capacity / levels), threshold), parameters);
+        } else {
+            // the factory gives each kind the capacity in the form it takes
+            target = of(new BagFactory(parameters).<TraceItem, Integer>create(BagFactory.Kind.of(kind), levels, capacity), parameters);
+        }
+        System.out.print(replay(read(Paths.get(args[0])), target, levels));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import java.io.Serializable;
+
+/**
+ * Feedback controller of the transfer from the bag buffer to the improved bag of a {@link Bag}.
+ * <p>
+ * At the end of every period of puts, it looks at the backlog of the bag buffer (its share in use), the number
+ * of puts which overflowed it in the period and the share of the transfers which evicted an item from a full
+ * level of the improved bag, then sets the migration rate and the capacity of the bag buffer:
+ * <ul>
+ *     <li>a growing backlog or overflows in the period raise the migration rate, unless the improved bag is
+ *     saturated, in which case more transfers would only push its items out</li>
+ *     <li>overflows in the period grow the bag buffer, so that the next burst is kept instead of dropped</li>
+ *     <li>a small backlog without overflow lowers the migration rate, so that quiet input is not moved as soon as
+ *     it comes in, and shrinks the bag buffer back towards the capacity of the spec</li>
+ * </ul>
+ * A controller keeps the counts of its bag, so it is owned by one bag.
+ */
+public final class TransferController implements Serializable {
+
+    // each adjustment multiplies or divides by this step
+    private static final float STEP = 1.25f;
+
+    public final int period;
+    public final float min_rate;
+    public final float max_rate;
+    public final float max_capacity_factor;
+    public final float low_backlog;
+    public final float high_backlog;
+    public final float max_saturation;
+
+    // the counts of the current period, updated by the bag
+    int puts;
+    int overflows_BB;
+    int transfers;
+    int evictions_IB;
+
+    /**
+     * A controller adjusting every 256 puts, between 0.25 and 4 migrations per put and up to 4 times the buffer
+     * capacity of the spec, aiming at a backlog between 10% and 50%
+     */
+    public TransferController() {
+        this(256, 0.25f, 4f, 4f, 0.1f, 0.5f, 0.5f);
+    }
+
+    /**
+     * @param period Number of puts between two adjustments
+     * @param minRate Lowest number of migrations per put
+     * @param maxRate Highest number of migrations per put
+     * @param maxCapacityFactor Largest capacity of the bag buffer, as a multiple of the capacity of the spec
+     * @param lowBacklog Under this share of the bag buffer in use, the input is quiet
+     * @param highBacklog Over this share of the bag buffer in use, the input is a burst
+     * @param maxSaturation Over this share of the transfers evicting an item, the migration rate is not raised
+     */
+    public TransferController(final int period, final float minRate, final float maxRate, final float maxCapacityFactor,
+                              final float lowBacklog, final float highBacklog, final float maxSaturation) {
+        if (period < 1) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+        if (!(minRate >= 0 && minRate <= maxRate)) {
+            throw new IllegalArgumentException("rates must satisfy 0 <= min <= max: " + minRate + ", " + maxRate);
+        }
+        if (!(maxCapacityFactor >= 1)) {
+            throw new IllegalArgumentException("capacity factor must be at least 1: " + maxCapacityFactor);
+        }
+        if (!(lowBacklog >= 0 && lowBacklog <= highBacklog && highBacklog <= 1)) {
+            throw new IllegalArgumentException("backlogs must satisfy 0 <= low <= high <= 1: " + lowBacklog + ", " + highBacklog);
+        }
+        this.period = period;
+        this.min_rate = minRate;
+        this.max_rate = maxRate;
+        this.max_capacity_factor = maxCapacityFactor;
+        this.low_backlog = lowBacklog;
+        this.high_backlog = highBacklog;
+        this.max_saturation = maxSaturation;
+    }
+
+    /**
+     * A controller with the same settings and no counts, for another bag
+     */
+    public TransferController copy() {
+        return new TransferController(period, min_rate, max_rate, max_capacity_factor, low_backlog, high_backlog, max_saturation);
+    }
+
+    float next_rate(final float rate, final float backlog) {
+        float next = rate;
+        if (backlog > high_backlog || overflows_BB > 0) {
+            float saturation = transfers == 0 ? 0 : (float) evictions_IB / transfers;
+            if (saturation <= max_saturation) {
+                next = Math.max(rate, min_rate) * STEP;
+            }
+        } else if (backlog < low_backlog) {
+            next = rate / STEP;
+        }
+        return Math.min(Math.max(next, min_rate), max_rate);
+    }
+
+    int next_capacity(final int capacity, final int spec_capacity, final float backlog) {
+        if (overflows_BB > 0) {
+            return (int) Math.min((long) Math.ceil(capacity * STEP), (long) (spec_capacity * max_capacity_factor));
+        } else if (backlog < low_backlog && capacity > spec_capacity) {
+            return Math.max((int) (capacity / STEP), spec_capacity);
+        }
+        return capacity;
+    }
+
+    void reset() {
+        puts = 0;
+        overflows_BB = 0;
+        transfers = 0;
+        evictions_IB = 0;
+    }
+}
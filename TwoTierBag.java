@@ -0,0 +1,484 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.opennars.entity.Item;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Base of the two-tier bags, {@link Bag} and {@link ConcurrentBag}, with the parts they have in common: the shape
+ * of the improved bag and of the bag buffer with their distributors, the transfer ratio of putInAll, and the
+ * metrics, trace, eviction and cold tier hooks.
+ * <p>
+ * The tuning of the bag buffer at runtime (migration rate, buffer capacity, age bound, TransferController) and the
+ * lazy forgetting belong to Bag only.
+ */
+public abstract class TwoTierBag<Type extends Item<K>, K> implements ItemBag<Type, K>, Serializable {
+
+    // num of levels for the improved bag and the bag buffer
+    // by default the bag buffer has 10 times more levels
+    protected final int n_working_modes;
+    protected final int n_levels_IB;
+    protected final int n_levels_BB;
+    protected final int n_levels_each_mode_IB;
+    protected final int n_levels_each_mode_BB;
+
+    // capacity, the one of the bag buffer may be changed at runtime, see Bag.setBufferCapacity
+    protected int capacity_BB;
+    protected final int capacity_each_level_IB;
+
+    // under this threshold, these levels will be considered dormant
+    protected final int dormant_level_threshold;
+
+    // the distributors
+    // there are 3 type of distributors
+    // the "improved_bag_output_distributor" is used to get an item normally as in NARS, though it is different in
+    //  putting in new items, now it is not decided just by the budget, but using a bag buffer
+    // they are taken from the spec, shared by all the bags of the spec, and restored from it after deserialization
+    protected final BagSpec spec;
+    protected transient Distributor output_distributor_IB;
+    protected transient Distributor[][] input_distributors_IB;
+    protected transient Distributor[][] output_distributors_BB;
+
+    // share of a batch of putInAll which is moved from the bag buffer to the improved bag afterwards
+    protected float transfer_ratio = 1.0f;
+
+    // how many levels of a distributor are tried before going to the next occupied level directly
+    protected static final int LEVEL_PROBES = 16;
+
+    // null while the metrics are disabled, so that the hot path only pays for a null check
+    protected transient volatile BagMetrics metrics;
+
+    // null unless the operations are recorded, see setTraceRecorder
+    protected transient volatile TraceRecorder recorder;
+
+    // null unless the evicted items are reported or kept, see setEvictionListener and setColdTier
+    protected transient volatile EvictionListener<? super Type> eviction_listener;
+    protected transient volatile ColdTier<Type, K> cold_tier;
+
+    protected static final int SNAPSHOT_MAGIC = 0x42414753; // "BAGS"
+    protected static final byte SNAPSHOT_VERSION = 2;
+    protected static final byte SNAPSHOT_FULL = 0;
+    protected static final byte SNAPSHOT_INCREMENTAL = 1;
+
+    protected TwoTierBag(final BagSpec spec) {
+        this.spec = spec;
+
+        // at most 64, since the occupied working modes are kept in one long
+        n_working_modes = spec.working_modes;
+
+        n_levels_IB = spec.levels;
+        n_levels_BB = spec.buffer_levels;
+
+        capacity_BB = spec.buffer_capacity;
+        capacity_each_level_IB = spec.capacity;
+
+        dormant_level_threshold = spec.threshold;
+
+        n_levels_each_mode_IB = n_levels_IB / n_working_modes;
+        n_levels_each_mode_BB = n_levels_BB / n_working_modes;
+        output_distributor_IB = spec.output_distributor_IB;
+        input_distributors_IB = spec.input_distributors_IB;
+        output_distributors_BB = spec.output_distributors_BB;
+    }
+
+    public Type putIn(Type newItem) {
+        TraceRecorder r = recorder;
+        if (r != null) {
+            r.putIn(newItem);
+        }
+        return put_in(newItem);
+    }
+
+    /**
+     * putIn, without the trace
+     */
+    protected abstract Type put_in(Type newItem);
+
+    /**
+     * Put a batch of items into the bag buffer, then move a share of the batch (the transfer ratio)
+     * to the improved bag, instead of one migration for each item as in putIn
+     * @param newItems The new items
+     * @param overflowSink Receives the items which did not fit into the bag buffer, may be null
+     */
+    public void putInAll(Collection<? extends Type> newItems, Consumer<? super Type> overflowSink) {
+        TraceRecorder r = recorder;
+        if (r != null) {
+            r.putInAll(newItems);
+        }
+        put_in_all(newItems, overflowSink);
+    }
+
+    /**
+     * putInAll, without the trace
+     */
+    protected abstract void put_in_all(Collection<? extends Type> newItems, Consumer<? super Type> overflowSink);
+
+    protected int transfers(int batch_size) {
+        return (int) Math.ceil(batch_size * transfer_ratio);
+    }
+
+    /**
+     * @param ratio Share of a batch of putInAll which is moved to the improved bag, 1 by default
+     */
+    public void setTransferRatio(float ratio) {
+        if (ratio < 0) {
+            throw new IllegalArgumentException("transfer ratio must not be negative: " + ratio);
+        }
+        transfer_ratio = ratio;
+    }
+
+    /**
+     * Fire an item of the improved bag without taking it out: the item is selected as by takeOut, updated, and
+     * stays in the bag at the level of its new priority, behind the other items of the level
+     * @param update Gets the selected item, returns it or a replacement with the same key, or null to drop it
+     * @return The updated item, or null if the bag is empty or the item was dropped
+     */
+    public Type sampleAndUpdate(UnaryOperator<Type> update) {
+        TraceRecorder r = recorder;
+        if (r == null) {
+            return sample_and_update(update);
+        }
+        // the key and priority of the item as it was selected, the update may change the item itself
+        Object[] sampled = new Object[1];
+        float[] priority = {Float.NaN};
+        Type updated = sample_and_update(item -> {
+            sampled[0] = item.name();
+            priority[0] = item.getPriority();
+            return update.apply(item);
+        });
+        r.sampleAndUpdate(sampled[0], priority[0], updated);
+        return updated;
+    }
+
+    /**
+     * sampleAndUpdate, without the trace
+     */
+    protected abstract Type sample_and_update(UnaryOperator<Type> update);
+
+    /**
+     * Set the priority of an item and move it to the level of the new priority, in the improved bag and in the
+     * bag buffer, without going through the bag buffer again
+     * @return Whether an item of the key is in the bag
+     */
+    public boolean updatePriority(K key, float newPriority) {
+        TraceRecorder r = recorder;
+        if (r != null) {
+            r.updatePriority(key, newPriority);
+        }
+        return update_priority(key, newPriority);
+    }
+
+    /**
+     * updatePriority, without the trace
+     */
+    protected abstract boolean update_priority(K key, float newPriority);
+
+    protected int level_of_IB(float priority) {
+        return Math.max((int) Math.ceil(priority * n_levels_IB) - 1, 0);
+    }
+
+    protected int level_of_BB(float priority) {
+        return Math.max((int) Math.ceil(priority * n_levels_BB) - 1, 0);
+    }
+
+    /**
+     * Take out up to n items, one after another as by takeOut
+     * @param n The maximum number of items
+     * @param sink Receives the items
+     * @return The number of items taken out
+     */
+    public int takeOut(int n, Consumer<? super Type> sink) {
+        int taken = 0;
+        while (taken < n) {
+            Type selected = takeOut();
+            if (selected == null) {
+                break;
+            }
+            sink.accept(selected);
+            taken++;
+        }
+        return taken;
+    }
+
+    public Type pickOut(Type val) {
+        return pickOut(val.name());
+    }
+
+    /**
+     * Report an item the bag dropped by itself, and keep it in the cold tier when no item of its key is left in the
+     * bag; the keys in the cold tier are never in the bag
+     */
+    protected void evicted(Type item, EvictionListener.Cause cause) {
+        EvictionListener<? super Type> l = eviction_listener;
+        if (l != null) {
+            l.evicted(item, cause);
+        }
+        ColdTier<Type, K> c = cold_tier;
+        if (c != null && cause != EvictionListener.Cause.REPLACED_IB && !in_bag(item.name())) {
+            c.put(item);
+        }
+    }
+
+    /**
+     * @return Whether an item of the key is in the improved bag or in the bag buffer
+     */
+    protected abstract boolean in_bag(K key);
+
+    /**
+     * Bring the item of a key back from the cold tier into the improved bag, at the level of its priority
+     */
+    protected abstract Type rehydrate(ColdTier<Type, K> c, K key);
+
+    public abstract String toStringLong();
+
+    /**
+     * Turn the metrics on or off, turning them on again starts from zero
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            metrics = null;
+        } else if (metrics == null) {
+            metrics = new BagMetrics();
+        }
+    }
+
+    public boolean isMetricsEnabled() {
+        return metrics != null;
+    }
+
+    /**
+     * Record the operations on the bag to a trace, for TraceReplay, see TraceRecorder
+     * @param r The recorder, or null to stop recording
+     */
+    public void setTraceRecorder(TraceRecorder r) {
+        recorder = r;
+    }
+
+    /**
+     * Report the items the bag drops by itself: the overflow of the bag buffer, the items evicted from a full level
+     * of the improved bag and the ones replaced there by a newer item of the same key
+     * @param l The listener, or null
+     */
+    public void setEvictionListener(EvictionListener<? super Type> l) {
+        eviction_listener = l;
+    }
+
+    /**
+     * Keep the evicted items in a cold tier, get and pickOut bring them back when they miss, evicting an item of
+     * the level they come back to if it is full (get of a ConcurrentBag only after setRehydrateOnGet)
+     * @param c The tier of no other bag, or null
+     */
+    public void setColdTier(ColdTier<Type, K> c) {
+        cold_tier = c;
+    }
+
+    public ColdTier<Type, K> getColdTier() {
+        return cold_tier;
+    }
+
+    /**
+     * @return A snapshot of the metrics and of the number of items in each level
+     */
+    public BagStats stats() {
+        int[] levels_IB = new int[n_levels_IB];
+        for (int i = 0; i < n_levels_IB; i++) {
+            levels_IB[i] = level_size_IB(i);
+        }
+        int[] levels_BB = new int[n_levels_BB];
+        for (int i = 0; i < n_levels_BB; i++) {
+            levels_BB[i] = level_size_BB(i);
+        }
+        return new BagStats(metrics, levels_IB, levels_BB);
+    }
+
+    protected abstract int level_size_IB(int level);
+
+    protected abstract int level_size_BB(int level);
+
+    /**
+     * Pass the items of the improved bag in the levels [lo, hi] to the action, from the highest level down and in
+     * the order of each level, without removing them
+     */
+    public abstract void forEachInLevelRange(int lo, int hi, Consumer<? super Type> action);
+
+    /**
+     * The k items of the improved bag with the highest priority, without removing them
+     * <p>
+     * The levels of the improved bag are given by the working modes rather than by the priority, so every level
+     * is visited, but only k items are kept on the way instead of sorting the whole bag.
+     * @return The items, the highest priority first
+     */
+    public List<Type> topK(int k) {
+        if (k <= 0) {
+            return new ArrayList<Type>();
+        }
+        Comparator<Type> by_priority = Comparator.comparingDouble(Item::getPriority);
+        PriorityQueue<Type> lowest_first = new PriorityQueue<Type>(Math.min(k, Math.max(size(), 1)), by_priority);
+        forEachInLevelRange(0, n_levels_IB - 1, item -> {
+            if (lowest_first.size() < k) {
+                lowest_first.add(item);
+            } else if (item.getPriority() > lowest_first.peek().getPriority()) {
+                lowest_first.poll();
+                lowest_first.add(item);
+            }
+        });
+        List<Type> top = new ArrayList<Type>(lowest_first);
+        top.sort(by_priority.reversed());
+        return top;
+    }
+
+    /**
+     * @return The items of the improved bag in the order of the iterator, see spliterator
+     */
+    public Stream<Type> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Write a snapshot record of the bag: the spec, the state of the distributors and the items of the levels in
+     * their order, each item through the codec, see {@link Bag#writeSnapshot(WritableByteChannel, ItemCodec, boolean)}
+     */
+    @Override
+    public boolean supportsSnapshot() {
+        return true;
+    }
+
+    public abstract void writeSnapshot(WritableByteChannel out, ItemCodec<? super Type> codec, boolean incremental) throws IOException;
+
+    /**
+     * Apply the snapshot records of the buffer to the bag, see {@link Bag#readSnapshot(ByteBuffer, ItemCodec)}
+     */
+    public abstract void readSnapshot(ByteBuffer in, ItemCodec<? extends Type> codec) throws IOException;
+
+    /**
+     * @return Whether the next incremental snapshot is appended to the last one, rather than written in full
+     */
+    protected abstract boolean appends_snapshot();
+
+    /**
+     * Write a snapshot to a file, a full one replaces the file and an incremental one is appended to it
+     * <p>
+     * A full snapshot is written to a temporary file next to the file, which then replaces it, and an incremental
+     * one which fails is cut off again, so the file always holds the last snapshot which was written completely.
+     */
+    public void writeSnapshot(Path file, ItemCodec<? super Type> codec, boolean incremental) throws IOException {
+        if (incremental && appends_snapshot()) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                long size = ch.size();
+                ch.position(size);
+                try {
+                    writeSnapshot(ch, codec, true);
+                } catch (IOException | RuntimeException ex) {
+                    ch.truncate(size);
+                    throw ex;
+                }
+            }
+            return;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeSnapshot(ch, codec, false);
+            ch.force(true);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Restore the bag from a file written by {@link #writeSnapshot(Path, ItemCodec, boolean)}, which is mapped
+     * into memory instead of being read
+     */
+    public void readSnapshot(Path file, ItemCodec<? extends Type> codec) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            readSnapshot(in, codec);
+        }
+    }
+
+    // the header of a record, the bags with the same spec read the records of each other
+    protected void write_snapshot_header(SnapshotWriter w, boolean full) throws IOException {
+        w.putInt(SNAPSHOT_MAGIC);
+        w.put(SNAPSHOT_VERSION);
+        w.put(full ? SNAPSHOT_FULL : SNAPSHOT_INCREMENTAL);
+        w.putInt(spec.levels);
+        w.putInt(spec.capacity);
+        w.putInt(spec.threshold);
+        w.putInt(spec.working_modes);
+        w.putInt(spec.buffer_levels);
+        w.putInt(spec.buffer_capacity);
+    }
+
+    /**
+     * @return Whether the record is a full one
+     * @throws StreamCorruptedException If the buffer holds no snapshot, or one of a bag with another spec
+     */
+    protected boolean read_snapshot_header(ByteBuffer in) throws IOException {
+        if (in.remaining() < 6 || in.getInt() != SNAPSHOT_MAGIC || in.get() != SNAPSHOT_VERSION) {
+            throw new StreamCorruptedException("not a bag snapshot");
+        }
+        boolean full = in.get() == SNAPSHOT_FULL;
+        BagSpec written = BagSpec.of(in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt(), in.getInt());
+        if (written != spec) {
+            throw new StreamCorruptedException("snapshot of " + written + ", not of " + spec);
+        }
+        return full;
+    }
+
+    // the distributors are shared through the spec, so they are taken from it instead of being serialized
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        output_distributor_IB = spec.output_distributor_IB;
+        input_distributors_IB = spec.input_distributors_IB;
+        output_distributors_BB = spec.output_distributors_BB;
+    }
+}
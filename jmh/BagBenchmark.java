@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.perf;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennars.entity.BudgetValue;
+import org.opennars.entity.Item;
+import org.opennars.main.Parameters;
+import org.opennars.storage.Bag;
+import org.opennars.storage.BagFactory;
+import org.opennars.storage.ItemBag;
+import org.opennars.storage.Memory;
+
+/**
+ * JMH benchmark of the two-tier Bag against the original level Bag.
+ * <p>
+ * Every benchmark starts from a bag filled up to its capacity and keeps the
+ * population steady, so the numbers describe a bag in its working state.
+ * Both bags are made by a BagFactory with the same total capacity, the Bag
+ * splits it evenly over its levels.
+ * Throughput gives the ops/sec, sample time gives the p99 latency, and
+ * {@code -prof gc} gives the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BagBenchmark {
+
+    /** share of putIn in the mixed workload, the same as BagPerf */
+    private static final float INSERT_RATIO = 0.9f;
+    /** length of the precomputed input streams, a power of two */
+    private static final int STREAM = 1 << 16;
+    /** share of the capacity the bags are filled to before measuring */
+    private static final float FILL = 1.0f;
+    /** bound of the insertions of the fill, in capacities, for the key spaces smaller than the capacity */
+    private static final int FILL_ROUNDS = 10;
+
+    @Param({"improved", "level"})
+    public String bag;
+
+    @Param({"100", "1000"})
+    public int levels;
+
+    /** the total number of items of the improved bag, or of the level bag */
+    @Param({"1000", "10000"})
+    public int capacity;
+
+    @Param({"2000", "100000"})
+    public int keys;
+
+    @Param({"chaotic", "uniform"})
+    public String priorities;
+
+    private Parameters parameters;
+    private Memory memory;
+    private ItemBag<BenchItem, CharSequence> target;
+
+    private String[] key_space;
+    private int[] key_stream;
+    private float[] priority_stream;
+    private boolean[] insert_stream;
+    private int cursor;
+
+    public static final class BenchItem extends Item.StringKeyItem {
+        private final String key;
+
+        BenchItem(final String key, final float priority, final Parameters parameters) {
+            super(new BudgetValue(priority, 0.5f, 0.5f, parameters));
+            this.key = key;
+        }
+
+        @Override
+        public CharSequence name() {
+            return key;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        parameters = new Parameters();
+        memory = new Memory(parameters,
+                new Bag<>(10, 1, parameters), new Bag<>(10, 1, parameters),
+                new Bag<>(10, 1, parameters), new Bag<>(10, 1, parameters));
+        target = new BagFactory(parameters).create(BagFactory.Kind.of(bag), levels, capacity);
+
+        key_space = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            key_space[i] = "k" + i;
+        }
+        final SplittableRandom random = new SplittableRandom(42);
+        key_stream = new int[STREAM];
+        insert_stream = new boolean[STREAM];
+        for (int i = 0; i < STREAM; i++) {
+            key_stream[i] = random.nextInt(keys);
+            insert_stream[i] = random.nextDouble() < INSERT_RATIO;
+        }
+        if ("chaotic".equals(priorities)) {
+            priority_stream = new ChaoticNumberGenerator(42).generate(STREAM);
+        } else {
+            priority_stream = new float[STREAM];
+            for (int i = 0; i < STREAM; i++) {
+                priority_stream[i] = (float) random.nextDouble(0, 0.99999);
+            }
+        }
+
+        // the same share of the capacity for both bags, the overflow is under way from the first measured insertion
+        final int filled = (int) (FILL * capacity);
+        for (int i = 0; i < FILL_ROUNDS * capacity && target.size() < filled; i++) {
+            target.putIn(nextItem());
+        }
+    }
+
+    // a fresh item per insertion, reusing items would let a priority change behind the back of the bag
+    private BenchItem nextItem() {
+        final int i = cursor++ & (STREAM - 1);
+        return new BenchItem(key_space[key_stream[i]], priority_stream[i], parameters);
+    }
+
+    private CharSequence nextKey() {
+        return key_space[key_stream[cursor++ & (STREAM - 1)]];
+    }
+
+    @Benchmark
+    public BenchItem putIn() {
+        return target.putIn(nextItem());
+    }
+
+    /** the taken item goes back in, which keeps the bag full */
+    @Benchmark
+    public BenchItem takeOut() {
+        final BenchItem taken = target.takeOut();
+        return taken == null ? null : target.putIn(taken);
+    }
+
+    /** putBack needs an item which is out of the bag, so it is paired with takeOut like in a cycle of Memory */
+    @Benchmark
+    public BenchItem putBack() {
+        final BenchItem taken = target.takeOut();
+        return taken == null ? null : target.putBack(taken, 10f, memory);
+    }
+
+    /** a picked item goes back in, a missing key is replaced by a new item */
+    @Benchmark
+    public BenchItem pickOut() {
+        final BenchItem picked = target.pickOut(nextKey());
+        return target.putIn(picked != null ? picked : nextItem());
+    }
+
+    /** random insertions and removals in the ratio of BagPerf */
+    @Benchmark
+    public void mixed(final Blackhole blackhole) {
+        if (insert_stream[cursor & (STREAM - 1)]) {
+            blackhole.consume(target.putIn(nextItem()));
+        } else {
+            cursor++;
+            blackhole.consume(target.takeOut());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.perf;
+
+import java.util.SplittableRandom;
+
+/**
+ * Java port of the ChaoticNumberGenerator of utils.py, a priority stream
+ * which switches between uniform noise and a few gaussian clusters.
+ */
+public final class ChaoticNumberGenerator {
+
+    /** largest generated number, priorities of 1 would land above the top level */
+    private static final double MAX = 1 - 1e-5;
+
+    private final double mode_change_prob;
+    private final SplittableRandom random;
+
+    private boolean clustered = false;
+    private double[] cluster_centers = new double[0];
+    private double[] cluster_stds = new double[0];
+
+    public ChaoticNumberGenerator(final double mode_change_prob, final long seed) {
+        this.mode_change_prob = mode_change_prob;
+        this.random = new SplittableRandom(seed);
+    }
+
+    public ChaoticNumberGenerator(final long seed) {
+        this(0.05, seed);
+    }
+
+    public double next() {
+        if (random.nextDouble() < mode_change_prob) {
+            switch_mode();
+        }
+        if (!clustered) {
+            return random.nextDouble(0, MAX);
+        }
+        final int idx = random.nextInt(cluster_centers.length);
+        final double num = cluster_centers[idx] + cluster_stds[idx] * gaussian();
+        return Math.min(Math.max(num, 0), MAX);
+    }
+
+    public float[] generate(final int n) {
+        final float[] ret = new float[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = (float) next();
+        }
+        return ret;
+    }
+
+    private void switch_mode() {
+        clustered = !clustered;
+        if (clustered) {
+            final int num_clusters = random.nextInt(1, 5);
+            cluster_centers = new double[num_clusters];
+            cluster_stds = new double[num_clusters];
+            for (int i = 0; i < num_clusters; i++) {
+                cluster_centers[i] = random.nextDouble(0.2, 0.8);
+                cluster_stds[i] = random.nextDouble(0.05, 0.2);
+            }
+        }
+    }
+
+    // Box-Muller, SplittableRandom has no gaussian of its own
+    private double gaussian() {
+        final double u = 1 - random.nextDouble();
+        final double v = random.nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * v);
+    }
+}
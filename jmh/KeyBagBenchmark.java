@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.perf;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennars.entity.BudgetValue;
+import org.opennars.entity.Item;
+import org.opennars.main.Parameters;
+import org.opennars.storage.Bag;
+import org.opennars.storage.BagSpec;
+import org.opennars.storage.IntKeyBag;
+import org.opennars.storage.SplitMix64;
+
+/**
+ * JMH benchmark of the int-keyed bag against Bag, for items which are only an id and a priority.
+ * <p>
+ * The workloads are those of {@link BagBenchmark}, on the same streams of keys and priorities; Bag gets a new
+ * item for each insertion, as its callers do. Run with {@code -prof gc} to compare the allocation rate and the
+ * GC time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBagBenchmark {
+
+    private static final float INSERT_RATIO = 0.9f;
+    private static final int STREAM = 1 << 16;
+
+    @Param({"improved", "int", "int-offheap"})
+    public String bag;
+
+    @Param({"100", "1000"})
+    public int levels;
+
+    @Param({"1000", "10000"})
+    public int capacity;
+
+    @Param({"2000", "100000"})
+    public int keys;
+
+    @Param({"chaotic", "uniform"})
+    public String priorities;
+
+    private Ops ops;
+
+    private int[] key_stream;
+    private float[] priority_stream;
+    private boolean[] insert_stream;
+    private int cursor;
+
+    /**
+     * The operations being measured, on keys and priorities; -1 stands for no key
+     */
+    private interface Ops {
+        int putIn(int key, float priority);
+        int takeOut();
+        float takenPriority();
+        boolean pickOut(int key);
+    }
+
+    public static final class IdItem extends Item.StringKeyItem {
+        private final int id;
+        private final String key;
+
+        IdItem(final int id, final String key, final float priority, final Parameters parameters) {
+            super(new BudgetValue(priority, 0.5f, 0.5f, parameters));
+            this.id = id;
+            this.key = key;
+        }
+
+        @Override
+        public CharSequence name() {
+            return key;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        final BagSpec spec = BagSpec.of(levels, capacity, (int) (new Parameters().BAG_THRESHOLD * levels));
+        if ("improved".equals(bag)) {
+            ops = improvedOps(spec);
+        } else {
+            ops = intOps(new IntKeyBag(spec, new SplitMix64(), "int-offheap".equals(bag)));
+        }
+
+        final SplittableRandom random = new SplittableRandom(42);
+        key_stream = new int[STREAM];
+        insert_stream = new boolean[STREAM];
+        for (int i = 0; i < STREAM; i++) {
+            key_stream[i] = random.nextInt(keys);
+            insert_stream[i] = random.nextDouble() < INSERT_RATIO;
+        }
+        if ("chaotic".equals(priorities)) {
+            priority_stream = new ChaoticNumberGenerator(42).generate(STREAM);
+        } else {
+            priority_stream = new float[STREAM];
+            for (int i = 0; i < STREAM; i++) {
+                priority_stream[i] = (float) random.nextDouble(0, 0.99999);
+            }
+        }
+
+        for (int i = 0; i < 2 * capacity; i++) {
+            putNext();
+        }
+    }
+
+    private Ops improvedOps(final BagSpec spec) {
+        final Parameters parameters = new Parameters();
+        final Bag<IdItem, CharSequence> b = new Bag<>(spec);
+        final String[] names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "k" + i;
+        }
+        return new Ops() {
+            private float taken_priority;
+
+            @Override public int putIn(final int key, final float priority) {
+                final IdItem overflow = b.putIn(new IdItem(key, names[key], priority, parameters));
+                return overflow == null ? -1 : overflow.id;
+            }
+            @Override public int takeOut() {
+                final IdItem taken = b.takeOut();
+                if (taken == null) {
+                    return -1;
+                }
+                taken_priority = taken.getPriority();
+                return taken.id;
+            }
+            @Override public float takenPriority() { return taken_priority; }
+            @Override public boolean pickOut(final int key) {
+                final IdItem picked = b.pickOut(names[key]);
+                if (picked == null) {
+                    return false;
+                }
+                taken_priority = picked.getPriority();
+                return true;
+            }
+        };
+    }
+
+    private static Ops intOps(final IntKeyBag b) {
+        return new Ops() {
+            @Override public int putIn(final int key, final float priority) { return b.putIn(key, priority); }
+            @Override public int takeOut() { return b.takeOut(); }
+            @Override public float takenPriority() { return b.takenPriority(); }
+            @Override public boolean pickOut(final int key) { return b.pickOut(key); }
+        };
+    }
+
+    private int putNext() {
+        final int i = cursor++ & (STREAM - 1);
+        return ops.putIn(key_stream[i], priority_stream[i]);
+    }
+
+    @Benchmark
+    public int putIn() {
+        return putNext();
+    }
+
+    /** the taken key goes back in with its priority, which keeps the bag full */
+    @Benchmark
+    public int takeOut() {
+        final int taken = ops.takeOut();
+        return taken < 0 ? -1 : ops.putIn(taken, ops.takenPriority());
+    }
+
+    /** a picked key goes back in, a missing key is replaced by the next one of the stream */
+    @Benchmark
+    public int pickOut() {
+        final int key = key_stream[cursor & (STREAM - 1)];
+        if (ops.pickOut(key)) {
+            cursor++;
+            return ops.putIn(key, ops.takenPriority());
+        }
+        return putNext();
+    }
+
+    @Benchmark
+    public void mixed(final Blackhole blackhole) {
+        if (insert_stream[cursor & (STREAM - 1)]) {
+            blackhole.consume(putNext());
+        } else {
+            cursor++;
+            blackhole.consume(ops.takeOut());
+        }
+    }
+}
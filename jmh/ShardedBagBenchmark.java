@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.perf;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opennars.entity.BudgetValue;
+import org.opennars.entity.Item;
+import org.opennars.main.Parameters;
+import org.opennars.storage.ConcurrentBag;
+import org.opennars.storage.ShardedBag;
+
+/**
+ * JMH benchmark of the reasoning cycle of several workers on one shared bag: take an item out and put it
+ * back, with a new item now and then.
+ * <p>
+ * Run with {@code -t 1}, {@code -t 2}, ... up to the number of cores to see how the throughput scales; the
+ * sharded bag gets one shard per worker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedBagBenchmark {
+
+    /** share of the cycles which put a new item in */
+    private static final float INSERT_RATIO = 0.1f;
+
+    @Param({"sharded", "concurrent"})
+    public String bag;
+
+    @Param({"100"})
+    public int levels;
+
+    /** capacity of each level of the whole bag, each shard of a ShardedBag gets its share */
+    @Param({"1000"})
+    public int capacity;
+
+    @Param({"100000"})
+    public int keys;
+
+    private Parameters parameters;
+    private ShardedBag<BagBenchmark.BenchItem, CharSequence> sharded;
+    private ConcurrentBag<BagBenchmark.BenchItem, CharSequence> concurrent;
+    private String[] key_space;
+    private final AtomicInteger workers = new AtomicInteger();
+
+    /**
+     * The home shard and random stream of a worker thread
+     */
+    @State(Scope.Thread)
+    public static class Worker {
+        int home;
+        SplittableRandom random;
+
+        @Setup
+        public void setup(final ShardedBagBenchmark b) {
+            home = b.workers.getAndIncrement();
+            random = new SplittableRandom(home);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        parameters = new Parameters();
+        final int threshold = (int) (parameters.BAG_THRESHOLD * levels);
+        if ("sharded".equals(bag)) {
+            final int shards = Runtime.getRuntime().availableProcessors();
+            sharded = new ShardedBag<>(levels, Math.max(1, capacity / shards), threshold, shards);
+        } else {
+            concurrent = new ConcurrentBag<>(levels, capacity, threshold);
+        }
+        key_space = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            key_space[i] = "k" + i;
+        }
+        final SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < keys; i++) {
+            putIn(newItem(random));
+        }
+    }
+
+    private BagBenchmark.BenchItem newItem(final SplittableRandom random) {
+        return new BagBenchmark.BenchItem(key_space[random.nextInt(keys)], (float) random.nextDouble(0, 0.99999), parameters);
+    }
+
+    private Item<CharSequence> putIn(final BagBenchmark.BenchItem item) {
+        return sharded != null ? sharded.putIn(item) : concurrent.putIn(item);
+    }
+
+    @Benchmark
+    public Item<CharSequence> cycle(final Worker w) {
+        if (w.random.nextDouble() < INSERT_RATIO) {
+            return putIn(newItem(w.random));
+        }
+        final BagBenchmark.BenchItem taken = sharded != null ? sharded.takeOut(w.home) : concurrent.takeOut();
+        return taken == null ? null : putIn(taken);
+    }
+}
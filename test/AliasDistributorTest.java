@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The alias table must pick each number in the proportions of the order table of Distributor.
+ */
+public class AliasDistributorTest {
+
+    // upper quantile of the standard normal distribution at p = 0.001
+    private static final double Z = 3.09;
+
+    @Test
+    public void testProportionsMatchDistributor() {
+        for (final int range : new int[] {1, 2, 3, 5, 10, 64, 100, 128, 129, 500, 1000}) {
+            assertProportions(range, 0, range - 1, false);
+        }
+    }
+
+    @Test
+    public void testProportionsOfAPartOfTheLevels() {
+        for (final boolean inverse : new boolean[] {false, true}) {
+            assertProportions(200, 100, 299, inverse);
+            assertProportions(7, 21, 27, inverse);
+        }
+    }
+
+    @Test
+    public void testEveryNumberInRange() {
+        final AliasDistributor alias = new AliasDistributor(10, 19, true);
+        int index = 0;
+        for (int i = 0; i < 100000; i++) {
+            final int n = alias.pick(index);
+            assertTrue("out of range: " + n, n >= 10 && n <= 19);
+            index = alias.next(index);
+        }
+    }
+
+    /**
+     * Chi-square of the picks of the alias table against the frequencies of the numbers in a cycle of Distributor
+     */
+    private static void assertProportions(final int range, final int start, final int end, final boolean inverse) {
+        final Distributor order = new Distributor(start, end, inverse);
+        final int cycle = range * (range + 1) / 2;
+        final long[] expected = new long[range];
+        int index = 0;
+        for (int i = 0; i < cycle; i++) {
+            expected[order.pick(index) - start]++;
+            index = order.next(index);
+        }
+        assertEquals(0, index);
+
+        // at least 10 picks of the rarest number
+        final long draws = 10L * cycle;
+        final AliasDistributor alias = new AliasDistributor(start, end, inverse);
+        final long[] observed = new long[range];
+        index = 0;
+        for (long i = 0; i < draws; i++) {
+            final int n = alias.pick(index);
+            assertTrue("out of range: " + n, n >= start && n <= end);
+            observed[n - start]++;
+            index = alias.next(index);
+        }
+
+        double chi2 = 0;
+        for (int i = 0; i < range; i++) {
+            final double e = (double) expected[i] * draws / cycle;
+            final double d = observed[i] - e;
+            chi2 += d * d / e;
+        }
+        final int df = Math.max(1, range - 1);
+        // Wilson-Hilferty approximation of the critical value
+        final double c = 2.0 / (9 * df);
+        final double critical = df * Math.pow(1 - c + Z * Math.sqrt(c), 3);
+        assertTrue("range " + range + " [" + start + ", " + end + "]" + (inverse ? " inverse" : "") + ": chi-square " + chi2
+                + " above " + critical, chi2 < critical);
+    }
+}
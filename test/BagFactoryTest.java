@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.entity.Concept;
+import org.opennars.entity.Task;
+import org.opennars.language.Term;
+import org.opennars.main.Parameters;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bags of a factory hold at most about the size they are given whatever their kind, and a memory with bags of
+ * every kind can be snapshotted.
+ */
+public class BagFactoryTest {
+
+    private static final Parameters narParameters = new Parameters();
+
+    @Test
+    public void testEveryKindHoldsTheTotalCapacity() {
+        final int levels = 10;
+        final int capacity = 1000;
+        final BagFactory factory = new BagFactory(narParameters).setShards(4);
+        for (final BagFactory.Kind kind : BagFactory.Kind.values()) {
+            final ItemBag<TestItem, CharSequence> bag = factory.create(kind, levels, capacity);
+            for (int i = 0; i < 20 * capacity; i++) {
+                bag.putIn(new TestItem("k" + i, (i % 100) / 100f));
+            }
+            // the improved bags keep one more item than their capacity in each level
+            final int slack = kind == BagFactory.Kind.SHARDED ? 4 * levels : kind == BagFactory.Kind.LEVEL ? 0 : levels;
+            assertTrue(kind + " holds " + bag.size(), bag.size() <= capacity + slack);
+            assertTrue(kind + " holds " + bag.size(), bag.size() >= capacity * 3 / 4);
+        }
+    }
+
+    @Test
+    public void testSmallShardedBagHasFewerShards() {
+        final int levels = 10;
+        final BagFactory factory = new BagFactory(narParameters).setShards(8);
+        // two items per level, for two shards of one item per level
+        final ItemBag<TestItem, CharSequence> bag = factory.create(BagFactory.Kind.SHARDED, levels, 2 * levels);
+        assertEquals(2, ((ShardedBag<TestItem, CharSequence>) bag).shardCount());
+        for (int i = 0; i < 1000; i++) {
+            bag.putIn(new TestItem("k" + i, (i % 100) / 100f));
+        }
+        // each shard keeps one more item than its capacity in each level
+        assertTrue("holds " + bag.size(), bag.size() <= 2 * 2 * levels);
+    }
+
+    @Test
+    public void testMemoryLeavesOutTheBagsWithoutSnapshots() throws IOException {
+        final ItemCodec<Concept> concepts = new FailingCodec<Concept>();
+        final ItemCodec<Task<Term>> tasks = new FailingCodec<Task<Term>>();
+        final Path dir = Files.createTempDirectory("memory");
+        final Path stale = dir.resolve("novelTasks.bag");
+        try {
+            Files.write(stale, new byte[] {1, 2, 3});
+            final Memory memory = new BagFactory(narParameters)
+                    .setKind(BagFactory.NOVEL_TASKS, BagFactory.Kind.LEVEL)
+                    .setKind(BagFactory.SEQ_CURRENT, BagFactory.Kind.SHARDED)
+                    .setKind(BagFactory.RECENT_OPERATIONS, BagFactory.Kind.CONCURRENT)
+                    .memory();
+            memory.writeSnapshot(dir, concepts, tasks, false);
+            assertTrue(Files.exists(dir.resolve("concepts.bag")));
+            assertTrue(Files.exists(dir.resolve("recent_operations.bag")));
+            assertFalse("the file of an earlier snapshot is removed", Files.exists(stale));
+            assertFalse(Files.exists(dir.resolve("seq_current.bag")));
+            memory.readSnapshot(dir, concepts, tasks);
+            assertEquals(0, memory.concepts.size());
+        } finally {
+            for (final String name : new String[] {"concepts.bag", "novelTasks.bag", "seq_current.bag", "recent_operations.bag"}) {
+                Files.deleteIfExists(dir.resolve(name));
+            }
+            Files.delete(dir);
+        }
+    }
+
+    // the bags are empty, so no item is ever encoded
+    static class FailingCodec<T> implements ItemCodec<T> {
+        @Override
+        public void encode(final T item, final ByteBuffer out) {
+            throw new AssertionError("encoded " + item);
+        }
+
+        @Override
+        public T decode(final ByteBuffer in) {
+            throw new AssertionError("decoded");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The items of the bag buffer of a Bag expire after the generations of setBufferMaxAge, unless they are put in
+ * again, also when the generation counter wraps around.
+ */
+public class BufferMaxAgeTest {
+
+    // the items stay in a large bag buffer, which evicts nothing
+    private static final BagSpec SPEC = BagSpec.of(10, 10, 5, 5, 50, 100000);
+    private static final int MAX_AGE = 2;
+
+    private final List<CharSequence> expired = new ArrayList<CharSequence>();
+
+    private Bag<TestItem, CharSequence> bag(final int maxAge) {
+        final Bag<TestItem, CharSequence> bag = new Bag<TestItem, CharSequence>(SPEC, new SplitMix64(1));
+        bag.setMigrationRate(0);
+        bag.setBufferMaxAge(maxAge, 0);
+        bag.setEvictionListener((item, cause) -> {
+            assertEquals(EvictionListener.Cause.EXPIRED_BB, cause);
+            expired.add(item.name());
+        });
+        return bag;
+    }
+
+    private static void setGeneration(final Bag<TestItem, CharSequence> bag, final int generation) throws ReflectiveOperationException {
+        final Field f = Bag.class.getDeclaredField("generation_BB");
+        f.setAccessible(true);
+        f.setInt(bag, generation);
+    }
+
+    @Test
+    public void testItemsExpireAfterMaxAgeGenerations() {
+        final Bag<TestItem, CharSequence> bag = bag(MAX_AGE);
+        bag.putIn(new TestItem("a", 0.1f));
+        bag.putIn(new TestItem("b", 0.9f));
+        for (int i = 0; i < MAX_AGE; i++) {
+            assertEquals(0, bag.closeBufferGeneration());
+        }
+        assertEquals(2, bag.closeBufferGeneration());
+        assertEquals(new HashSet<CharSequence>(Arrays.asList("a", "b")), new HashSet<CharSequence>(expired));
+        assertEquals(0, bag.stats().size_BB);
+        assertEquals(0, bag.closeBufferGeneration());
+    }
+
+    @Test
+    public void testPutInAgainStartsOver() {
+        final Bag<TestItem, CharSequence> bag = bag(MAX_AGE);
+        bag.putIn(new TestItem("a", 0.1f));
+        bag.putIn(new TestItem("b", 0.1f));
+        bag.putIn(new TestItem("c", 0.1f));
+        bag.closeBufferGeneration();
+        bag.closeBufferGeneration();
+        // the first one of the level goes to its end, in the current generation
+        bag.putIn(new TestItem("a", 0.1f));
+        assertEquals(2, bag.closeBufferGeneration());
+        assertEquals(Arrays.asList("b", "c"), expired);
+        assertEquals(0, bag.closeBufferGeneration());
+        assertEquals(1, bag.closeBufferGeneration());
+        assertEquals("a", expired.get(2));
+    }
+
+    @Test
+    public void testRestoredItemsStartOver() throws IOException, ClassNotFoundException {
+        final Bag<TestItem, CharSequence> bag = bag(MAX_AGE);
+        bag.putIn(new TestItem("a", 0.1f));
+        bag.closeBufferGeneration();
+        bag.putIn(new TestItem("b", 0.9f));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(bag);
+        }
+        final Bag<TestItem, CharSequence> restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            final Bag<TestItem, CharSequence> read = (Bag<TestItem, CharSequence>) in.readObject();
+            restored = read;
+        }
+        for (int i = 0; i < MAX_AGE; i++) {
+            assertEquals(0, restored.closeBufferGeneration());
+        }
+        assertEquals(2, restored.closeBufferGeneration());
+    }
+
+    /**
+     * Random puts, re-puts included, against a model of the generation each key was last put in
+     * @param generation The generation the bag starts at
+     */
+    private void assertExpiryMatchesTheModel(final int generation) throws ReflectiveOperationException {
+        final Bag<TestItem, CharSequence> bag = bag(MAX_AGE);
+        setGeneration(bag, generation);
+        final Map<String, Integer> put = new HashMap<String, Integer>();
+        final Random random = new Random(7);
+        for (int g = 0; g < 50; g++) {
+            for (int i = 0; i < 40; i++) {
+                final String key = "k" + random.nextInt(300);
+                bag.putIn(new TestItem(key, random.nextFloat() * 0.99f));
+                put.put(key, g);
+            }
+            expired.clear();
+            final int n = bag.closeBufferGeneration();
+            final Set<String> due = new HashSet<String>();
+            for (final Map.Entry<String, Integer> e : put.entrySet()) {
+                if (g + 1 - e.getValue() > MAX_AGE) {
+                    due.add(e.getKey());
+                }
+            }
+            put.keySet().removeAll(due);
+            assertEquals("generation " + g, due, new HashSet<CharSequence>(expired));
+            assertEquals(due.size(), n);
+            assertEquals(put.size(), bag.stats().size_BB);
+        }
+    }
+
+    @Test
+    public void testExpiryMatchesTheModel() throws ReflectiveOperationException {
+        assertExpiryMatchesTheModel(0);
+    }
+
+    @Test
+    public void testExpiryAcrossTheWrapAroundOfTheGenerations() throws ReflectiveOperationException {
+        assertExpiryMatchesTheModel(Integer.MAX_VALUE - 20);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The items brought back from the cold tier go to a level of the improved bag as a transfer would, without
+ * overfilling it, and the get of a ConcurrentBag looks up the cold tier only when asked to.
+ */
+public class ColdTierTest {
+
+    private static final int LEVELS = 10;
+    private static final int CAPACITY = 2;
+
+    /**
+     * Fill the bag until items are evicted to the cold tier
+     * @return The keys in the cold tier
+     */
+    private static List<String> evict(final TwoTierBag<TestItem, CharSequence> bag, final ColdTier<TestItem, CharSequence> cold) {
+        for (int i = 0; i < 500; i++) {
+            bag.putIn(new TestItem("k" + i, 0.95f));
+        }
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            if (cold.contains("k" + i)) {
+                keys.add("k" + i);
+            }
+        }
+        assertTrue(keys.size() > LEVELS * (CAPACITY + 1));
+        return keys;
+    }
+
+    @Test
+    public void testRehydrateKeepsTheCapacity() throws IOException {
+        for (final boolean concurrent : new boolean[] {false, true}) {
+            final Path file = Files.createTempFile("bag", ".cold");
+            try (ColdTier<TestItem, CharSequence> cold = ColdTier.open(file, new SnapshotTest.TestCodec(), 1 << 20)) {
+                final TwoTierBag<TestItem, CharSequence> bag = concurrent
+                        ? new ConcurrentBag<TestItem, CharSequence>(BagSpec.of(LEVELS, CAPACITY, 5))
+                        : new Bag<TestItem, CharSequence>(BagSpec.of(LEVELS, CAPACITY, 5));
+                if (concurrent) {
+                    ((ConcurrentBag<TestItem, CharSequence>) bag).setRehydrateOnGet(true);
+                }
+                bag.setColdTier(cold);
+                final List<String> keys = evict(bag, cold);
+                final int[] causes = new int[EvictionListener.Cause.values().length];
+                bag.setEvictionListener((item, cause) -> causes[cause.ordinal()]++);
+                final int level = bag.level_of_IB(0.95f);
+                int rehydrated = 0;
+                for (final String key : keys) {
+                    final TestItem item = bag.get(key);
+                    if (item == null) {
+                        // pushed back to the cold tier by one brought back before it
+                        continue;
+                    }
+                    rehydrated++;
+                    assertEquals(key, item.name());
+                    assertTrue("level " + level + " overfilled", bag.stats().levels_IB[level] <= CAPACITY + 1);
+                }
+                assertTrue(rehydrated > CAPACITY + 1);
+                // once the level is full, every item brought back evicts one
+                assertTrue(causes[EvictionListener.Cause.EVICTED_IB.ordinal()] >= rehydrated - (CAPACITY + 1));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentBagGetLooksUpTheColdTierOnlyWhenAsked() throws IOException {
+        final Path file = Files.createTempFile("bag", ".cold");
+        try (ColdTier<TestItem, CharSequence> cold = ColdTier.open(file, new SnapshotTest.TestCodec(), 1 << 20)) {
+            final ConcurrentBag<TestItem, CharSequence> bag = new ConcurrentBag<TestItem, CharSequence>(BagSpec.of(LEVELS, CAPACITY, 5));
+            bag.setColdTier(cold);
+            final String key = evict(bag, cold).get(0);
+            final long lookups = cold.hits() + cold.misses();
+            assertNull(bag.get(key));
+            assertNull(bag.get("missing"));
+            assertEquals(lookups, cold.hits() + cold.misses());
+
+            bag.setRehydrateOnGet(true);
+            assertNotNull(bag.get(key));
+            assertTrue(bag.contains(bag.get(key)));
+            assertTrue(!cold.contains(key));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
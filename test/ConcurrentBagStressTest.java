@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.entity.BudgetValue;
+import org.opennars.entity.Item;
+import org.opennars.main.Parameters;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several threads put in, take out and pick out items with unique keys, every item put in must end up exactly
+ * once among the taken ones, the evicted ones and the ones left in the bag.
+ */
+public class ConcurrentBagStressTest {
+
+    private static final Parameters narParameters = new Parameters();
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 20000;
+
+    static class TestItem extends Item.StringKeyItem {
+        private final String key;
+
+        TestItem(final String key, final float priority) {
+            super(new BudgetValue(priority, 0.5f, 0.5f, narParameters));
+            this.key = key;
+        }
+
+        @Override
+        public CharSequence name() {
+            return key;
+        }
+    }
+
+    @Test
+    public void testNoItemLostOrDuplicated() throws Exception {
+        stress(new ConcurrentBag<TestItem, CharSequence>(100, 50, narParameters), false, false);
+    }
+
+    @Test
+    public void testNoItemLostOrDuplicatedWithMigrator() throws Exception {
+        stress(new ConcurrentBag<TestItem, CharSequence>(100, 50, narParameters), true, false);
+    }
+
+    @Test
+    public void testNoItemLostWhileTheMigratorStops() throws Exception {
+        stress(new ConcurrentBag<TestItem, CharSequence>(100, 50, narParameters), true, true);
+    }
+
+    @Test
+    public void testFullBufferReturnsTheOverflowWithMigrator() throws Exception {
+        final ConcurrentBag<TestItem, CharSequence> bag = new ConcurrentBag<TestItem, CharSequence>(10, 1, narParameters);
+        // the migrator leaves the items in the bag buffer, which fills up
+        bag.setTransferRatio(0);
+        bag.startMigrator(256, 32, null);
+        int overflows = 0;
+        try {
+            for (int i = 0; i < 1000; i++) {
+                if (bag.putIn(new TestItem("k" + i, (i % 100) / 100f)) != null) {
+                    overflows++;
+                }
+            }
+        } finally {
+            bag.stopMigrator();
+        }
+        assertTrue("no overflow returned", overflows > 0);
+    }
+
+    /**
+     * @param restarts Whether the migrator is stopped and started again while the threads put items in
+     */
+    private static void stress(final ConcurrentBag<TestItem, CharSequence> bag, final boolean migrator,
+                               final boolean restarts) throws Exception {
+        final Set<CharSequence> all = ConcurrentHashMap.newKeySet();
+        final Set<CharSequence> taken = ConcurrentHashMap.newKeySet();
+        final Set<CharSequence> evicted = ConcurrentHashMap.newKeySet();
+        final AtomicInteger duplicates = new AtomicInteger();
+        bag.setEvictionListener((item, cause) -> {
+            if (!evicted.add(item.name())) {
+                duplicates.incrementAndGet();
+            }
+        });
+        if (migrator) {
+            bag.startMigrator(256, 32, null);
+        }
+        final Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                final Random random = new Random(thread);
+                for (int i = 0; i < OPERATIONS; i++) {
+                    final float x = random.nextFloat();
+                    TestItem got = null;
+                    if (x < 0.5f) {
+                        final TestItem item = new TestItem("t" + thread + "-" + i, random.nextFloat() * 0.99f);
+                        all.add(item.name());
+                        bag.putIn(item);
+                    } else if (x < 0.8f) {
+                        got = bag.takeOut();
+                    } else if (x < 0.85f) {
+                        got = bag.pickOut("t" + random.nextInt(THREADS) + "-" + random.nextInt(i + 1));
+                    } else if (x < 0.9f) {
+                        bag.updatePriority("t" + random.nextInt(THREADS) + "-" + random.nextInt(i + 1), random.nextFloat() * 0.99f);
+                    } else {
+                        final TestItem item = bag.takeOut();
+                        if (item != null) {
+                            // put back, so it is owned by the bag again
+                            bag.putIn(item);
+                        }
+                    }
+                    if (got != null && !taken.add(got.name())) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        if (restarts) {
+            while (threads[0].isAlive()) {
+                bag.stopMigrator();
+                bag.startMigrator(16, 8, null);
+                Thread.sleep(1);
+            }
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (migrator) {
+            bag.stopMigrator();
+        }
+        while (bag.migrate(1)) {
+            // empty the bag buffer into the improved bag
+        }
+        TestItem item;
+        while ((item = bag.takeOut()) != null) {
+            if (!taken.add(item.name())) {
+                duplicates.incrementAndGet();
+            }
+        }
+
+        assertEquals("duplicated items", 0, duplicates.get());
+        for (final CharSequence key : taken) {
+            assertTrue("taken and evicted: " + key, !evicted.contains(key));
+        }
+        assertEquals("lost items", all.size(), taken.size() + evicted.size());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.entity.BudgetValue;
+import org.opennars.inference.BudgetFunctions;
+import org.opennars.main.Parameters;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The lazy forgetting of Bag decays the items by the cycles of its clock, as applyForgetting would once per cycle,
+ * and a restored bag does not charge its items the cycles which went by before it was written.
+ */
+public class LazyForgettingTest {
+
+    private static final BagSpec SPEC = BagSpec.of(50, 10, 25);
+    private static final float FORGET_CYCLES = 100;
+    private static final float RELATIVE_THRESHOLD = 0.1f;
+    private static final int CYCLES = 20;
+
+    /**
+     * @param clock The clock of the bag when the items are put in
+     */
+    private static Bag<TestItem, CharSequence> bag(final int clock) {
+        final Bag<TestItem, CharSequence> bag = new Bag<TestItem, CharSequence>(SPEC, new SplitMix64(1));
+        bag.setLazyForgetting(FORGET_CYCLES, RELATIVE_THRESHOLD);
+        bag.tick(clock);
+        for (int i = 0; i < 200; i++) {
+            bag.putIn(new TestItem("k" + i, 0.5f + 0.45f * (i % 10) / 10));
+        }
+        return bag;
+    }
+
+    /**
+     * @return The priorities of the items of the improved bag, decayed up to the clock
+     */
+    private static Map<String, Float> priorities(final Bag<TestItem, CharSequence> bag) {
+        final Map<String, Float> priorities = new LinkedHashMap<String, Float>();
+        for (int i = 0; i < 200; i++) {
+            final TestItem item = bag.get("k" + i);
+            if (item != null) {
+                priorities.put("k" + i, item.getPriority());
+            }
+        }
+        return priorities;
+    }
+
+    private static void assertDecayMatchesApplyForgetting(final int startClock) {
+        final Bag<TestItem, CharSequence> bag = bag(startClock);
+        final Map<String, Float> before = priorities(bag);
+        assertFalse(before.isEmpty());
+        bag.tick(CYCLES);
+        final Map<String, Float> after = priorities(bag);
+        final Parameters narParameters = new Parameters();
+        for (final Map.Entry<String, Float> e : before.entrySet()) {
+            final BudgetValue eager = new BudgetValue(e.getValue(), 0.5f, 0.5f, narParameters);
+            for (int i = 0; i < CYCLES; i++) {
+                BudgetFunctions.applyForgetting(eager, FORGET_CYCLES, RELATIVE_THRESHOLD);
+            }
+            assertTrue(after.get(e.getKey()) < e.getValue());
+            assertEquals(e.getKey(), eager.getPriority(), after.get(e.getKey()), 0.005f);
+        }
+    }
+
+    @Test
+    public void testDecayMatchesApplyForgetting() {
+        assertDecayMatchesApplyForgetting(1000);
+    }
+
+    @Test
+    public void testDecayAcrossEpochWraparound() {
+        // the int epoch of the nodes wraps around while the cycles are elapsing
+        assertDecayMatchesApplyForgetting(Integer.MAX_VALUE - CYCLES / 2);
+    }
+
+    @Test
+    public void testSerializedBagKeepsPriorities() throws IOException, ClassNotFoundException {
+        final Bag<TestItem, CharSequence> bag = bag(1000);
+        bag.tick(CYCLES);
+        final Map<String, Float> before = priorities(bag);
+        assertFalse(before.isEmpty());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(bag);
+        }
+        final Bag<TestItem, CharSequence> restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            final Bag<TestItem, CharSequence> read = (Bag<TestItem, CharSequence>) in.readObject();
+            restored = read;
+        }
+        assertEquals(1000 + CYCLES, restored.clock());
+        assertEquals(before, priorities(restored));
+    }
+
+    @Test
+    public void testSnapshotKeepsPriorities() throws IOException {
+        final Bag<TestItem, CharSequence> bag = bag(1000);
+        bag.tick(CYCLES);
+        final Map<String, Float> before = priorities(bag);
+        final Path file = Files.createTempFile("bag", ".snap");
+        try {
+            bag.writeSnapshot(file, new SnapshotTest.TestCodec(), false);
+            final Bag<TestItem, CharSequence> restored = new Bag<TestItem, CharSequence>(SPEC);
+            restored.setLazyForgetting(FORGET_CYCLES, RELATIVE_THRESHOLD);
+            restored.tick(500);
+            restored.readSnapshot(file, new SnapshotTest.TestCodec());
+            assertEquals(before, priorities(restored));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The reads of the improved bag which leave the items in place: topK, forEachInLevelRange and the spliterator of
+ * Bag, which splits by ranges of levels.
+ */
+public class LevelTraversalTest {
+
+    private static final BagSpec SPEC = BagSpec.of(10, 50, 5);
+
+    private static List<TwoTierBag<TestItem, CharSequence>> bags() {
+        return Arrays.<TwoTierBag<TestItem, CharSequence>>asList(
+                new Bag<TestItem, CharSequence>(SPEC, new SplitMix64(1)),
+                new ConcurrentBag<TestItem, CharSequence>(SPEC));
+    }
+
+    /**
+     * Put the items into the improved bag, each one at the level of its priority
+     */
+    private static void fill(final TwoTierBag<TestItem, CharSequence> bag, final float... priorities) {
+        final List<TestItem> items = new ArrayList<TestItem>();
+        for (int i = 0; i < priorities.length; i++) {
+            items.add(new TestItem("k" + i, 0.5f));
+        }
+        bag.putInAll(items, null);
+        assertEquals(priorities.length, bag.size());
+        // the migration chooses the levels by the working modes, updatePriority moves them by the priority
+        for (int i = 0; i < priorities.length; i++) {
+            assertTrue(bag.updatePriority("k" + i, priorities[i]));
+        }
+    }
+
+    private static int levelOf(final TestItem item) {
+        return Math.max((int) Math.ceil(item.getPriority() * SPEC.levels) - 1, 0);
+    }
+
+    @Test
+    public void testTopKInTheOrderOfThePriorities() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            fill(bag, 0.05f, 0.95f, 0.35f, 0.75f, 0.55f, 0.15f);
+            final List<String> top = new ArrayList<String>();
+            for (final TestItem item : bag.topK(3)) {
+                top.add(item.name().toString());
+            }
+            assertEquals(Arrays.asList("k1", "k3", "k4"), top);
+            assertEquals(6, bag.topK(10).size());
+            assertTrue(bag.topK(0).isEmpty());
+            assertEquals(6, bag.size());
+        }
+    }
+
+    @Test
+    public void testTopKWithTies() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            fill(bag, 0.25f, 0.65f, 0.65f, 0.65f, 0.85f);
+            final List<TestItem> top = bag.topK(3);
+            assertEquals(3, top.size());
+            assertEquals(0.85f, top.get(0).getPriority(), 0);
+            assertEquals(0.65f, top.get(1).getPriority(), 0);
+            assertEquals(0.65f, top.get(2).getPriority(), 0);
+            assertEquals(3, new HashSet<TestItem>(top).size());
+        }
+    }
+
+    @Test
+    public void testForEachInLevelRangeStaysInItsLevels() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            fill(bag, 0.05f, 0.15f, 0.25f, 0.35f, 0.45f, 0.55f, 0.65f, 0.75f, 0.85f, 0.95f, 0.31f, 0.32f);
+            final List<TestItem> visited = new ArrayList<TestItem>();
+            bag.forEachInLevelRange(2, 5, visited::add);
+            assertEquals(6, visited.size());
+            int previous = Integer.MAX_VALUE;
+            for (final TestItem item : visited) {
+                final int level = levelOf(item);
+                assertTrue(level >= 2 && level <= 5);
+                // from the highest level down
+                assertTrue(level <= previous);
+                previous = level;
+            }
+
+            visited.clear();
+            bag.forEachInLevelRange(0, SPEC.levels - 1, visited::add);
+            assertEquals(12, visited.size());
+            visited.clear();
+            bag.forEachInLevelRange(9, 9, visited::add);
+            assertEquals(Collections.singletonList("k9"), visited.stream().map(i -> i.name().toString()).collect(Collectors.toList()));
+            visited.clear();
+            bag.forEachInLevelRange(5, 4, visited::add);
+            assertTrue(visited.isEmpty());
+
+            for (final int[] range : new int[][] {{-1, 3}, {0, SPEC.levels}}) {
+                try {
+                    bag.forEachInLevelRange(range[0], range[1], visited::add);
+                    fail("levels " + range[0] + ", " + range[1]);
+                } catch (IllegalArgumentException ex) {
+                    // out of the levels of the improved bag
+                }
+            }
+        }
+    }
+
+    /**
+     * Split as deep as it goes, then read every part
+     */
+    private static void readAll(final Spliterator<TestItem> split, final List<TestItem> read) {
+        final long size = split.estimateSize();
+        final Spliterator<TestItem> prefix = split.trySplit();
+        if (prefix != null) {
+            assertEquals(size, prefix.estimateSize() + split.estimateSize());
+            readAll(prefix, read);
+            readAll(split, read);
+            return;
+        }
+        final int before = read.size();
+        // one item by itself, then the rest at once
+        if (split.tryAdvance(read::add)) {
+            assertNull("no split inside a level", split.trySplit());
+        }
+        split.forEachRemaining(read::add);
+        assertEquals(size, read.size() - before);
+        assertEquals(0, split.estimateSize());
+    }
+
+    @Test
+    public void testSpliteratorCoversEachItemOnce() {
+        final Bag<TestItem, CharSequence> bag = new Bag<TestItem, CharSequence>(SPEC, new SplitMix64(1));
+        // fewer items than the capacity of a level, wherever the migration puts them
+        final float[] priorities = new float[SPEC.capacity];
+        for (int i = 0; i < priorities.length; i++) {
+            priorities[i] = (i % 13) / 13f;
+        }
+        fill(bag, priorities);
+        assertTrue(bag.spliterator().trySplit() != null);
+        final List<TestItem> read = new ArrayList<TestItem>();
+        readAll(bag.spliterator(), read);
+        assertEquals(priorities.length, read.size());
+        final Set<CharSequence> keys = new HashSet<CharSequence>();
+        for (final TestItem item : read) {
+            assertTrue("read twice: " + item.name(), keys.add(item.name()));
+        }
+        assertEquals(priorities.length, bag.stream().parallel().map(TestItem::name).distinct().count());
+    }
+}
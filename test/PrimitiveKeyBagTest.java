@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IntKeyBag and LongKeyBag run side by side with a Bag of the same spec and seed, and must take out the keys Bag
+ * takes out, with the same priorities, and keep the same levels.
+ */
+public class PrimitiveKeyBagTest {
+
+    private static final int OPERATIONS = 50000;
+    private static final int KEYS = 3000;
+
+    // the operations of IntKeyBag and LongKeyBag on long keys, so both are run by the same test
+    interface KeyBag {
+        long putIn(long key, float priority);
+        void putInAll(long[] keys, float[] priorities, List<Long> overflow);
+        long takeOut();
+        boolean pickOut(long key);
+        boolean updatePriority(long key, float priority);
+        boolean contains(long key);
+        float takenPriority();
+        int size();
+        BagStats stats();
+    }
+
+    static KeyBag of(final IntKeyBag bag) {
+        return new KeyBag() {
+            public long putIn(final long key, final float priority) {
+                return bag.putIn((int) key, priority);
+            }
+
+            public void putInAll(final long[] keys, final float[] priorities, final List<Long> overflow) {
+                final int[] intKeys = new int[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    intKeys[i] = (int) keys[i];
+                }
+                bag.putInAll(intKeys, priorities, keys.length, key -> overflow.add((long) key));
+            }
+
+            public long takeOut() {
+                return bag.takeOut();
+            }
+
+            public boolean pickOut(final long key) {
+                return bag.pickOut((int) key);
+            }
+
+            public boolean updatePriority(final long key, final float priority) {
+                return bag.updatePriority((int) key, priority);
+            }
+
+            public boolean contains(final long key) {
+                return bag.contains((int) key);
+            }
+
+            public float takenPriority() {
+                return bag.takenPriority();
+            }
+
+            public int size() {
+                return bag.size();
+            }
+
+            public BagStats stats() {
+                return bag.stats();
+            }
+        };
+    }
+
+    static KeyBag of(final LongKeyBag bag) {
+        return new KeyBag() {
+            public long putIn(final long key, final float priority) {
+                return bag.putIn(key, priority);
+            }
+
+            public void putInAll(final long[] keys, final float[] priorities, final List<Long> overflow) {
+                bag.putInAll(keys, priorities, keys.length, overflow::add);
+            }
+
+            public long takeOut() {
+                return bag.takeOut();
+            }
+
+            public boolean pickOut(final long key) {
+                return bag.pickOut(key);
+            }
+
+            public boolean updatePriority(final long key, final float priority) {
+                return bag.updatePriority(key, priority);
+            }
+
+            public boolean contains(final long key) {
+                return bag.contains(key);
+            }
+
+            public float takenPriority() {
+                return bag.takenPriority();
+            }
+
+            public int size() {
+                return bag.size();
+            }
+
+            public BagStats stats() {
+                return bag.stats();
+            }
+        };
+    }
+
+    @Test
+    public void testIntKeyBagTakesOutTheKeysOfBag() {
+        for (final long seed : new long[] {1, 2, 3}) {
+            final BagSpec spec = BagSpec.of(50, 20, 25);
+            run(spec, seed, of(new IntKeyBag(spec, new SplitMix64(seed), false)), 0);
+        }
+    }
+
+    @Test
+    public void testIntKeyBagOffHeapTakesOutTheKeysOfBag() {
+        final BagSpec spec = BagSpec.of(10, 5, 5);
+        run(spec, 4, of(new IntKeyBag(spec, new SplitMix64(4), true)), 0);
+    }
+
+    @Test
+    public void testLongKeyBagTakesOutTheKeysOfBag() {
+        for (final long seed : new long[] {1, 2, 3}) {
+            final BagSpec spec = BagSpec.of(50, 20, 25);
+            // keys beyond the range of an int
+            run(spec, seed, of(new LongKeyBag(spec, new SplitMix64(seed), seed == 3)), 1L << 40);
+        }
+    }
+
+    /**
+     * Apply the same random operations to a Bag and to the primitive bag, with the keys offset by base
+     */
+    private static void run(final BagSpec spec, final long seed, final KeyBag primitive, final long base) {
+        final Bag<TestItem, CharSequence> bag = new Bag<TestItem, CharSequence>(spec, new SplitMix64(seed));
+        final Random random = new Random(seed);
+        for (int op = 0; op < OPERATIONS; op++) {
+            final long key = base + random.nextInt(KEYS);
+            final float priority = random.nextFloat() * 0.99f;
+            final int choice = random.nextInt(100);
+            final String at = "seed " + seed + ", operation " + op;
+            if (choice < 45) {
+                final TestItem overflow = bag.putIn(new TestItem(Long.toString(key), priority));
+                final long primitiveOverflow = primitive.putIn(key, priority);
+                assertEquals(at, overflow == null ? -1 : Long.parseLong(overflow.name().toString()), primitiveOverflow);
+            } else if (choice < 50) {
+                final long[] keys = new long[1 + random.nextInt(20)];
+                final float[] priorities = new float[keys.length];
+                final List<TestItem> items = new ArrayList<TestItem>();
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = base + random.nextInt(KEYS);
+                    priorities[i] = random.nextFloat() * 0.99f;
+                    items.add(new TestItem(Long.toString(keys[i]), priorities[i]));
+                }
+                final List<Long> overflow = new ArrayList<Long>();
+                bag.putInAll(items, item -> overflow.add(Long.parseLong(item.name().toString())));
+                final List<Long> primitiveOverflow = new ArrayList<Long>();
+                primitive.putInAll(keys, priorities, primitiveOverflow);
+                assertEquals(at, overflow, primitiveOverflow);
+            } else if (choice < 85) {
+                final TestItem taken = bag.takeOut();
+                final long primitiveTaken = primitive.takeOut();
+                assertEquals(at, taken == null ? -1 : Long.parseLong(taken.name().toString()), primitiveTaken);
+                if (taken != null) {
+                    assertEquals(at, taken.getPriority(), primitive.takenPriority(), 0);
+                }
+            } else if (choice < 92) {
+                final TestItem picked = bag.pickOut(Long.toString(key));
+                assertEquals(at, picked != null, primitive.pickOut(key));
+                if (picked != null) {
+                    assertEquals(at, picked.getPriority(), primitive.takenPriority(), 0);
+                }
+            } else {
+                assertEquals(at, bag.updatePriority(Long.toString(key), priority), primitive.updatePriority(key, priority));
+            }
+            assertEquals(at, bag.size(), primitive.size());
+            assertEquals(at, bag.get(Long.toString(key)) != null, primitive.contains(key));
+        }
+        final BagStats expected = bag.stats();
+        final BagStats actual = primitive.stats();
+        assertTrue("levels of the improved bag", Arrays.equals(expected.levels_IB, actual.levels_IB));
+        assertTrue("levels of the bag buffer", Arrays.equals(expected.levels_BB, actual.levels_BB));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The shards of a ShardedBag answer as one bag: a worker steals from the other shards when its home is empty,
+ * the trace and the size, lookups and average priority cover all the shards, and the levels fire in the
+ * proportions of one shard.
+ */
+public class ShardedBagTest {
+
+    private static final int LEVELS = 10;
+    private static final int CAPACITY = 80;
+    private static final int THRESHOLD = 5;
+    private static final int SHARDS = 4;
+
+    @Test
+    public void testTakeOutStealsFromTheOtherShards() {
+        final ShardedBag<TestItem, CharSequence> bag = new ShardedBag<TestItem, CharSequence>(LEVELS, CAPACITY, THRESHOLD, SHARDS);
+        for (int i = 0; i < 400; i++) {
+            final String key = "k" + i;
+            // the home shard 0 stays empty
+            if (bag.shardOf(key) != 0) {
+                bag.putIn(new TestItem(key, (i % 100) / 100f));
+            }
+        }
+        final int size = bag.size();
+        assertTrue(size > 0);
+        final Set<CharSequence> taken = new HashSet<CharSequence>();
+        for (int i = 0; i < size; i++) {
+            final TestItem item = bag.takeOut(0);
+            assertTrue(bag.shardOf(item.name()) != 0);
+            assertTrue("taken twice: " + item.name(), taken.add(item.name()));
+        }
+        assertNull(bag.takeOut(0));
+        assertEquals(0, bag.size());
+    }
+
+    @Test
+    public void testTraceRecordsEachOperationOnce() throws IOException {
+        final ShardedBag<TestItem, CharSequence> bag = new ShardedBag<TestItem, CharSequence>(LEVELS, CAPACITY, THRESHOLD, SHARDS);
+        final TraceRecorder recorder = new TraceRecorder(Channels.newChannel(new ByteArrayOutputStream()));
+        bag.setTraceRecorder(recorder);
+        int puts = 0;
+        for (int i = 0; i < 400; i++) {
+            final String key = "k" + i;
+            if (bag.shardOf(key) != 0) {
+                bag.putIn(new TestItem(key, (i % 100) / 100f));
+                puts++;
+            }
+        }
+        // every take-out tries the empty home shard before it steals
+        for (int i = 0; i < 10; i++) {
+            bag.takeOut(0);
+        }
+        assertEquals(puts + 10, recorder.records());
+    }
+
+    @Test
+    public void testSizeGetAndAveragePriorityCoverAllTheShards() {
+        final ShardedBag<TestItem, CharSequence> bag = new ShardedBag<TestItem, CharSequence>(LEVELS, CAPACITY, THRESHOLD, SHARDS);
+        assertEquals(0.01f, bag.getAveragePriority(), 0);
+        for (int i = 0; i < 1000; i++) {
+            bag.putIn(new TestItem("k" + i, (i % 100) / 100f));
+        }
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            final TestItem item = bag.get("k" + i);
+            if (item != null) {
+                assertEquals("k" + i, item.name());
+                assertTrue(bag.contains(item));
+                found++;
+            }
+        }
+        assertEquals(bag.size(), found);
+
+        // the average of the items of all the improved bags, from the levels they are in
+        long mass = 0;
+        int size = 0;
+        for (final BagStats s : bag.stats()) {
+            for (int level = 0; level < s.levels_IB.length; level++) {
+                mass += (long) (level + 1) * s.levels_IB[level];
+            }
+            size += s.size_IB;
+        }
+        assertEquals(found, size);
+        assertEquals((float) mass / (size * LEVELS), bag.getAveragePriority(), 1e-4f);
+    }
+
+    /**
+     * @return The share of the take-outs of each tenth of the priorities, with every item put back right away
+     */
+    static double[] firingShares(final ItemBag<TestItem, CharSequence> bag, final int itemsPerTenth) {
+        for (int tenth = 0; tenth < 10; tenth++) {
+            for (int i = 0; i < itemsPerTenth; i++) {
+                bag.putIn(new TestItem(tenth + "-" + i, (tenth + 0.5f) / 10));
+            }
+        }
+        final long[] counts = new long[10];
+        long n = 0;
+        for (int t = 0; t < 100000; t++) {
+            final TestItem item = bag.takeOut();
+            if (item == null) {
+                continue;
+            }
+            // the first take-outs only settle the bag
+            if (t >= 10000) {
+                counts[(int) (item.getPriority() * 10)]++;
+                n++;
+            }
+            bag.putIn(item);
+        }
+        final double[] shares = new double[10];
+        for (int tenth = 0; tenth < 10; tenth++) {
+            shares[tenth] = (double) counts[tenth] / n;
+        }
+        return shares;
+    }
+
+    static void assertSameShares(final double[] expected, final double[] actual) {
+        double expectedLow = 0;
+        double actualLow = 0;
+        for (int tenth = 0; tenth < 10; tenth++) {
+            assertEquals("tenth " + tenth, expected[tenth], actual[tenth], 0.03);
+            if (tenth < THRESHOLD) {
+                expectedLow += expected[tenth];
+                actualLow += actual[tenth];
+            }
+        }
+        // the low priorities fire rarely, their share is compared on its own scale
+        assertEquals(expectedLow, actualLow, expectedLow / 4);
+    }
+
+    @Test
+    public void testShardsFireInTheProportionsOfOneShard() {
+        final int itemsPerTenth = 40;
+        final double[] one = firingShares(new Bag<TestItem, CharSequence>(LEVELS, CAPACITY, THRESHOLD, new SplitMix64(1)), itemsPerTenth / SHARDS);
+        final double[] sharded = firingShares(new ShardedBag<TestItem, CharSequence>(LEVELS, CAPACITY, THRESHOLD, SHARDS), itemsPerTenth);
+        assertSameShares(one, sharded);
+    }
+
+    @Test
+    public void testShardsWithTheirShareOfTheCapacityKeepTheProportions() {
+        // as BagFactory makes them, while the levels of the shards have room
+        final int itemsPerTenth = 40;
+        final double[] one = firingShares(new Bag<TestItem, CharSequence>(LEVELS, CAPACITY, THRESHOLD, new SplitMix64(1)), itemsPerTenth / SHARDS);
+        final double[] sharded = firingShares(new ShardedBag<TestItem, CharSequence>(LEVELS, CAPACITY / SHARDS, THRESHOLD, SHARDS), itemsPerTenth);
+        assertSameShares(one, sharded);
+    }
+}
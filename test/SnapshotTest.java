@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Snapshots of Bag and ConcurrentBag, which read the snapshots of each other, and the file of the last snapshot
+ * is kept when a snapshot fails.
+ */
+public class SnapshotTest {
+
+    private static final BagSpec SPEC = BagSpec.of(50, 10, 25);
+
+    static class TestCodec implements ItemCodec<TestItem> {
+        // the key of the item whose encoding fails, or null
+        String failing;
+
+        @Override
+        public void encode(final TestItem item, final ByteBuffer out) {
+            if (item.name().equals(failing)) {
+                throw new IllegalStateException("cannot encode " + failing);
+            }
+            out.putFloat(item.getPriority());
+            out.put(item.name().toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public TestItem decode(final ByteBuffer in) {
+            final float priority = in.getFloat();
+            final byte[] key = new byte[in.remaining()];
+            in.get(key);
+            return new TestItem(new String(key, StandardCharsets.UTF_8), priority);
+        }
+    }
+
+    private static void fill(final TwoTierBag<TestItem, CharSequence> bag, final int seed) {
+        final Random random = new Random(seed);
+        for (int i = 0; i < 3000; i++) {
+            bag.putIn(new TestItem("k" + random.nextInt(2000), random.nextFloat() * 0.99f));
+            if (i % 4 == 0) {
+                bag.takeOut();
+            }
+        }
+    }
+
+    private static List<String> items(final TwoTierBag<TestItem, CharSequence> bag) {
+        final List<String> items = new ArrayList<String>();
+        bag.forEachInLevelRange(0, SPEC.levels - 1, item -> items.add(item.name() + ":" + item.getPriority()));
+        return items;
+    }
+
+    private static void assertSameContent(final TwoTierBag<TestItem, CharSequence> expected, final TwoTierBag<TestItem, CharSequence> actual) {
+        final BagStats e = expected.stats();
+        final BagStats a = actual.stats();
+        assertTrue("levels of the improved bag", Arrays.equals(e.levels_IB, a.levels_IB));
+        assertTrue("levels of the bag buffer", Arrays.equals(e.levels_BB, a.levels_BB));
+        assertEquals(items(expected), items(actual));
+    }
+
+    @Test
+    public void testConcurrentBagRoundTrip() throws IOException {
+        final TestCodec codec = new TestCodec();
+        final Path file = Files.createTempFile("bag", ".snap");
+        try {
+            final ConcurrentBag<TestItem, CharSequence> bag = new ConcurrentBag<TestItem, CharSequence>(SPEC);
+            fill(bag, 1);
+            // an incremental one is written in full
+            bag.writeSnapshot(file, codec, true);
+
+            final ConcurrentBag<TestItem, CharSequence> concurrent = new ConcurrentBag<TestItem, CharSequence>(SPEC);
+            fill(concurrent, 2);
+            concurrent.readSnapshot(file, codec);
+            assertSameContent(bag, concurrent);
+
+            final Bag<TestItem, CharSequence> plain = new Bag<TestItem, CharSequence>(SPEC);
+            plain.readSnapshot(file, codec);
+            assertSameContent(bag, plain);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testConcurrentBagReadsIncrementalSnapshotsOfBag() throws IOException {
+        final TestCodec codec = new TestCodec();
+        final Path file = Files.createTempFile("bag", ".snap");
+        try {
+            final Bag<TestItem, CharSequence> bag = new Bag<TestItem, CharSequence>(SPEC);
+            for (int round = 0; round < 5; round++) {
+                fill(bag, round);
+                bag.writeSnapshot(file, codec, true);
+            }
+            final ConcurrentBag<TestItem, CharSequence> concurrent = new ConcurrentBag<TestItem, CharSequence>(SPEC);
+            concurrent.readSnapshot(file, codec);
+            assertSameContent(bag, concurrent);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testFailedSnapshotKeepsTheFile() throws IOException {
+        final TestCodec codec = new TestCodec();
+        final Path file = Files.createTempFile("bag", ".snap");
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            for (final boolean concurrent : new boolean[] {false, true}) {
+                final TwoTierBag<TestItem, CharSequence> bag = concurrent
+                        ? new ConcurrentBag<TestItem, CharSequence>(SPEC)
+                        : new Bag<TestItem, CharSequence>(SPEC);
+                fill(bag, 3);
+                bag.writeSnapshot(file, codec, false);
+                final byte[] written = Files.readAllBytes(file);
+
+                for (final boolean incremental : new boolean[] {false, true}) {
+                    fill(bag, 4);
+                    codec.failing = bag.iterator().next().name().toString();
+                    try {
+                        bag.writeSnapshot(file, codec, incremental);
+                        fail("the codec did not fail");
+                    } catch (IllegalStateException ex) {
+                        // expected
+                    }
+                    codec.failing = null;
+                    assertTrue("the last snapshot is kept", Arrays.equals(written, Files.readAllBytes(file)));
+                    assertFalse("the temporary file is removed", Files.exists(tmp));
+                }
+
+                // the next incremental snapshot is a whole one again
+                bag.writeSnapshot(file, codec, true);
+                final Bag<TestItem, CharSequence> restored = new Bag<TestItem, CharSequence>(SPEC);
+                restored.readSnapshot(file, codec);
+                assertSameContent(bag, restored);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.main.Parameters;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every operation of a bag ends up in its trace, and the replay of the trace runs each of them.
+ */
+public class TraceReplayTest {
+
+    private static final Parameters narParameters = new Parameters();
+
+    @Test
+    public void testAllOperationsAreRecordedAndReplayed() throws IOException {
+        for (final boolean concurrent : new boolean[] {false, true}) {
+            record(concurrent);
+        }
+    }
+
+    private static void record(final boolean concurrent) throws IOException {
+        final Path file = Files.createTempFile("bag", ".trace");
+        try {
+            final TwoTierBag<TestItem, CharSequence> bag = concurrent
+                    ? new ConcurrentBag<TestItem, CharSequence>(100, 20, narParameters)
+                    : new Bag<TestItem, CharSequence>(100, 20, narParameters);
+            final Memory memory = new BagFactory(narParameters).memory();
+            final Random random = new Random(5);
+            long putIns = 0, putBacks = 0, takeOuts = 0, pickOuts = 0, putInAlls = 0, updates = 0, samples = 0;
+            try (TraceRecorder recorder = TraceRecorder.open(file)) {
+                bag.setTraceRecorder(recorder);
+                for (int i = 0; i < 20000; i++) {
+                    final int choice = random.nextInt(7);
+                    final String key = "k" + random.nextInt(1000);
+                    final float priority = random.nextFloat() * 0.99f;
+                    if (choice == 0) {
+                        bag.putIn(new TestItem(key, priority));
+                        putIns++;
+                    } else if (choice == 1) {
+                        final TestItem taken = bag.takeOut();
+                        takeOuts++;
+                        if (taken != null) {
+                            bag.putBack(taken, 10, memory);
+                            putBacks++;
+                        }
+                    } else if (choice == 2) {
+                        bag.takeOut();
+                        takeOuts++;
+                    } else if (choice == 3) {
+                        bag.pickOut(key);
+                        pickOuts++;
+                    } else if (choice == 4) {
+                        final List<TestItem> items = new ArrayList<TestItem>();
+                        for (int j = random.nextInt(10); j >= 0; j--) {
+                            items.add(new TestItem("k" + random.nextInt(1000), random.nextFloat() * 0.99f));
+                        }
+                        bag.putInAll(items, null);
+                        putInAlls++;
+                    } else if (choice == 5) {
+                        bag.updatePriority(key, priority);
+                        updates++;
+                    } else {
+                        final boolean drop = random.nextInt(4) == 0;
+                        bag.sampleAndUpdate(item -> {
+                            if (drop) {
+                                return null;
+                            }
+                            item.setPriority(priority);
+                            return item;
+                        });
+                        samples++;
+                    }
+                }
+                bag.setTraceRecorder(null);
+                assertEquals(putIns + putBacks + takeOuts + pickOuts + putInAlls + updates + samples, recorder.records());
+            }
+
+            final ByteBuffer trace = TraceReplay.read(file);
+            final List<TraceReplay.Target> targets = new ArrayList<TraceReplay.Target>();
+            targets.add(TraceReplay.of(new Bag<TraceReplay.TraceItem, Integer>(100, 20, narParameters), narParameters));
+            targets.add(TraceReplay.of(new ConcurrentBag<TraceReplay.TraceItem, Integer>(100, 20, narParameters), narParameters));
+            targets.add(TraceReplay.of(new LevelBag<TraceReplay.TraceItem, Integer>(100, 2000, narParameters), narParameters));
+            targets.add(TraceReplay.of(new IntKeyBag(100, 20, (int) (narParameters.BAG_THRESHOLD * 100)), narParameters));
+            for (final TraceReplay.Target target : targets) {
+                final TraceReplay.Report report = TraceReplay.replay(trace, target, 100);
+                assertEquals(putIns, report.put_ins);
+                assertEquals(putBacks, report.put_backs);
+                assertEquals(takeOuts, report.take_outs);
+                assertEquals(pickOuts, report.pick_outs);
+                assertEquals(putInAlls, report.put_in_alls);
+                assertEquals(updates, report.update_priorities);
+                assertEquals(samples, report.samples);
+                assertTrue("fidelity " + report.fidelity(), report.fidelity() > 0.8);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The controller of a Bag adjusts it once at the end of each period, however many times the bag buffer
+ * overflows during the period.
+ */
+public class TransferControllerTest {
+
+    @Test
+    public void testOverflowsAreTunedAtTheEndOfThePeriod() {
+        final int period = 100;
+        final Bag<TestItem, CharSequence> bag = new Bag<TestItem, CharSequence>(BagSpec.of(10, 5, 5));
+        bag.setTransferController(new TransferController(period, 0.25f, 4f, 4f, 0.1f, 0.5f, 0.5f));
+        // nothing leaves the bag buffer, so every put beyond its capacity overflows it
+        bag.setMigrationRate(0);
+        final int capacity = bag.getBufferCapacity();
+        int key = 0;
+        for (int i = 1; i < period; i++) {
+            bag.putIn(new TestItem("k" + key++, 0.5f));
+            assertEquals("put " + i, capacity, bag.getBufferCapacity());
+        }
+        bag.putIn(new TestItem("k" + key++, 0.5f));
+        final int grown = bag.getBufferCapacity();
+        assertEquals((int) Math.ceil(capacity * 1.25f), grown);
+        assertTrue(bag.getMigrationRate() > 0);
+
+        bag.setMigrationRate(0);
+        for (int i = 1; i < period; i++) {
+            bag.putIn(new TestItem("k" + key++, 0.5f));
+            assertEquals("put " + i, grown, bag.getBufferCapacity());
+        }
+        bag.putIn(new TestItem("k" + key++, 0.5f));
+        assertEquals((int) Math.ceil(grown * 1.25f), bag.getBufferCapacity());
+    }
+}
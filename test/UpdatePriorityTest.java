@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 The OpenNARS authors.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.opennars.storage;
+
+import org.junit.Test;
+import org.opennars.storage.ConcurrentBagStressTest.TestItem;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * updatePriority and sampleAndUpdate of Bag and ConcurrentBag move the items to the levels of their new priority,
+ * in the improved bag and in the bag buffer.
+ */
+public class UpdatePriorityTest {
+
+    private static final BagSpec SPEC = BagSpec.of(10, 10, 5);
+
+    private static List<TwoTierBag<TestItem, CharSequence>> bags() {
+        return Arrays.<TwoTierBag<TestItem, CharSequence>>asList(
+                new Bag<TestItem, CharSequence>(SPEC, new SplitMix64(1)),
+                new ConcurrentBag<TestItem, CharSequence>(SPEC));
+    }
+
+    /**
+     * @param toImprovedBag Whether the item is moved to the improved bag, else it stays in the bag buffer
+     */
+    private static void put(final TwoTierBag<TestItem, CharSequence> bag, final TestItem item, final boolean toImprovedBag) {
+        bag.setTransferRatio(toImprovedBag ? 1 : 0);
+        bag.putInAll(Collections.singletonList(item), null);
+    }
+
+    /**
+     * @return The only non-empty level, or -1 if all are empty
+     */
+    private static int level(final int[] levels) {
+        int level = -1;
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] > 0) {
+                assertEquals("a single item", -1, level);
+                assertEquals(1, levels[i]);
+                level = i;
+            }
+        }
+        return level;
+    }
+
+    private static int levelOf(final float priority, final int levels) {
+        return Math.max((int) Math.ceil(priority * levels) - 1, 0);
+    }
+
+    @Test
+    public void testUpdatePriorityMovesTheItemInTheImprovedBag() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            // the migration chooses the level by the working modes
+            put(bag, new TestItem("a", 0.15f), true);
+            assertTrue(level(bag.stats().levels_IB) >= 0);
+            assertTrue(bag.updatePriority("a", 0.85f));
+            assertEquals(0.85f, bag.get("a").getPriority(), 0);
+            assertEquals(levelOf(0.85f, SPEC.levels), level(bag.stats().levels_IB));
+            assertEquals(-1, level(bag.stats().levels_BB));
+        }
+    }
+
+    @Test
+    public void testUpdatePriorityMovesTheItemInTheBagBuffer() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            put(bag, new TestItem("a", 0.15f), false);
+            assertEquals(levelOf(0.15f, SPEC.buffer_levels), level(bag.stats().levels_BB));
+            assertTrue(bag.updatePriority("a", 0.85f));
+            assertEquals(levelOf(0.85f, SPEC.buffer_levels), level(bag.stats().levels_BB));
+            assertEquals(-1, level(bag.stats().levels_IB));
+            assertNull("not in the improved bag", bag.get("a"));
+        }
+    }
+
+    @Test
+    public void testUpdatePriorityMovesTheItemsOfBothRegions() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            put(bag, new TestItem("a", 0.15f), true);
+            put(bag, new TestItem("a", 0.25f), false);
+            assertTrue(bag.updatePriority("a", 0.65f));
+            assertEquals(levelOf(0.65f, SPEC.levels), level(bag.stats().levels_IB));
+            assertEquals(levelOf(0.65f, SPEC.buffer_levels), level(bag.stats().levels_BB));
+        }
+    }
+
+    @Test
+    public void testUpdatePriorityOfAnAbsentKey() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            assertFalse(bag.updatePriority("a", 0.5f));
+            put(bag, new TestItem("b", 0.15f), true);
+            assertFalse(bag.updatePriority("a", 0.5f));
+            assertEquals(1, bag.size());
+            assertEquals(0.15f, bag.get("b").getPriority(), 0);
+        }
+    }
+
+    @Test
+    public void testSampleAndUpdateMovesTheItem() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            assertNull(bag.sampleAndUpdate(item -> item));
+            final TestItem a = new TestItem("a", 0.15f);
+            put(bag, a, true);
+            assertSame(a, bag.sampleAndUpdate(item -> {
+                item.setPriority(0.85f);
+                return item;
+            }));
+            assertEquals(1, bag.size());
+            assertEquals(levelOf(0.85f, SPEC.levels), level(bag.stats().levels_IB));
+
+            // a replacement of the same key takes the place of the item
+            final TestItem replacement = new TestItem("a", 0.45f);
+            assertSame(replacement, bag.sampleAndUpdate(item -> replacement));
+            assertSame(replacement, bag.get("a"));
+            assertEquals(levelOf(0.45f, SPEC.levels), level(bag.stats().levels_IB));
+        }
+    }
+
+    @Test
+    public void testSampleAndUpdateDropsOrKeepsTheItem() {
+        for (final TwoTierBag<TestItem, CharSequence> bag : bags()) {
+            final TestItem a = new TestItem("a", 0.15f);
+            put(bag, a, true);
+            try {
+                bag.sampleAndUpdate(item -> new TestItem("b", 0.5f));
+                fail("the key changed");
+            } catch (IllegalArgumentException ex) {
+                // the item stays in the bag
+            }
+            assertEquals(1, bag.size());
+            assertSame(a, bag.get("a"));
+
+            assertNull(bag.sampleAndUpdate(item -> null));
+            assertEquals(0, bag.size());
+            assertNull(bag.get("a"));
+        }
+    }
+}